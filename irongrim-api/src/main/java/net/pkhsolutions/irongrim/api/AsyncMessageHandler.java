@@ -25,6 +25,11 @@ import rx.Observable;
  * An extended version of the {@link MessageHandler} interface that also supports asynchronous message handling
  * by using {@link Observable}s from RxJava. Implementations can create the Observables themselves or use e.g. Hystrix
  * commands. Implementations should remember to transfer the {@link Context} to any new threads they create.
+ * <p>
+ * Since {@link #handleMessageAsync(Message)} is invoked by the thread that sent the message, implementations can use
+ * {@link Context#getRemainingTime()} of the current context to find out how much time they have for handling the
+ * message, e.g. to configure timeouts of their own.
+ * </p>
  * 
  * @see <a href="https://github.com/ReactiveX/RxJava">RxJava</a>
  * @see AsyncMessageBroker
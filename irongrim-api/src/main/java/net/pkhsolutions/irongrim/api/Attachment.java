@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Large binary payload, such as an uploaded document, that a {@link Message} can carry without having the payload
+ * serialized into a byte array together with the rest of the message. An attachment is backed either by a
+ * {@link ByteBuffer} (which can be a direct or memory-mapped buffer) or by a region of a file.
+ * <p>
+ * Local message brokers pass attachments by reference, so the payload is never copied. Remote transports can stream
+ * the payload separately from the message in chunks, or in the case of file-backed attachments between processes on
+ * the same host, just pass the file reference. When an attachment is serialized using plain Java serialization, e.g.
+ * when a message is journaled, buffer-backed attachments are written in chunks and file-backed attachments are written
+ * as references to the file, which must therefore still exist when the attachment is deserialized.
+ * </p>
+ * <p>
+ * Attachments are immutable: the content of the buffer or the file region must not be changed once the attachment has
+ * been created.
+ * </p>
+ */
+public abstract class Attachment implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    Attachment() {
+    }
+
+    /**
+     * Creates an attachment backed by the remaining content of the specified buffer. The buffer is not copied, and its
+     * position and limit are not changed.
+     *
+     * @param content the buffer containing the payload (never {@code null}).
+     * @return the attachment (never {@code null}).
+     */
+    @NotNull
+    public static Attachment of(@NotNull ByteBuffer content) {
+        return new ByteBufferAttachment(Objects.requireNonNull(content).slice().asReadOnlyBuffer());
+    }
+
+    /**
+     * Creates an attachment backed by the entire content of the specified file. The file is not read until the content
+     * of the attachment is accessed.
+     *
+     * @param file the file containing the payload (never {@code null}).
+     * @return the attachment (never {@code null}).
+     * @throws IOException if the size of the file could not be determined.
+     */
+    @NotNull
+    public static Attachment ofFile(@NotNull Path file) throws IOException {
+        return new FileAttachment(file.toAbsolutePath(), 0, Files.size(file));
+    }
+
+    /**
+     * Creates an attachment backed by a region of the specified file. The file is not read until the content of the
+     * attachment is accessed.
+     *
+     * @param file the file containing the payload (never {@code null}).
+     * @param offset the offset of the payload in the file.
+     * @param length the length of the payload in bytes.
+     * @return the attachment (never {@code null}).
+     */
+    @NotNull
+    public static Attachment ofFileRegion(@NotNull Path file, long offset, long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("The offset and the length must not be negative");
+        }
+        return new FileAttachment(file.toAbsolutePath(), offset, length);
+    }
+
+    /**
+     * Gets the size of the payload in bytes.
+     */
+    public abstract long getSize();
+
+    /**
+     * Gets the file that contains the payload, if the attachment is backed by a file.
+     *
+     * @return the file, or an empty {@code Optional} if the attachment is backed by a buffer.
+     */
+    @NotNull
+    public abstract Optional<Path> getFile();
+
+    /**
+     * Gets the payload as a read-only buffer, whose position is zero and whose limit is the size of the payload. The
+     * payload is not copied: buffer-backed attachments return a view of their buffer and file-backed attachments map
+     * the file region into memory.
+     *
+     * @return the payload (never {@code null}).
+     * @throws IOException if the file could not be mapped, or if the payload is larger than 2 GiB.
+     */
+    @NotNull
+    public abstract ByteBuffer getContent() throws IOException;
+
+    /**
+     * Opens a channel for reading the payload sequentially.
+     *
+     * @return the channel, which the caller must close (never {@code null}).
+     * @throws IOException if the channel could not be opened.
+     */
+    @NotNull
+    public ReadableByteChannel openChannel() throws IOException {
+        final ByteBuffer content = getContent();
+        return new ReadableByteChannel() {
+
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer destination) {
+                if (!content.hasRemaining()) {
+                    return -1;
+                }
+                final ByteBuffer chunk = content.duplicate();
+                chunk.limit(chunk.position() + Math.min(chunk.remaining(), destination.remaining()));
+                destination.put(chunk);
+                final int count = chunk.position() - content.position();
+                content.position(chunk.position());
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    /**
+     * Opens a stream for reading the payload sequentially.
+     *
+     * @return the stream, which the caller must close (never {@code null}).
+     * @throws IOException if the stream could not be opened.
+     */
+    @NotNull
+    public InputStream openStream() throws IOException {
+        return Channels.newInputStream(openChannel());
+    }
+
+    static void checkMappable(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Attachments larger than 2 GiB cannot be accessed as a single buffer");
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Attachment backed by a buffer. When serialized, the payload is written in chunks so that no copy of the entire
+ * payload has to be made on the heap, and when deserialized, it is read into a direct buffer.
+ */
+final class ByteBufferAttachment extends Attachment {
+
+    private static final long serialVersionUID = 1L;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private transient ByteBuffer content;
+
+    ByteBufferAttachment(@NotNull ByteBuffer content) {
+        this.content = content;
+    }
+
+    @Override
+    public long getSize() {
+        return content.capacity();
+    }
+
+    @Override
+    public @NotNull Optional<Path> getFile() {
+        return Optional.empty();
+    }
+
+    @Override
+    public @NotNull ByteBuffer getContent() {
+        return content.duplicate();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        final ByteBuffer source = getContent();
+        out.writeInt(source.remaining());
+        final byte[] chunk = new byte[Math.min(CHUNK_SIZE, source.remaining())];
+        while (source.hasRemaining()) {
+            final int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        final int size = in.readInt();
+        if (size < 0) {
+            throw new InvalidObjectException("Negative attachment size");
+        }
+        final ByteBuffer destination = ByteBuffer.allocateDirect(size);
+        final byte[] chunk = new byte[Math.min(CHUNK_SIZE, size)];
+        while (destination.hasRemaining()) {
+            final int length = Math.min(chunk.length, destination.remaining());
+            in.readFully(chunk, 0, length);
+            destination.put(chunk, 0, length);
+        }
+        destination.flip();
+        content = destination.asReadOnlyBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[size=%d]", getClass().getSimpleName(), getSize());
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Exception thrown when a {@link Message} is rejected because the circuit breaker protecting its
+ * {@link MessageHandler} is open, i.e. because the handler has recently been failing or responding too slowly. Brokers
+ * only throw this exception if the message has no {@link Message#getFallbackReply() fallback reply}.
+ */
+@SuppressWarnings("unused")
+public class CircuitBreakerOpenException extends MessageRejectedException {
+
+    /**
+     * Creates a new {@code CircuitBreakerOpenException}.
+     *
+     * @param messageClass the class of the message (never {@code null}).
+     */
+    public CircuitBreakerOpenException(@NotNull Class<? extends Message> messageClass) {
+        super(messageClass, "circuit breaker is open");
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Exception thrown when a {@link Message} is rejected because the broker is already handling as many messages
+ * concurrently as it can without latency starting to grow. Brokers only throw this exception if the message has no
+ * {@link Message#getFallbackReply() fallback reply}.
+ */
+@SuppressWarnings("unused")
+public class ConcurrencyLimitExceededException extends MessageRejectedException {
+
+    /**
+     * Creates a new {@code ConcurrencyLimitExceededException}.
+     *
+     * @param messageClass the class of the message (never {@code null}).
+     */
+    public ConcurrencyLimitExceededException(@NotNull Class<? extends Message> messageClass) {
+        super(messageClass, "concurrency limit exceeded");
+    }
+}
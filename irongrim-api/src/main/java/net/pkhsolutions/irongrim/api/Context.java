@@ -16,8 +16,11 @@
 package net.pkhsolutions.irongrim.api;
 
 import java.io.Serializable;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.jetbrains.annotations.NotNull;
@@ -29,16 +32,24 @@ import org.slf4j.LoggerFactory;
  * Thread-safe collection of context attributes that will be sent with every {@link Message} crossing a thread or VM
  * boundary (e.g. when doing asynchronous message processing or remote calls). If the context is going to be serialized
  * (e.g. when doring remote calls), all context attributes should be serializable as well.
+ * <p>
+ * A context can also carry a deadline, after which nobody is waiting for the reply anymore. Message brokers will drop
+ * messages whose deadline has passed instead of handing them over to their handlers, and handlers can use
+ * {@link #getRemainingTime()} to find out how much time they have left. Deadlines are stored as wall-clock instants so
+ * that they can be transferred to other VMs, which means that the clocks of those VMs should be synchronized.
+ * </p>
  */
 public class Context implements Serializable {
 
     // Remember to change this every time the class is changed.
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Context.class);
 
     private Map<String, Object> attributeMap;
 
+    private volatile Instant deadline;
+
     /**
      * Creates a new, empty {@code Context}.
      */
@@ -53,6 +64,7 @@ public class Context implements Serializable {
      */
     public Context(@NotNull Context original) {
         this.attributeMap = new ConcurrentHashMap<>(Objects.requireNonNull(original).attributeMap);
+        this.deadline = original.deadline;
     }
 
     /**
@@ -124,4 +136,68 @@ public class Context implements Serializable {
         Objects.requireNonNull(attributeClass);
         return setAttribute(attributeClass.getName(), attributeValue);
     }
+
+    /**
+     * Gets the deadline after which the reply to the message being handled is no longer needed.
+     *
+     * @return the deadline, or an empty {@code Optional} if there is no deadline.
+     */
+    @NotNull
+    public Optional<Instant> getDeadline() {
+        return Optional.ofNullable(deadline);
+    }
+
+    /**
+     * Sets the deadline after which the reply to the message being handled is no longer needed.
+     *
+     * @param deadline the deadline, or {@code null} to remove the deadline.
+     * @return this {@code Context} object, to allow method call chaining.
+     */
+    @NotNull
+    public Context setDeadline(@Nullable Instant deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Sets the deadline to the current time plus the specified timeout, unless the context already has an earlier
+     * deadline. This means that a timeout can never extend a deadline that has been set by an earlier caller.
+     *
+     * @param timeout the timeout (never {@code null}).
+     * @return this {@code Context} object, to allow method call chaining.
+     */
+    @NotNull
+    public Context setTimeout(@NotNull Duration timeout) {
+        final Instant newDeadline = Instant.now().plus(Objects.requireNonNull(timeout));
+        final Instant currentDeadline = deadline;
+        if (currentDeadline == null || newDeadline.isBefore(currentDeadline)) {
+            deadline = newDeadline;
+        }
+        return this;
+    }
+
+    /**
+     * Gets the time that remains until the deadline.
+     *
+     * @return the remaining time (never negative), or an empty {@code Optional} if there is no deadline.
+     */
+    @NotNull
+    public Optional<Duration> getRemainingTime() {
+        final Instant currentDeadline = deadline;
+        if (currentDeadline == null) {
+            return Optional.empty();
+        }
+        final Duration remaining = Duration.between(Instant.now(), currentDeadline);
+        return Optional.of(remaining.isNegative() ? Duration.ZERO : remaining);
+    }
+
+    /**
+     * Checks if the deadline has passed.
+     *
+     * @return true if there is a deadline and it has passed, false otherwise.
+     */
+    public boolean isExpired() {
+        final Instant currentDeadline = deadline;
+        return currentDeadline != null && !Instant.now().isBefore(currentDeadline);
+    }
 }
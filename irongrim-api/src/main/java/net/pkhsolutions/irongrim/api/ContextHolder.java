@@ -16,6 +16,7 @@
 package net.pkhsolutions.irongrim.api;
 
 import java.util.Objects;
+import java.util.Optional;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -50,6 +51,17 @@ public final class ContextHolder {
         return context;
     }
 
+    /**
+     * Gets the current context if there is one. This method is intended to be used by code that needs to transfer the
+     * context to other threads, but should also work when no context has been set.
+     *
+     * @return the context, or an empty {@code Optional} if no context is available.
+     */
+    @NotNull
+    public static Optional<Context> getOptionalContext() {
+        return Optional.ofNullable(STRATEGY.getContext());
+    }
+
     /**
      * Sets the current context. This method is intended to be used to transfer contextual data between threads. You
      * would get the context in the parent thread and set it in the child thread before invoking any contextual
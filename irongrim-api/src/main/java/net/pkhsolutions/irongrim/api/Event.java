@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+/**
+ * Interface for messages that are events. An event tells the system that something <em>has happened</em>. Unlike
+ * {@link Command commands} and {@link Query queries}, which are handled by exactly one {@link MessageHandler}, an event
+ * is delivered to every message handler that {@link MessageHandler#supports(Class) supports} it. Such handlers are
+ * called subscribers. An event with no subscribers is silently discarded.
+ * <p>
+ * Failures are isolated to each subscriber: an exception thrown by one subscriber never prevents the event from being
+ * delivered to the others, nor is it propagated to the sender.
+ * </p>
+ * <p>
+ * Brokers that support asynchronous message handling deliver events to all subscribers in parallel, unless the event
+ * {@link #isOrdered() requires ordered delivery}.
+ * </p>
+ */
+@SuppressWarnings("unused")
+public interface Event extends Message<Void> {
+
+    /**
+     * Checks whether this event must be delivered to one subscriber at a time, in the order of the subscribers. How
+     * the subscribers are ordered is up to the broker.
+     *
+     * @return true if the event must be delivered in order, false if it can be delivered in parallel.
+     */
+    default boolean isOrdered() {
+        return false;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Attachment backed by a region of a file. When serialized, only the reference to the file is written.
+ */
+final class FileAttachment extends Attachment {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String file;
+    private final long offset;
+    private final long length;
+
+    FileAttachment(@NotNull Path file, long offset, long length) {
+        this.file = file.toString();
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public long getSize() {
+        return length;
+    }
+
+    @Override
+    public @NotNull Optional<Path> getFile() {
+        return Optional.of(Paths.get(file));
+    }
+
+    @Override
+    public @NotNull ByteBuffer getContent() throws IOException {
+        checkMappable(length);
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel has been closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).asReadOnlyBuffer();
+        }
+    }
+
+    @Override
+    public @NotNull ReadableByteChannel openChannel() throws IOException {
+        final FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+        return new ReadableByteChannel() {
+
+            private long position = offset;
+
+            @Override
+            public int read(ByteBuffer destination) throws IOException {
+                final long remaining = offset + length - position;
+                if (remaining <= 0) {
+                    return -1;
+                }
+                final ByteBuffer window = destination.duplicate();
+                if (window.remaining() > remaining) {
+                    window.limit(window.position() + (int) remaining);
+                }
+                final int count = channel.read(window, position);
+                if (count < 0) {
+                    throw new IOException("The file " + file + " is shorter than the attachment");
+                }
+                destination.position(window.position());
+                position += count;
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (file == null || offset < 0 || length < 0) {
+            throw new InvalidObjectException("Invalid file attachment");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[file=%s, offset=%d, length=%d]", getClass().getSimpleName(), file, offset, length);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An extended version of the {@link MessageBroker} interface that supports asynchronous message handling by using
+ * {@link CompletableFuture}s. Unlike {@link AsyncMessageBroker}, this interface does not depend on RxJava.
+ *
+ * @see FutureMessageHandler
+ */
+@SuppressWarnings("unused")
+public interface FutureMessageBroker extends MessageBroker {
+
+    /**
+     * Sends the specified message to its message handler and returns a future that will be completed with the reply.
+     * If the message handler is an instance of {@link FutureMessageHandler},
+     * {@link FutureMessageHandler#handleMessageFuture(Message)} will be used. Otherwise, the broker will invoke
+     * {@link MessageHandler#handleMessage(Message)} in another thread. In that case, the broker will transfer the
+     * {@link Context} to any new threads it creates.
+     * <p>
+     * In contrast to {@link AsyncMessageBroker#sendAsync(Message)}, the message is sent right away and not when
+     * someone starts to listen to the returned future.
+     * </p>
+     *
+     * @param message the message to send (never {@code null}).
+     * @return a future that will be completed with the reply or the exception thrown by the handler (never
+     *         {@code null}).
+     * @throws NoSuchMessageHandlerException if no message handler could be found.
+     */
+    @NotNull
+    <MESSAGE extends Message<REPLY>, REPLY> CompletableFuture<REPLY> sendFuture(@NotNull MESSAGE message)
+        throws NoSuchMessageHandlerException;
+}
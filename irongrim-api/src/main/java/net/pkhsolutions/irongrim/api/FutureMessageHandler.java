@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An extended version of the {@link MessageHandler} interface that supports asynchronous message handling by using
+ * {@link CompletableFuture}s. Implementations should remember to transfer the {@link Context} to any new threads they
+ * create.
+ * <p>
+ * Since {@link #handleMessageFuture(Message)} is invoked by the thread that sent the message, implementations can use
+ * {@link Context#getRemainingTime()} of the current context to find out how much time they have for handling the
+ * message.
+ * </p>
+ *
+ * @see FutureMessageBroker
+ */
+public interface FutureMessageHandler<MESSAGE extends Message<REPLY>, REPLY> extends MessageHandler<MESSAGE, REPLY> {
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This default implementation will delegate to the {@link #handleMessageFuture(Message) asynchronous version} and
+     * block until the future has been completed. If the future was completed exceptionally with a
+     * {@link RuntimeException}, that exception is rethrown as is.
+     * </p>
+     */
+    default REPLY handleMessage(@NotNull MESSAGE message) {
+        try {
+            return handleMessageFuture(message).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Handles the specified message asynchronously.
+     *
+     * @param message the message to handle (never {@code null}).
+     * @return a future that will be completed with the reply (never {@code null}).
+     */
+    @NotNull
+    CompletableFuture<REPLY> handleMessageFuture(@NotNull MESSAGE message);
+}
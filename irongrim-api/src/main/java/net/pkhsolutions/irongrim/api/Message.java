@@ -27,6 +27,7 @@ import org.jetbrains.annotations.NotNull;
  * 
  * @see Command
  * @see Query
+ * @see Event
  * 
  * @param <REPLY> the type of the reply to this message. If no reply is expected, {@link Void} can be used.
  */
@@ -46,4 +47,34 @@ public interface Message<REPLY> extends Serializable {
     default Optional<REPLY> getFallbackReply() {
         return Optional.empty();
     }
+
+    /**
+     * Gets an optional priority that brokers supporting prioritized handling should handle this message with. If the
+     * priority is empty, the priority of the message handler will be used (if it is a
+     * {@link PrioritizedMessageHandler}), or {@link Priority#NORMAL} otherwise.
+     * <p>
+     * This is an optional feature, meaning that message brokers are not required to use it.
+     * </p>
+     *
+     * @return the priority or an empty {@code Optional}.
+     */
+    @NotNull
+    default Optional<Priority> getPriority() {
+        return Optional.empty();
+    }
+
+    /**
+     * Gets an optional routing key, such as a customer ID, that cluster-aware message brokers should use to route all
+     * messages with the same key to the same node. This keeps the caches of the nodes hot, since each node only sees
+     * the data of its own keys.
+     * <p>
+     * This is an optional feature, meaning that message brokers are not required to use it.
+     * </p>
+     *
+     * @return the routing key or an empty {@code Optional}.
+     */
+    @NotNull
+    default Optional<String> getRoutingKey() {
+        return Optional.empty();
+    }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Exception thrown when a {@link MessageBroker} refuses to hand a {@link Message} over to its {@link MessageHandler},
+ * e.g. because the broker is overloaded or because nobody is waiting for the reply anymore. The message has not been
+ * handled when this exception is thrown.
+ */
+@SuppressWarnings("unused")
+public class MessageRejectedException extends RuntimeException {
+
+    private final Class<? extends Message> messageClass;
+
+    /**
+     * Creates a new {@code MessageRejectedException}.
+     *
+     * @param messageClass the class of the message (never {@code null}).
+     * @param reason a description of why the message was rejected (never {@code null}).
+     */
+    public MessageRejectedException(@NotNull Class<? extends Message> messageClass, @NotNull String reason) {
+        super("Message of class " + messageClass.getName() + " was rejected: " + reason);
+        this.messageClass = messageClass;
+    }
+
+    /**
+     * Gets the class of the message that was rejected.
+     *
+     * @return the message class (never {@code null}).
+     */
+    @NotNull
+    public Class<? extends Message> getMessageClass() {
+        return messageClass;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+/**
+ * Marker interface for {@link MessageHandler}s that never block and handle their messages so quickly (e.g. by looking
+ * something up in memory) that handing the message over to another thread would cost more than handling it.
+ * Asynchronous brokers invoke these handlers directly in the thread that subscribes to the reply, in the same way
+ * as {@link MessageBroker#send(Message)} does, instead of using a thread pool.
+ * <p>
+ * Handlers that perform any I/O, acquire locks or may otherwise block should <em>not</em> implement this interface,
+ * since they would then block the thread of the caller.
+ * </p>
+ *
+ * @see AsyncMessageBroker
+ * @see FutureMessageBroker
+ */
+public interface NonBlockingMessageHandler<MESSAGE extends Message<REPLY>, REPLY>
+    extends MessageHandler<MESSAGE, REPLY> {
+}
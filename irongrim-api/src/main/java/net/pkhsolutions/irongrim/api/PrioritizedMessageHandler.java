@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An extended version of the {@link MessageHandler} interface for handlers that want all of their messages to be
+ * handled with a specific {@link Priority}. A priority returned by {@link Message#getPriority()} always takes
+ * precedence over the priority of the handler.
+ *
+ * @see Priority
+ */
+public interface PrioritizedMessageHandler<MESSAGE extends Message<REPLY>, REPLY>
+    extends MessageHandler<MESSAGE, REPLY> {
+
+    /**
+     * Gets the priority to handle messages with when the messages themselves do not specify any priority.
+     *
+     * @return the priority (never {@code null}).
+     */
+    @NotNull
+    Priority getPriority();
+}
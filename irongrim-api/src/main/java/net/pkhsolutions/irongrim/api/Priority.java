@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+/**
+ * Enumeration of the priorities a {@link Message} can be handled with. Brokers that support prioritized handling will
+ * always try to handle messages with a higher priority before messages with a lower priority. Interactive messages
+ * (e.g. queries issued by a user interface) would typically use {@link #HIGH} whereas batch messages would use
+ * {@link #LOW}.
+ *
+ * @see Message#getPriority()
+ * @see PrioritizedMessageHandler
+ */
+public enum Priority {
+
+    /**
+     * Priority for messages that somebody is actively waiting for, such as interactive queries.
+     */
+    HIGH,
+
+    /**
+     * The default priority.
+     */
+    NORMAL,
+
+    /**
+     * Priority for messages that can wait, such as batch commands.
+     */
+    LOW
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Merges the partial replies to a {@link ScatterGatherQuery} into a single reply. Partial replies are merged in the
+ * order they arrive, which is not necessarily the order of the handlers, so the reduction should be associative and
+ * commutative.
+ *
+ * @param <REPLY> the type of the replies.
+ */
+@FunctionalInterface
+public interface ReplyReducer<REPLY> {
+
+    /**
+     * Merges a partial reply into the replies merged so far. Implementations may return a new object or modify and
+     * return {@code accumulated}, since the broker never invokes the reducer concurrently for the same query.
+     *
+     * @param accumulated the replies merged so far (this is the first partial reply when the second one arrives).
+     * @param partial the partial reply that just arrived.
+     * @return the merged reply.
+     */
+    REPLY reduce(REPLY accumulated, REPLY partial);
+
+    /**
+     * Checks whether the replies merged so far are enough to answer the query, in which case the broker completes the
+     * query right away instead of waiting for the remaining handlers. This can be used for e.g. "find any" queries.
+     * This default implementation always returns false.
+     *
+     * @param accumulated the replies merged so far.
+     * @return true if the query can be completed early, false to wait for the remaining handlers.
+     */
+    default boolean isComplete(@NotNull REPLY accumulated) {
+        return false;
+    }
+}
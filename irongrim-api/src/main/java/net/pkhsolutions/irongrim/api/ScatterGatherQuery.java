@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Interface for queries whose data is sharded over several {@link MessageHandler}s. Instead of being handled by the
+ * first handler that supports it, a scatter-gather query is sent to <em>all</em> the handlers that support it and the
+ * partial replies are merged by the {@link #getReplyReducer() reducer} of the query. Brokers that support
+ * asynchronous message handling send the query to all the handlers concurrently, which means that the query takes as
+ * long as the slowest handler rather than the sum of all handlers.
+ *
+ * @param <RESULT> the type of the result of the query.
+ */
+@SuppressWarnings("unused")
+public interface ScatterGatherQuery<RESULT> extends Query<RESULT> {
+
+    /**
+     * Gets the reducer that merges the partial replies into the final reply. The reducer is not part of the state of
+     * the query, so it does not need to be serializable.
+     *
+     * @return the reducer (never {@code null}).
+     */
+    @NotNull
+    ReplyReducer<RESULT> getReplyReducer();
+
+    /**
+     * Gets an optional timeout for each individual handler. Handlers that have not replied within the timeout are
+     * treated as if they had failed. This is an optional feature, meaning that message brokers are not required to
+     * use it.
+     *
+     * @return the timeout, or an empty {@code Optional} to wait for as long as it takes.
+     */
+    @NotNull
+    default Optional<Duration> getShardTimeout() {
+        return Optional.empty();
+    }
+
+    /**
+     * Checks whether a reply may be built from the handlers that did reply when some handlers fail or time out. If
+     * not, the query fails as soon as any handler fails.
+     *
+     * @return true to allow partial results, false to require replies from all handlers. Default is false.
+     */
+    default boolean isPartialResultAllowed() {
+        return false;
+    }
+}
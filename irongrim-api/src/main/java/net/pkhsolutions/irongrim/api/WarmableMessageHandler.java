@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import java.util.Collection;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An extended version of the {@link MessageHandler} interface for handlers that provide messages that can be used to
+ * warm up the message broker and the handler itself when the application starts, e.g. to get the dispatch path
+ * compiled by the JIT compiler and any caches of the handler populated before real messages start arriving.
+ * <p>
+ * The warm-up messages are sent through the broker just like any other messages, many times over, so they must not
+ * have any side effects. In practice, this means that they should be {@link Query queries}.
+ * </p>
+ */
+public interface WarmableMessageHandler<MESSAGE extends Message<REPLY>, REPLY> extends MessageHandler<MESSAGE, REPLY> {
+
+    /**
+     * Gets the messages to warm up with.
+     *
+     * @return a collection of messages that this handler supports (never {@code null}, may be empty).
+     */
+    @NotNull
+    Collection<MESSAGE> getWarmUpMessages();
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.api;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for {@link Attachment}.
+ */
+public class AttachmentTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void of_bufferWithPosition_attachmentIsAViewOfRemainingContent() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 });
+        buffer.position(1);
+
+        final Attachment attachment = Attachment.of(buffer);
+        buffer.put(3, (byte) 9);
+
+        assertEquals(3, attachment.getSize());
+        assertEquals(ByteBuffer.wrap(new byte[] { 2, 3, 9 }), attachment.getContent());
+        assertTrue(attachment.getContent().isReadOnly());
+        assertEquals(1, buffer.position());
+    }
+
+    @Test
+    public void openChannel_fileRegion_onlyRegionIsRead() throws IOException {
+        final Path file = temporaryFolder.newFile().toPath();
+        Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6 });
+        final Attachment attachment = Attachment.ofFileRegion(file, 2, 3);
+
+        final ByteBuffer destination = ByteBuffer.allocate(10);
+        try (ReadableByteChannel channel = attachment.openChannel()) {
+            while (channel.read(destination) >= 0) {
+                // Keep reading until the end of the region
+            }
+        }
+
+        destination.flip();
+        assertEquals(ByteBuffer.wrap(new byte[] { 3, 4, 5 }), destination);
+        assertEquals(ByteBuffer.wrap(new byte[] { 3, 4, 5 }), attachment.getContent());
+    }
+
+    @Test
+    public void serialize_bufferAttachment_contentIsSerialized() throws Exception {
+        final Attachment attachment = Attachment.of(ByteBuffer.wrap(new byte[200_000]));
+
+        final Attachment copy = serializeAndDeserialize(attachment);
+
+        assertEquals(200_000, copy.getSize());
+        assertEquals(attachment.getContent(), copy.getContent());
+        assertFalse(copy.getFile().isPresent());
+    }
+
+    @Test
+    public void serialize_fileAttachment_onlyReferenceIsSerialized() throws Exception {
+        final Path file = temporaryFolder.newFile().toPath();
+        Files.write(file, new byte[] { 1, 2, 3 });
+
+        final Attachment copy = serializeAndDeserialize(Attachment.ofFile(file));
+
+        assertEquals(file.toAbsolutePath(), copy.getFile().get());
+        Files.write(file, new byte[] { 4, 5, 6 });
+        assertEquals(ByteBuffer.wrap(new byte[] { 4, 5, 6 }), copy.getContent());
+    }
+
+    private static Attachment serializeAndDeserialize(Attachment attachment) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(attachment);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (Attachment) in.readObject();
+        }
+    }
+}
@@ -15,8 +15,10 @@
  */
 package net.pkhsolutions.irongrim.api;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNull;
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.Instant;
 
 import org.junit.Test;
 
@@ -51,4 +53,33 @@ public class ContextTest {
         assertEquals("hello", context.getAttribute(String.class));
         assertEquals("world", copy.getAttribute(String.class));
     }
+
+    @Test
+    public void copyConstructor_originalHasDeadline_deadlineIsCopied() {
+        Instant deadline = Instant.now().plusSeconds(10);
+        Context copy = new Context(new Context().setDeadline(deadline));
+        assertEquals(deadline, copy.getDeadline().get());
+    }
+
+    @Test
+    public void setTimeout_earlierDeadlineAlreadySet_deadlineIsNotExtended() {
+        Instant deadline = Instant.now().plusSeconds(1);
+        Context context = new Context().setDeadline(deadline);
+        context.setTimeout(Duration.ofMinutes(1));
+        assertEquals(deadline, context.getDeadline().get());
+    }
+
+    @Test
+    public void isExpired_deadlineInThePast_contextIsExpiredAndNoTimeRemains() {
+        Context context = new Context().setDeadline(Instant.now().minusSeconds(1));
+        assertTrue(context.isExpired());
+        assertEquals(Duration.ZERO, context.getRemainingTime().get());
+    }
+
+    @Test
+    public void isExpired_noDeadline_contextIsNotExpired() {
+        Context context = new Context();
+        assertFalse(context.isExpired());
+        assertFalse(context.getRemainingTime().isPresent());
+    }
 }
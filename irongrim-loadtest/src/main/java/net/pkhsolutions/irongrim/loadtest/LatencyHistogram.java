@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Histogram of latencies in nanoseconds that can be recorded into concurrently by several threads. The histogram uses
+ * log-linear buckets: values below 256 are recorded exactly, larger values are recorded with a relative error of less
+ * than 1% (two significant decimal digits), the same way as HdrHistogram does. The whole range of {@code long} values
+ * is covered by 7296 buckets.
+ */
+@SuppressWarnings("unused")
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalValue = new LongAdder();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Records the specified value. Negative values are recorded as zero.
+     *
+     * @param value the value to record, typically a latency in nanoseconds.
+     */
+    public void record(long value) {
+        final long nonNegativeValue = Math.max(0, value);
+        counts.incrementAndGet(indexOf(nonNegativeValue));
+        totalCount.increment();
+        totalValue.add(nonNegativeValue);
+        maxValue.accumulateAndGet(nonNegativeValue, Math::max);
+    }
+
+    /**
+     * Gets the number of recorded values.
+     */
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    /**
+     * Gets the largest recorded value, or 0 if no values have been recorded.
+     */
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /**
+     * Gets the mean of the recorded values, or 0 if no values have been recorded.
+     */
+    public double getMean() {
+        final long count = getCount();
+        return count == 0 ? 0 : (double) totalValue.sum() / count;
+    }
+
+    /**
+     * Gets the value at the specified percentile, i.e. the smallest value that the given percentage of the recorded
+     * values are less than or equal to (within the precision of the histogram).
+     *
+     * @param percentile the percentile (0.0-100.0).
+     * @return the value, or 0 if no values have been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("The percentile must be between 0 and 100");
+        }
+        final long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        final long targetCount = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long cumulativeCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            cumulativeCount += counts.get(i);
+            if (cumulativeCount >= targetCount) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Creates a copy of this histogram. Values recorded while the copy is being made may or may not be included.
+     *
+     * @return the copy (never {@code null}).
+     */
+    @NotNull
+    public LatencyHistogram copy() {
+        final LatencyHistogram copy = new LatencyHistogram();
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            final long bucketCount = counts.get(i);
+            copy.counts.set(i, bucketCount);
+            count += bucketCount;
+        }
+        copy.totalCount.add(count);
+        copy.totalValue.add(totalValue.sum());
+        copy.maxValue.set(maxValue.get());
+        return copy;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int exponent = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return exponent * SUB_BUCKET_HALF_COUNT + (int) (value >>> exponent);
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKET_HALF_COUNT - 1;
+        final long subBucket = index - exponent * SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << exponent) - 1;
+    }
+}
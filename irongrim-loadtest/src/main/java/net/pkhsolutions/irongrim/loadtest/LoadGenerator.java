@@ -0,0 +1,281 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.loadtest;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import net.pkhsolutions.irongrim.api.AsyncMessageBroker;
+import net.pkhsolutions.irongrim.api.FutureMessageBroker;
+import net.pkhsolutions.irongrim.api.Message;
+import net.pkhsolutions.irongrim.api.MessageBroker;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Open-loop load generator that sends synthetic messages to a {@link MessageBroker} at a fixed arrival rate,
+ * regardless of how quickly the broker replies. This is how real clients behave: they do not wait for the previous
+ * request to complete before sending the next one.
+ * <p>
+ * The latency of every message is measured from the time the message was <em>scheduled</em> to be sent. If the
+ * generator falls behind because the broker blocks it, the messages it sends late are still charged for the time they
+ * should have been waiting, which corrects the measurements for coordinated omission. Measuring from the actual send
+ * time would hide exactly the stalls a load test is supposed to find.
+ * </p>
+ * <p>
+ * Messages are sent using {@link AsyncMessageBroker#sendAsync(Message)} if the broker supports it, otherwise using
+ * {@link FutureMessageBroker#sendFuture(Message)}. Synchronous brokers are driven by a pool of sender threads, see
+ * {@link #setSenderThreads(int)}.
+ * </p>
+ */
+@SuppressWarnings("unused")
+public class LoadGenerator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final long SPIN_THRESHOLD_NANOS = 50_000;
+
+    private final MessageBroker messageBroker;
+    private final MessageMix messageMix;
+    private Duration drainTimeout = Duration.ofSeconds(10);
+    private int senderThreads = 64;
+    private long seed = 42;
+
+    /**
+     * Creates a new {@code LoadGenerator}.
+     *
+     * @param messageBroker the broker to send messages to (never {@code null}). The broker must be able to handle
+     *        {@link SyntheticMessage}s, e.g. by having a {@link SyntheticMessageHandler} in its application context.
+     * @param messageMix the mix of messages to send (never {@code null}).
+     */
+    public LoadGenerator(@NotNull MessageBroker messageBroker, @NotNull MessageMix messageMix) {
+        this.messageBroker = Objects.requireNonNull(messageBroker);
+        this.messageMix = Objects.requireNonNull(messageMix);
+    }
+
+    /**
+     * Sets the time to wait for messages that are still in flight when the last message has been sent. Messages that
+     * have not completed by then are reported as incomplete. Default is 10 seconds.
+     *
+     * @param drainTimeout the timeout (never {@code null}).
+     * @return this generator, to allow for method chaining.
+     */
+    @NotNull
+    public LoadGenerator setDrainTimeout(@NotNull Duration drainTimeout) {
+        this.drainTimeout = Objects.requireNonNull(drainTimeout);
+        return this;
+    }
+
+    /**
+     * Sets the number of threads used for sending messages to brokers that only support synchronous sending. Since
+     * every thread is blocked until its message has been handled, this limits the number of messages in flight.
+     * Default is 64.
+     *
+     * @param senderThreads the number of threads (must be positive).
+     * @return this generator, to allow for method chaining.
+     */
+    @NotNull
+    public LoadGenerator setSenderThreads(int senderThreads) {
+        if (senderThreads < 1) {
+            throw new IllegalArgumentException("The number of sender threads must be positive");
+        }
+        this.senderThreads = senderThreads;
+        return this;
+    }
+
+    /**
+     * Sets the seed of the random number generator that is used to pick messages from the mix, so that runs can be
+     * repeated. Default is 42.
+     *
+     * @param seed the seed.
+     * @return this generator, to allow for method chaining.
+     */
+    @NotNull
+    public LoadGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Sends messages at the specified arrival rate for the specified duration and waits for the messages to complete.
+     *
+     * @param rate the arrival rate in messages per second (must be positive).
+     * @param duration the time to send messages for (never {@code null}).
+     * @return the result (never {@code null}).
+     */
+    @NotNull
+    public LoadTestResult run(double rate, @NotNull Duration duration) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("The rate must be positive");
+        }
+        Objects.requireNonNull(duration);
+        final ExecutorService senderExecutor = isSynchronous() ? Executors.newFixedThreadPool(senderThreads) : null;
+        try {
+            return run(rate, duration, createSender(senderExecutor));
+        } finally {
+            if (senderExecutor != null) {
+                senderExecutor.shutdownNow();
+            }
+        }
+    }
+
+    private LoadTestResult run(double rate, Duration duration, Sender sender) {
+        LOGGER.info("Sending {} message(s) per second for {}", rate, duration);
+        final Random random = new Random(seed);
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final LongAdder failures = new LongAdder();
+        final AtomicLong inFlight = new AtomicLong();
+        final AtomicBoolean finished = new AtomicBoolean();
+        final double intervalNanos = 1e9 / rate;
+        final long start = System.nanoTime();
+        final long end = start + duration.toNanos();
+        long sent = 0;
+        while (true) {
+            final long intendedStartTime = start + (long) (sent * intervalNanos);
+            if (intendedStartTime - end >= 0) {
+                break;
+            }
+            waitUntil(intendedStartTime);
+            inFlight.incrementAndGet();
+            sender.send(messageMix.next(random), error -> {
+                if (!finished.get()) {
+                    latencies.record(System.nanoTime() - intendedStartTime);
+                    if (error != null) {
+                        failures.increment();
+                    }
+                }
+                inFlight.decrementAndGet();
+            });
+            ++sent;
+        }
+        final long drainDeadline = System.nanoTime() + drainTimeout.toNanos();
+        while (inFlight.get() > 0 && System.nanoTime() - drainDeadline < 0) {
+            LockSupport.parkNanos(1_000_000);
+        }
+        finished.set(true);
+        final long elapsed = System.nanoTime() - start;
+        final LoadTestResult result = new LoadTestResult(rate, sent, failures.sum(), Math.max(0, inFlight.get()),
+            Duration.ofNanos(elapsed), latencies.copy());
+        LOGGER.info("Load test finished: {}", result);
+        return result;
+    }
+
+    /**
+     * Runs the generator at increasing arrival rates until a step is no longer sustainable or the max rate has been
+     * reached, in order to find the highest arrival rate the broker can sustain.
+     *
+     * @param config the configuration of the test (never {@code null}).
+     * @return the result (never {@code null}).
+     */
+    @NotNull
+    public StepUpResult stepUp(@NotNull StepUpConfig config) {
+        Objects.requireNonNull(config);
+        final List<LoadTestResult> steps = new ArrayList<>();
+        LoadTestResult maxSustainableStep = null;
+        for (double rate = config.getInitialRate(); rate <= config.getMaxRate(); rate += config.getRateIncrement()) {
+            final LoadTestResult step = run(rate, config.getStepDuration());
+            steps.add(step);
+            if (!config.isSustainable(step)) {
+                LOGGER.info("Arrival rate {}/s is not sustainable", rate);
+                break;
+            }
+            maxSustainableStep = step;
+        }
+        return new StepUpResult(steps, maxSustainableStep);
+    }
+
+    private boolean isSynchronous() {
+        return !(messageBroker instanceof AsyncMessageBroker) && !(messageBroker instanceof FutureMessageBroker);
+    }
+
+    private Sender createSender(ExecutorService senderExecutor) {
+        if (messageBroker instanceof AsyncMessageBroker) {
+            return RxSender.create((AsyncMessageBroker) messageBroker);
+        } else if (messageBroker instanceof FutureMessageBroker) {
+            final FutureMessageBroker futureMessageBroker = (FutureMessageBroker) messageBroker;
+            return (message, onCompleted) -> {
+                try {
+                    futureMessageBroker.sendFuture(message).whenComplete((reply, error) -> onCompleted.accept(error));
+                } catch (RuntimeException ex) {
+                    onCompleted.accept(ex);
+                }
+            };
+        } else {
+            return (message, onCompleted) -> {
+                try {
+                    senderExecutor.execute(() -> {
+                        try {
+                            messageBroker.send(message);
+                            onCompleted.accept(null);
+                        } catch (RuntimeException ex) {
+                            onCompleted.accept(ex);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    onCompleted.accept(ex);
+                }
+            };
+        }
+    }
+
+    private static void waitUntil(long nanoTime) {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Sends a message and invokes the callback with {@code null} once the message has completed successfully, or with
+     * the error if it failed.
+     */
+    @FunctionalInterface
+    private interface Sender {
+        void send(SyntheticMessage message, Consumer<Throwable> onCompleted);
+    }
+
+    /**
+     * Keeps all references to RxJava in a separate class, so that the generator can be used without RxJava on the
+     * classpath.
+     */
+    private static class RxSender {
+
+        static Sender create(AsyncMessageBroker messageBroker) {
+            return (message, onCompleted) -> {
+                try {
+                    messageBroker.sendAsync(message).subscribe(reply -> {
+                    }, onCompleted::accept, () -> onCompleted.accept(null));
+                } catch (RuntimeException ex) {
+                    onCompleted.accept(ex);
+                }
+            };
+        }
+    }
+}
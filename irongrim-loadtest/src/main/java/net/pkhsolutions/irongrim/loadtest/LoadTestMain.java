@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.loadtest;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import net.pkhsolutions.irongrim.local.LocalAsyncMessageBroker;
+import net.pkhsolutions.irongrim.local.PriorityThreadPoolExecutor;
+
+import org.springframework.context.support.StaticApplicationContext;
+
+/**
+ * Runs a step-up load test in-process against a {@link LocalAsyncMessageBroker} backed by a
+ * {@link PriorityThreadPoolExecutor} and prints the results. The message mix consists of 80% queries that keep the
+ * CPU busy for 50 us on average and 20% commands that block for 1 ms on average, both exponentially distributed.
+ * <p>
+ * Usage: {@code LoadTestMain [threads] [initialRate] [rateIncrement] [stepSeconds] [p99LimitMillis]}, with the
+ * defaults {@code 16 1000 1000 10 10}.
+ * </p>
+ */
+public final class LoadTestMain {
+
+    private LoadTestMain() {
+    }
+
+    public static void main(String[] args) {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final StepUpConfig config = new StepUpConfig()
+            .setInitialRate(args.length > 1 ? Double.parseDouble(args[1]) : 1000)
+            .setRateIncrement(args.length > 2 ? Double.parseDouble(args[2]) : 1000)
+            .setStepDuration(Duration.ofSeconds(args.length > 3 ? Long.parseLong(args[3]) : 10))
+            .setPercentile(99)
+            .setMaxLatency(Duration.ofMillis(args.length > 4 ? Long.parseLong(args[4]) : 10));
+        final MessageMix messageMix = new MessageMix()
+            .addQueries(80, ServiceTime.exponential(Duration.ofNanos(50_000)), false)
+            .addCommands(20, ServiceTime.exponential(Duration.ofMillis(1)), true);
+
+        final StaticApplicationContext applicationContext = new StaticApplicationContext();
+        applicationContext.getBeanFactory().registerSingleton("syntheticMessageHandler", new SyntheticMessageHandler());
+        applicationContext.refresh();
+        final PriorityThreadPoolExecutor executor = new PriorityThreadPoolExecutor(threads, 100, TimeUnit.MILLISECONDS);
+        try {
+            final LocalAsyncMessageBroker broker = new LocalAsyncMessageBroker(applicationContext, executor);
+            final LoadGenerator generator = new LoadGenerator(broker, messageMix);
+            System.out.printf("Warming up%n");
+            generator.run(config.getInitialRate(), config.getStepDuration());
+            final StepUpResult result = generator.stepUp(config);
+            for (LoadTestResult step : result.getSteps()) {
+                System.out.println(step.getReport());
+            }
+            System.out.printf("Max sustainable rate with p%.0f <= %d ms: %.0f messages/s%n", config.getPercentile(),
+                config.getMaxLatency().toMillis(), result.getMaxSustainableRate());
+        } finally {
+            executor.shutdownNow();
+            applicationContext.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.loadtest;
+
+import java.time.Duration;
+import java.util.Objects;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Result of running the {@link LoadGenerator} at a fixed arrival rate. All latencies are measured from the time the
+ * message was <em>scheduled</em> to be sent, not from the time it was actually sent, so the latencies include any time
+ * the generator was held back by a slow broker (i.e. they are corrected for coordinated omission).
+ */
+@SuppressWarnings("unused")
+public class LoadTestResult {
+
+    private static final double[] REPORTED_PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+    private final double targetRate;
+    private final long sentCount;
+    private final long failedCount;
+    private final long incompleteCount;
+    private final Duration elapsedTime;
+    private final LatencyHistogram latencies;
+
+    LoadTestResult(double targetRate, long sentCount, long failedCount, long incompleteCount,
+        @NotNull Duration elapsedTime, @NotNull LatencyHistogram latencies) {
+        this.targetRate = targetRate;
+        this.sentCount = sentCount;
+        this.failedCount = failedCount;
+        this.incompleteCount = incompleteCount;
+        this.elapsedTime = Objects.requireNonNull(elapsedTime);
+        this.latencies = Objects.requireNonNull(latencies);
+    }
+
+    /**
+     * Gets the arrival rate the generator tried to achieve, in messages per second.
+     */
+    public double getTargetRate() {
+        return targetRate;
+    }
+
+    /**
+     * Gets the number of messages that were sent.
+     */
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * Gets the number of messages that were completed, successfully or not.
+     */
+    public long getCompletedCount() {
+        return latencies.getCount();
+    }
+
+    /**
+     * Gets the number of messages that were completed with an error.
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Gets the number of messages that were still in flight when the generator stopped waiting for them.
+     */
+    public long getIncompleteCount() {
+        return incompleteCount;
+    }
+
+    /**
+     * Gets the time from the first scheduled message until the last message was completed.
+     */
+    @NotNull
+    public Duration getElapsedTime() {
+        return elapsedTime;
+    }
+
+    /**
+     * Gets the number of completed messages per second.
+     */
+    public double getThroughput() {
+        return getCompletedCount() * 1e9 / Math.max(1, elapsedTime.toNanos());
+    }
+
+    /**
+     * Gets the latencies of all completed messages.
+     */
+    @NotNull
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Gets the latency at the specified percentile.
+     *
+     * @param percentile the percentile (0.0-100.0).
+     * @return the latency (never {@code null}).
+     */
+    @NotNull
+    public Duration getLatencyAtPercentile(double percentile) {
+        return Duration.ofNanos(latencies.getValueAtPercentile(percentile));
+    }
+
+    /**
+     * Creates a human readable report of this result.
+     *
+     * @return the report (never {@code null}).
+     */
+    @NotNull
+    public String getReport() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("target rate %.0f/s, throughput %.0f/s, sent %d, completed %d, failed %d, "
+            + "incomplete %d%n", targetRate, getThroughput(), sentCount, getCompletedCount(), failedCount,
+            incompleteCount));
+        sb.append(String.format("  latency (us): mean %.1f", latencies.getMean() / 1000));
+        for (double percentile : REPORTED_PERCENTILES) {
+            sb.append(String.format(", p%s %.1f", formatPercentile(percentile),
+                latencies.getValueAtPercentile(percentile) / 1000.0));
+        }
+        sb.append(String.format(", max %.1f", latencies.getMax() / 1000.0));
+        return sb.toString();
+    }
+
+    private static String formatPercentile(double percentile) {
+        return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+    }
+
+    @Override
+    public String toString() {
+        return getReport();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Weighted mix of {@link SyntheticCommand}s and {@link SyntheticQuery}s to generate. Every entry of the mix has a
+ * weight, a {@link ServiceTime} distribution and a flag telling whether the handler should block or keep the CPU busy.
+ * The mix is mutable and should not be changed while a load test is running.
+ */
+@SuppressWarnings("unused")
+public class MessageMix {
+
+    private final List<Entry> entries = new ArrayList<>();
+    private double totalWeight;
+
+    /**
+     * Adds synthetic commands to the mix.
+     *
+     * @param weight the relative weight of the commands (must be positive).
+     * @param serviceTime the service time distribution of the commands (never {@code null}).
+     * @param blocking true if the handler should block while handling the commands, false if it should spin.
+     * @return this mix, to allow for method chaining.
+     */
+    @NotNull
+    public MessageMix addCommands(double weight, @NotNull ServiceTime serviceTime, boolean blocking) {
+        return add(weight, serviceTime, blocking, SyntheticCommand::new);
+    }
+
+    /**
+     * Adds synthetic queries to the mix.
+     *
+     * @param weight the relative weight of the queries (must be positive).
+     * @param serviceTime the service time distribution of the queries (never {@code null}).
+     * @param blocking true if the handler should block while handling the queries, false if it should spin.
+     * @return this mix, to allow for method chaining.
+     */
+    @NotNull
+    public MessageMix addQueries(double weight, @NotNull ServiceTime serviceTime, boolean blocking) {
+        return add(weight, serviceTime, blocking, SyntheticQuery::new);
+    }
+
+    private MessageMix add(double weight, ServiceTime serviceTime, boolean blocking, MessageFactory factory) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("The weight must be positive");
+        }
+        totalWeight += weight;
+        entries.add(new Entry(totalWeight, Objects.requireNonNull(serviceTime), blocking, factory));
+        return this;
+    }
+
+    /**
+     * Creates the next message of the mix.
+     *
+     * @param random the random number generator to use (never {@code null}).
+     * @return the message (never {@code null}).
+     * @throws IllegalStateException if the mix is empty.
+     */
+    @NotNull
+    public SyntheticMessage next(@NotNull Random random) {
+        if (entries.isEmpty()) {
+            throw new IllegalStateException("The message mix is empty");
+        }
+        final double point = random.nextDouble() * totalWeight;
+        for (Entry entry : entries) {
+            if (point < entry.cumulativeWeight) {
+                return entry.create(random);
+            }
+        }
+        return entries.get(entries.size() - 1).create(random);
+    }
+
+    @FunctionalInterface
+    private interface MessageFactory {
+        SyntheticMessage create(long serviceTimeNanos, boolean blocking);
+    }
+
+    private static class Entry {
+        final double cumulativeWeight;
+        final ServiceTime serviceTime;
+        final boolean blocking;
+        final MessageFactory factory;
+
+        Entry(double cumulativeWeight, ServiceTime serviceTime, boolean blocking, MessageFactory factory) {
+            this.cumulativeWeight = cumulativeWeight;
+            this.serviceTime = serviceTime;
+            this.blocking = blocking;
+            this.factory = factory;
+        }
+
+        SyntheticMessage create(Random random) {
+            return factory.create(serviceTime.nextNanos(random), blocking);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.loadtest;
+
+import java.time.Duration;
+import java.util.Random;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Distribution of the service times of synthetic messages, i.e. how long the {@link SyntheticMessageHandler} takes to
+ * handle them.
+ */
+@FunctionalInterface
+public interface ServiceTime {
+
+    /**
+     * Draws the next service time from the distribution.
+     *
+     * @param random the random number generator to use (never {@code null}).
+     * @return the service time in nanoseconds.
+     */
+    long nextNanos(@NotNull Random random);
+
+    /**
+     * Creates a distribution where every message has the same service time.
+     *
+     * @param serviceTime the service time (never {@code null}).
+     * @return the distribution (never {@code null}).
+     */
+    @NotNull
+    static ServiceTime fixed(@NotNull Duration serviceTime) {
+        final long nanos = serviceTime.toNanos();
+        return random -> nanos;
+    }
+
+    /**
+     * Creates an exponential distribution with the specified mean, which results in occasional messages that take
+     * much longer to handle than the average message.
+     *
+     * @param mean the mean service time (never {@code null}).
+     * @return the distribution (never {@code null}).
+     */
+    @NotNull
+    static ServiceTime exponential(@NotNull Duration mean) {
+        final double meanNanos = mean.toNanos();
+        return random -> (long) (-Math.log(1 - random.nextDouble()) * meanNanos);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.loadtest;
+
+import java.time.Duration;
+import java.util.Objects;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Configuration of a step-up load test, see {@link LoadGenerator#stepUp(StepUpConfig)}. A step is considered
+ * sustainable if no messages failed or were left incomplete, the throughput kept up with the target rate and the
+ * latency at the configured percentile stayed within the configured limit.
+ */
+@SuppressWarnings("unused")
+public class StepUpConfig {
+
+    private double initialRate = 1000;
+    private double rateIncrement = 1000;
+    private double maxRate = 1_000_000;
+    private Duration stepDuration = Duration.ofSeconds(10);
+    private double percentile = 99;
+    private Duration maxLatency = Duration.ofMillis(10);
+    private double minThroughputRatio = 0.95;
+
+    /**
+     * Gets the arrival rate of the first step, in messages per second. Default is 1000.
+     */
+    public double getInitialRate() {
+        return initialRate;
+    }
+
+    /**
+     * @see #getInitialRate()
+     */
+    @NotNull
+    public StepUpConfig setInitialRate(double initialRate) {
+        if (initialRate <= 0) {
+            throw new IllegalArgumentException("The initial rate must be positive");
+        }
+        this.initialRate = initialRate;
+        return this;
+    }
+
+    /**
+     * Gets the amount the arrival rate is increased by for every step, in messages per second. Default is 1000.
+     */
+    public double getRateIncrement() {
+        return rateIncrement;
+    }
+
+    /**
+     * @see #getRateIncrement()
+     */
+    @NotNull
+    public StepUpConfig setRateIncrement(double rateIncrement) {
+        if (rateIncrement <= 0) {
+            throw new IllegalArgumentException("The rate increment must be positive");
+        }
+        this.rateIncrement = rateIncrement;
+        return this;
+    }
+
+    /**
+     * Gets the arrival rate at which to stop even if the broker can still keep up. Default is 1000000.
+     */
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * @see #getMaxRate()
+     */
+    @NotNull
+    public StepUpConfig setMaxRate(double maxRate) {
+        if (maxRate <= 0) {
+            throw new IllegalArgumentException("The max rate must be positive");
+        }
+        this.maxRate = maxRate;
+        return this;
+    }
+
+    /**
+     * Gets the duration of every step. Default is 10 seconds.
+     */
+    @NotNull
+    public Duration getStepDuration() {
+        return stepDuration;
+    }
+
+    /**
+     * @see #getStepDuration()
+     */
+    @NotNull
+    public StepUpConfig setStepDuration(@NotNull Duration stepDuration) {
+        this.stepDuration = Objects.requireNonNull(stepDuration);
+        return this;
+    }
+
+    /**
+     * Gets the percentile (0.0-100.0) whose latency must stay within {@link #getMaxLatency()}. Default is 99.
+     */
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * @see #getPercentile()
+     */
+    @NotNull
+    public StepUpConfig setPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("The percentile must be between 0 and 100");
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * Gets the highest acceptable latency at {@link #getPercentile()}. Default is 10 ms.
+     */
+    @NotNull
+    public Duration getMaxLatency() {
+        return maxLatency;
+    }
+
+    /**
+     * @see #getMaxLatency()
+     */
+    @NotNull
+    public StepUpConfig setMaxLatency(@NotNull Duration maxLatency) {
+        this.maxLatency = Objects.requireNonNull(maxLatency);
+        return this;
+    }
+
+    /**
+     * Gets the lowest acceptable ratio (0.0-1.0) between the throughput and the target rate. Default is 0.95.
+     */
+    public double getMinThroughputRatio() {
+        return minThroughputRatio;
+    }
+
+    /**
+     * @see #getMinThroughputRatio()
+     */
+    @NotNull
+    public StepUpConfig setMinThroughputRatio(double minThroughputRatio) {
+        if (minThroughputRatio < 0 || minThroughputRatio > 1) {
+            throw new IllegalArgumentException("The min throughput ratio must be between 0 and 1");
+        }
+        this.minThroughputRatio = minThroughputRatio;
+        return this;
+    }
+
+    /**
+     * Checks whether the specified step result is sustainable according to this configuration.
+     *
+     * @param result the result of a step (never {@code null}).
+     * @return true if the step was sustainable, false otherwise.
+     */
+    public boolean isSustainable(@NotNull LoadTestResult result) {
+        return result.getFailedCount() == 0 && result.getIncompleteCount() == 0
+            && result.getThroughput() >= minThroughputRatio * result.getTargetRate()
+            && result.getLatencyAtPercentile(percentile).compareTo(maxLatency) <= 0;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.loadtest;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Result of a step-up load test, see {@link LoadGenerator#stepUp(StepUpConfig)}.
+ */
+@SuppressWarnings("unused")
+public class StepUpResult {
+
+    private final List<LoadTestResult> steps;
+    private final LoadTestResult maxSustainableStep;
+
+    StepUpResult(@NotNull List<LoadTestResult> steps, LoadTestResult maxSustainableStep) {
+        this.steps = Collections.unmodifiableList(Objects.requireNonNull(steps));
+        this.maxSustainableStep = maxSustainableStep;
+    }
+
+    /**
+     * Gets the results of all the steps that were run, in the order they were run.
+     */
+    @NotNull
+    public List<LoadTestResult> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Gets the result of the step with the highest sustainable arrival rate.
+     *
+     * @return the step, or an empty {@code Optional} if not even the first step was sustainable.
+     */
+    @NotNull
+    public Optional<LoadTestResult> getMaxSustainableStep() {
+        return Optional.ofNullable(maxSustainableStep);
+    }
+
+    /**
+     * Gets the highest sustainable arrival rate, in messages per second, or 0 if not even the first step was
+     * sustainable.
+     */
+    public double getMaxSustainableRate() {
+        return maxSustainableStep == null ? 0 : maxSustainableStep.getTargetRate();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.loadtest;
+
+import net.pkhsolutions.irongrim.api.Message;
+
+/**
+ * Base class for synthetic messages that are generated by the {@link LoadGenerator}. The reply to a synthetic message
+ * is the number of nanoseconds the {@link SyntheticMessageHandler} spent on handling it.
+ */
+public abstract class SyntheticMessage implements Message<Long> {
+
+    private final long serviceTimeNanos;
+    private final boolean blocking;
+
+    /**
+     * @param serviceTimeNanos the time the handler should spend on handling the message.
+     * @param blocking true if the handler should block while handling the message (simulating I/O), false if it should
+     *        keep the CPU busy.
+     */
+    SyntheticMessage(long serviceTimeNanos, boolean blocking) {
+        this.serviceTimeNanos = serviceTimeNanos;
+        this.blocking = blocking;
+    }
+
+    /**
+     * Gets the time the handler should spend on handling the message.
+     */
+    public long getServiceTimeNanos() {
+        return serviceTimeNanos;
+    }
+
+    /**
+     * Checks whether the handler should block while handling the message (simulating I/O) instead of keeping the CPU
+     * busy.
+     */
+    public boolean isBlocking() {
+        return blocking;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[serviceTimeNanos=%d, blocking=%b]", getClass().getSimpleName(), serviceTimeNanos,
+            blocking);
+    }
+}
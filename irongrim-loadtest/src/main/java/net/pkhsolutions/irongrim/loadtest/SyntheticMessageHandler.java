@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.loadtest;
+
+import java.util.concurrent.locks.LockSupport;
+
+import net.pkhsolutions.irongrim.api.Message;
+import net.pkhsolutions.irongrim.api.MessageHandler;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Handler of {@link SyntheticMessage}s that simulates work by either blocking or busy-spinning for the service time
+ * of the message.
+ */
+public class SyntheticMessageHandler implements MessageHandler<SyntheticMessage, Long> {
+
+    @Override
+    public boolean supports(@NotNull Class<? extends Message> messageClass) {
+        return SyntheticMessage.class.isAssignableFrom(messageClass);
+    }
+
+    @Override
+    public Long handleMessage(@NotNull SyntheticMessage message) {
+        final long start = System.nanoTime();
+        final long end = start + message.getServiceTimeNanos();
+        long remaining;
+        while ((remaining = end - System.nanoTime()) > 0) {
+            if (message.isBlocking()) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
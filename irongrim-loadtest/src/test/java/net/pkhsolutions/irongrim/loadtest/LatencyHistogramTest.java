@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.loadtest;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void indexOf_consecutiveValues_bucketsAreContiguousAndCoverTheValues() {
+        int previousIndex = -1;
+        for (long value = 0; value < 1_000_000; ++value) {
+            final int index = LatencyHistogram.indexOf(value);
+            assertTrue(index == previousIndex || index == previousIndex + 1);
+            assertTrue(LatencyHistogram.highestValueOf(index) >= value);
+            previousIndex = index;
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void getValueAtPercentile_uniformValues_valuesAreWithinOnePercent() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1_000_000; ++value) {
+            histogram.record(value * 1000);
+        }
+
+        assertEquals(1_000_000, histogram.getCount());
+        assertEquals(1_000_000_000L, histogram.getMax());
+        assertEquals(500_000_500.0, histogram.getMean(), 0.1);
+        assertEquals(500_000_000, histogram.getValueAtPercentile(50), 5_000_000);
+        assertEquals(990_000_000, histogram.getValueAtPercentile(99), 9_900_000);
+        assertEquals(999_900_000, histogram.getValueAtPercentile(99.99), 9_999_000);
+        assertEquals(1_000_000_000L, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void copy_valuesRecorded_copyHasSameValues() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final Random random = new Random(1);
+        for (int i = 0; i < 10_000; ++i) {
+            histogram.record(random.nextInt(100_000_000));
+        }
+
+        final LatencyHistogram copy = histogram.copy();
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(10_000, copy.getCount());
+        assertEquals(histogram.getValueAtPercentile(90), copy.getValueAtPercentile(90));
+        assertTrue(copy.getMax() < Long.MAX_VALUE);
+    }
+
+    @Test
+    public void getValueAtPercentile_noValues_zeroReturned() {
+        assertEquals(0, new LatencyHistogram().getValueAtPercentile(99));
+    }
+}
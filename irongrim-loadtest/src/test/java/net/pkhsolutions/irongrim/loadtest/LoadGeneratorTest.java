@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.loadtest;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import net.pkhsolutions.irongrim.api.Message;
+import net.pkhsolutions.irongrim.api.MessageBroker;
+import net.pkhsolutions.irongrim.local.LocalAsyncMessageBroker;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.support.StaticApplicationContext;
+
+/**
+ * Unit test for {@link LoadGenerator}.
+ */
+public class LoadGeneratorTest {
+
+    private StaticApplicationContext applicationContext;
+    private ExecutorService executorService;
+    private MessageMix messageMix;
+
+    @Before
+    public void setUp() {
+        applicationContext = new StaticApplicationContext();
+        applicationContext.getBeanFactory().registerSingleton("syntheticMessageHandler", new SyntheticMessageHandler());
+        applicationContext.refresh();
+        executorService = Executors.newFixedThreadPool(4);
+        messageMix = new MessageMix().addQueries(3, ServiceTime.fixed(Duration.ofNanos(10_000)), false)
+            .addCommands(1, ServiceTime.fixed(Duration.ofNanos(100_000)), true);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+        applicationContext.close();
+    }
+
+    @Test
+    public void run_asyncBroker_allMessagesAreSentAndCompleted() {
+        final LoadGenerator generator = new LoadGenerator(
+            new LocalAsyncMessageBroker(applicationContext, executorService), messageMix);
+
+        final LoadTestResult result = generator.run(1000, Duration.ofMillis(500));
+
+        assertEquals(500, result.getSentCount());
+        assertEquals(500, result.getCompletedCount());
+        assertEquals(0, result.getFailedCount());
+        assertEquals(0, result.getIncompleteCount());
+        assertTrue(result.getLatencyAtPercentile(50).compareTo(Duration.ofNanos(10_000)) >= 0);
+    }
+
+    @Test
+    public void run_brokerStallsOnce_stallIsChargedToAllMessagesScheduledDuringIt() {
+        final AtomicBoolean stalled = new AtomicBoolean();
+        final MessageBroker stallingBroker = new MessageBroker() {
+            @Override
+            public <MESSAGE extends Message<REPLY>, REPLY> REPLY send(@NotNull MESSAGE message) {
+                if (stalled.compareAndSet(false, true)) {
+                    LockSupport.parkNanos(Duration.ofMillis(200).toNanos());
+                }
+                return null;
+            }
+        };
+        final LoadGenerator generator = new LoadGenerator(stallingBroker, messageMix).setSenderThreads(1);
+
+        final LoadTestResult result = generator.run(1000, Duration.ofSeconds(1));
+
+        assertEquals(1000, result.getSentCount());
+        assertEquals(1000, result.getCompletedCount());
+        // A closed-loop generator would record a single slow message, but about 200 messages were scheduled during
+        // the stall and had to wait for it, so well over 10% of the messages must show a latency above 100 ms.
+        assertTrue(result.getLatencyAtPercentile(90).compareTo(Duration.ofMillis(100)) >= 0);
+        assertTrue(result.getLatencies().getMax() >= Duration.ofMillis(200).toNanos());
+    }
+
+    @Test
+    public void stepUp_latencyLimitExceeded_stepsStopAtFirstUnsustainableRate() {
+        final MessageBroker slowBroker = new MessageBroker() {
+            @Override
+            public <MESSAGE extends Message<REPLY>, REPLY> REPLY send(@NotNull MESSAGE message) {
+                // Can handle at most 2000 messages per second with a single sender thread
+                LockSupport.parkNanos(500_000);
+                return null;
+            }
+        };
+        final LoadGenerator generator = new LoadGenerator(slowBroker, messageMix).setSenderThreads(1);
+
+        final StepUpResult result = generator.stepUp(new StepUpConfig().setInitialRate(200).setRateIncrement(2000)
+            .setMaxRate(10_000).setStepDuration(Duration.ofMillis(500)).setMaxLatency(Duration.ofMillis(50)));
+
+        assertEquals(2, result.getSteps().size());
+        assertEquals(200, result.getMaxSustainableRate(), 0.0);
+    }
+}
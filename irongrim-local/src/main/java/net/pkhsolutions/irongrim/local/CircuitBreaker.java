@@ -0,0 +1,348 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.*;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lock-free circuit breaker that keeps track of the outcome of the most recent calls in a count-based sliding window.
+ * When the failure rate or the slow call rate reaches its threshold, the circuit breaker opens and stops permitting
+ * calls. After a while it becomes half-open and permits a limited number of probe calls. If all of them succeed, the
+ * circuit breaker closes again; if any of them fails or is slow, the circuit breaker opens again.
+ * <p>
+ * Callers must first {@link #tryAcquirePermission() acquire a permission} and then either report the outcome of the
+ * call, or {@link #releasePermission(Generation) release} the permission if the call was never made. A permission is
+ * granted for the {@link Generation generation} of the state the circuit breaker was in at the time, and outcomes and
+ * releases are ignored once the circuit breaker has left that generation. A call that was permitted while the circuit
+ * breaker was closed can therefore never be counted as a half-open probe, no matter how long it takes.
+ * </p>
+ *
+ * @see CircuitBreakerRegistry
+ */
+@SuppressWarnings("unused")
+public class CircuitBreaker {
+
+    /**
+     * Enumeration of the states of a circuit breaker.
+     */
+    public enum State {
+        /**
+         * All calls are permitted.
+         */
+        CLOSED,
+        /**
+         * No calls are permitted.
+         */
+        OPEN,
+        /**
+         * A limited number of probe calls are permitted.
+         */
+        HALF_OPEN
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final String name;
+    private final CircuitBreakerConfig config;
+    private final List<CircuitBreakerListener> listeners;
+    private final SlidingWindow slidingWindow;
+    private final AtomicReference<Generation> state = new AtomicReference<>(new Generation(State.CLOSED, 0));
+    private final AtomicInteger halfOpenPermits = new AtomicInteger();
+    private final AtomicInteger halfOpenSuccesses = new AtomicInteger();
+    private final LongAdder notPermittedCalls = new LongAdder();
+    private final long slowCallNanos;
+    private final long waitNanosInOpenState;
+
+    /**
+     * Creates a new {@code CircuitBreaker}.
+     *
+     * @param name the name of the circuit breaker, used for logging and metrics (never {@code null}).
+     * @param config the configuration of the circuit breaker (never {@code null}).
+     * @param listeners the listeners to notify of state transitions (never {@code null}).
+     */
+    public CircuitBreaker(@NotNull String name, @NotNull CircuitBreakerConfig config,
+        @NotNull List<CircuitBreakerListener> listeners) {
+        this.name = Objects.requireNonNull(name);
+        this.config = Objects.requireNonNull(config);
+        this.listeners = Objects.requireNonNull(listeners);
+        this.slidingWindow = new SlidingWindow(config.getSlidingWindowSize());
+        this.slowCallNanos = config.getSlowCallDurationThreshold().toNanos();
+        this.waitNanosInOpenState = config.getWaitDurationInOpenState().toNanos();
+    }
+
+    /**
+     * Gets the name of this circuit breaker.
+     */
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the current state of this circuit breaker. An open circuit breaker whose wait duration has passed is
+     * reported as open until the next call tries to acquire a permission.
+     */
+    @NotNull
+    public State getState() {
+        return state.get().state;
+    }
+
+    /**
+     * Gets the failure rate (0.0-1.0) of the calls in the sliding window.
+     */
+    public float getFailureRate() {
+        return slidingWindow.getFailureRate();
+    }
+
+    /**
+     * Gets the slow call rate (0.0-1.0) of the calls in the sliding window.
+     */
+    public float getSlowCallRate() {
+        return slidingWindow.getSlowCallRate();
+    }
+
+    /**
+     * Gets the number of calls that have been rejected because the circuit breaker was open.
+     */
+    public long getNotPermittedCallCount() {
+        return notPermittedCalls.sum();
+    }
+
+    /**
+     * Tries to acquire a permission to make a call. This method never blocks.
+     *
+     * @return the generation the permission was granted in, which must be passed to {@link #onSuccess(Generation,
+     * long)}, {@link #onError(Generation, long)} or {@link #releasePermission(Generation)}, or {@code null} if the call
+     * should be rejected.
+     */
+    @Nullable
+    public Generation tryAcquirePermission() {
+        while (true) {
+            final Generation current = state.get();
+            switch (current.state) {
+            case CLOSED:
+                return current;
+            case OPEN:
+                if (System.nanoTime() - current.since < waitNanosInOpenState) {
+                    notPermittedCalls.increment();
+                    return null;
+                }
+                transition(current, State.HALF_OPEN);
+                break;
+            case HALF_OPEN:
+                int permits;
+                do {
+                    permits = halfOpenPermits.get();
+                    if (permits <= 0) {
+                        notPermittedCalls.increment();
+                        return null;
+                    }
+                } while (!halfOpenPermits.compareAndSet(permits, permits - 1));
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Releases a permission that was acquired for a call that was never made. Only half-open permits of the current
+     * generation are handed out again.
+     *
+     * @param permission the generation returned by {@link #tryAcquirePermission()} (never {@code null}).
+     */
+    public void releasePermission(@NotNull Generation permission) {
+        Objects.requireNonNull(permission);
+        if (permission.state == State.HALF_OPEN && state.get() == permission) {
+            halfOpenPermits.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a successful call.
+     *
+     * @param permission the generation returned by {@link #tryAcquirePermission()} (never {@code null}).
+     * @param durationNanos the duration of the call in nanoseconds.
+     */
+    public void onSuccess(@NotNull Generation permission, long durationNanos) {
+        record(Objects.requireNonNull(permission), false, durationNanos >= slowCallNanos);
+    }
+
+    /**
+     * Records a failed call.
+     *
+     * @param permission the generation returned by {@link #tryAcquirePermission()} (never {@code null}).
+     * @param durationNanos the duration of the call in nanoseconds.
+     */
+    public void onError(@NotNull Generation permission, long durationNanos) {
+        record(Objects.requireNonNull(permission), true, durationNanos >= slowCallNanos);
+    }
+
+    private void record(Generation permission, boolean failure, boolean slow) {
+        if (state.get() != permission) {
+            // Late outcomes of calls that were permitted in an earlier generation are ignored.
+            return;
+        }
+        switch (permission.state) {
+        case CLOSED:
+            slidingWindow.record(failure, slow);
+            if (slidingWindow.getNumberOfCalls() >= config.getMinimumNumberOfCalls()
+                && (slidingWindow.getFailureRate() >= config.getFailureRateThreshold()
+                    || slidingWindow.getSlowCallRate() >= config.getSlowCallRateThreshold())) {
+                transition(permission, State.OPEN);
+            }
+            break;
+        case HALF_OPEN:
+            if (failure || slow) {
+                transition(permission, State.OPEN);
+            } else if (halfOpenSuccesses.incrementAndGet() >= config.getPermittedNumberOfCallsInHalfOpenState()) {
+                transition(permission, State.CLOSED);
+            }
+            break;
+        default:
+            // No permissions are granted in the open state.
+        }
+    }
+
+    /**
+     * Changes the state if the circuit breaker is still in the {@code from} generation. Only the thread whose change
+     * succeeds prepares the new state, so that a thread that lost the race can never e.g. hand out a second round of
+     * half-open permits. The half-open permits are zeroed when the circuit breaker opens, which means that calls made
+     * between the change to {@link State#HALF_OPEN} and the handing out of the permits are rejected.
+     */
+    private boolean transition(Generation from, State to) {
+        if (state.compareAndSet(from, new Generation(to, System.nanoTime()))) {
+            switch (to) {
+            case OPEN:
+                halfOpenPermits.set(0);
+                slidingWindow.reset();
+                break;
+            case HALF_OPEN:
+                halfOpenSuccesses.set(0);
+                halfOpenPermits.set(config.getPermittedNumberOfCallsInHalfOpenState());
+                break;
+            default:
+                slidingWindow.reset();
+            }
+            LOGGER.info("Circuit breaker {} changed state from {} to {}", name, from.state, to);
+            for (CircuitBreakerListener listener : listeners) {
+                try {
+                    listener.onStateTransition(this, from.state, to);
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Circuit breaker listener {} threw an exception", listener, ex);
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[name=%s, state=%s]", getClass().getSimpleName(), name, state.get().state);
+    }
+
+    /**
+     * A state together with the time it was entered, as returned by {@link System#nanoTime()}. Every state change
+     * creates a new generation, even if the circuit breaker returns to a state it has been in before. Keeping the
+     * state and the time in the same reference means that the time the circuit breaker was opened can only be set by
+     * the thread that opened it.
+     */
+    public static final class Generation {
+
+        private final State state;
+        private final long since;
+
+        Generation(State state, long since) {
+            this.state = state;
+            this.since = since;
+        }
+
+        /**
+         * Gets the state of this generation.
+         */
+        @NotNull
+        public State getState() {
+            return state;
+        }
+    }
+
+    /**
+     * Ring buffer of call outcomes. Each slot is updated atomically and the aggregated counters are adjusted with the
+     * difference between the old and the new outcome, so recording never requires a lock. The counters may briefly
+     * be out of sync with the slots under contention, which is acceptable for calculating rates.
+     */
+    private static class SlidingWindow {
+
+        private static final int RECORDED = 1;
+        private static final int FAILED = 2;
+        private static final int SLOW = 4;
+
+        private final AtomicIntegerArray outcomes;
+        private final AtomicLong cursor = new AtomicLong();
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger failedCalls = new AtomicInteger();
+        private final AtomicInteger slowCalls = new AtomicInteger();
+
+        SlidingWindow(int size) {
+            outcomes = new AtomicIntegerArray(size);
+        }
+
+        void record(boolean failure, boolean slow) {
+            final int outcome = RECORDED | (failure ? FAILED : 0) | (slow ? SLOW : 0);
+            final int index = (int) (cursor.getAndIncrement() % outcomes.length());
+            adjust(outcomes.getAndSet(index, outcome), -1);
+            adjust(outcome, 1);
+        }
+
+        void reset() {
+            for (int i = 0; i < outcomes.length(); ++i) {
+                adjust(outcomes.getAndSet(i, 0), -1);
+            }
+        }
+
+        private void adjust(int outcome, int delta) {
+            if ((outcome & RECORDED) != 0) {
+                calls.addAndGet(delta);
+                if ((outcome & FAILED) != 0) {
+                    failedCalls.addAndGet(delta);
+                }
+                if ((outcome & SLOW) != 0) {
+                    slowCalls.addAndGet(delta);
+                }
+            }
+        }
+
+        int getNumberOfCalls() {
+            return calls.get();
+        }
+
+        float getFailureRate() {
+            final int n = calls.get();
+            return n <= 0 ? 0.0f : (float) failedCalls.get() / n;
+        }
+
+        float getSlowCallRate() {
+            final int n = calls.get();
+            return n <= 0 ? 0.0f : (float) slowCalls.get() / n;
+        }
+    }
+}
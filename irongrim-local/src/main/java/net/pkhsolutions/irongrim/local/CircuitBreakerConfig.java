@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.time.Duration;
+import java.util.Objects;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Configuration of a {@link CircuitBreaker}. The configuration is mutable and should therefore not be changed after it
+ * has been handed over to a {@link CircuitBreakerRegistry}.
+ */
+@SuppressWarnings("unused")
+public class CircuitBreakerConfig {
+
+    private int slidingWindowSize = 100;
+    private int minimumNumberOfCalls = 20;
+    private float failureRateThreshold = 0.5f;
+    private float slowCallRateThreshold = 1.0f;
+    private Duration slowCallDurationThreshold = Duration.ofSeconds(5);
+    private Duration waitDurationInOpenState = Duration.ofSeconds(30);
+    private int permittedNumberOfCallsInHalfOpenState = 5;
+
+    /**
+     * Gets the number of most recent calls that are used to calculate the failure and slow call rates. Default is 100.
+     */
+    public int getSlidingWindowSize() {
+        return slidingWindowSize;
+    }
+
+    /**
+     * @see #getSlidingWindowSize()
+     */
+    @NotNull
+    public CircuitBreakerConfig setSlidingWindowSize(int slidingWindowSize) {
+        if (slidingWindowSize < 1) {
+            throw new IllegalArgumentException("The sliding window size must be positive");
+        }
+        this.slidingWindowSize = slidingWindowSize;
+        return this;
+    }
+
+    /**
+     * Gets the number of calls that must have been recorded before the circuit breaker can open. Default is 20.
+     */
+    public int getMinimumNumberOfCalls() {
+        return minimumNumberOfCalls;
+    }
+
+    /**
+     * @see #getMinimumNumberOfCalls()
+     */
+    @NotNull
+    public CircuitBreakerConfig setMinimumNumberOfCalls(int minimumNumberOfCalls) {
+        if (minimumNumberOfCalls < 1) {
+            throw new IllegalArgumentException("The minimum number of calls must be positive");
+        }
+        this.minimumNumberOfCalls = minimumNumberOfCalls;
+        return this;
+    }
+
+    /**
+     * Gets the failure rate (0.0-1.0) at or above which the circuit breaker opens. Default is 0.5.
+     */
+    public float getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * @see #getFailureRateThreshold()
+     */
+    @NotNull
+    public CircuitBreakerConfig setFailureRateThreshold(float failureRateThreshold) {
+        this.failureRateThreshold = checkRate(failureRateThreshold);
+        return this;
+    }
+
+    /**
+     * Gets the slow call rate (0.0-1.0) at or above which the circuit breaker opens. Default is 1.0.
+     */
+    public float getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    /**
+     * @see #getSlowCallRateThreshold()
+     */
+    @NotNull
+    public CircuitBreakerConfig setSlowCallRateThreshold(float slowCallRateThreshold) {
+        this.slowCallRateThreshold = checkRate(slowCallRateThreshold);
+        return this;
+    }
+
+    /**
+     * Gets the duration at or above which a call is considered slow. Default is 5 seconds.
+     */
+    @NotNull
+    public Duration getSlowCallDurationThreshold() {
+        return slowCallDurationThreshold;
+    }
+
+    /**
+     * @see #getSlowCallDurationThreshold()
+     */
+    @NotNull
+    public CircuitBreakerConfig setSlowCallDurationThreshold(@NotNull Duration slowCallDurationThreshold) {
+        this.slowCallDurationThreshold = Objects.requireNonNull(slowCallDurationThreshold);
+        return this;
+    }
+
+    /**
+     * Gets the time the circuit breaker stays open before it starts letting probe calls through. Default is 30
+     * seconds.
+     */
+    @NotNull
+    public Duration getWaitDurationInOpenState() {
+        return waitDurationInOpenState;
+    }
+
+    /**
+     * @see #getWaitDurationInOpenState()
+     */
+    @NotNull
+    public CircuitBreakerConfig setWaitDurationInOpenState(@NotNull Duration waitDurationInOpenState) {
+        this.waitDurationInOpenState = Objects.requireNonNull(waitDurationInOpenState);
+        return this;
+    }
+
+    /**
+     * Gets the number of probe calls that are let through in the half-open state. If all of them succeed, the circuit
+     * breaker closes. Default is 5.
+     */
+    public int getPermittedNumberOfCallsInHalfOpenState() {
+        return permittedNumberOfCallsInHalfOpenState;
+    }
+
+    /**
+     * @see #getPermittedNumberOfCallsInHalfOpenState()
+     */
+    @NotNull
+    public CircuitBreakerConfig setPermittedNumberOfCallsInHalfOpenState(int permittedNumberOfCallsInHalfOpenState) {
+        if (permittedNumberOfCallsInHalfOpenState < 1) {
+            throw new IllegalArgumentException("The number of calls in half-open state must be positive");
+        }
+        this.permittedNumberOfCallsInHalfOpenState = permittedNumberOfCallsInHalfOpenState;
+        return this;
+    }
+
+    private static float checkRate(float rate) {
+        if (rate <= 0.0f || rate > 1.0f) {
+            throw new IllegalArgumentException("Rates must be greater than 0.0 and less than or equal to 1.0");
+        }
+        return rate;
+    }
+}
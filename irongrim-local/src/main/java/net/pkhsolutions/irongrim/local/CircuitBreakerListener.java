@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Listener that is notified whenever a {@link CircuitBreaker} changes its state. This can be used to e.g. publish
+ * metrics or raise alarms.
+ *
+ * @see CircuitBreakerRegistry#addListener(CircuitBreakerListener)
+ */
+@FunctionalInterface
+public interface CircuitBreakerListener {
+
+    /**
+     * Called after the specified circuit breaker has changed its state. This method is invoked by the thread that
+     * caused the transition, so implementations should return quickly.
+     *
+     * @param circuitBreaker the circuit breaker (never {@code null}).
+     * @param from the previous state (never {@code null}).
+     * @param to the new state (never {@code null}).
+     */
+    void onStateTransition(@NotNull CircuitBreaker circuitBreaker, @NotNull CircuitBreaker.State from,
+        @NotNull CircuitBreaker.State to);
+}
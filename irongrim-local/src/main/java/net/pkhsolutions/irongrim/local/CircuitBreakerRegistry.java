@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.pkhsolutions.irongrim.api.Message;
+import net.pkhsolutions.irongrim.api.MessageHandler;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Registry of {@link CircuitBreaker}s used by a {@link LocalMessageBroker}. Circuit breakers are created lazily,
+ * either one for each message type or one for each message handler, depending on the {@link Scope}.
+ *
+ * @see LocalMessageBroker#setCircuitBreakerRegistry(CircuitBreakerRegistry)
+ */
+@SuppressWarnings("unused")
+public class CircuitBreakerRegistry {
+
+    /**
+     * Enumeration of the scopes a circuit breaker can protect.
+     */
+    public enum Scope {
+        /**
+         * One circuit breaker for each message class.
+         */
+        MESSAGE_TYPE,
+        /**
+         * One circuit breaker for each message handler, shared by all the message classes the handler supports.
+         */
+        HANDLER
+    }
+
+    private final CircuitBreakerConfig config;
+    private final Scope scope;
+    private final List<CircuitBreakerListener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<Object, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new {@code CircuitBreakerRegistry}.
+     *
+     * @param config the configuration to use for all circuit breakers (never {@code null}).
+     * @param scope the scope of the circuit breakers (never {@code null}).
+     */
+    public CircuitBreakerRegistry(@NotNull CircuitBreakerConfig config, @NotNull Scope scope) {
+        this.config = Objects.requireNonNull(config);
+        this.scope = Objects.requireNonNull(scope);
+    }
+
+    /**
+     * Adds a listener that will be notified of state transitions of all circuit breakers in this registry.
+     *
+     * @param listener the listener to add (never {@code null}).
+     */
+    public void addListener(@NotNull CircuitBreakerListener listener) {
+        listeners.add(Objects.requireNonNull(listener));
+    }
+
+    /**
+     * Removes a listener previously added with {@link #addListener(CircuitBreakerListener)}.
+     *
+     * @param listener the listener to remove (never {@code null}).
+     */
+    public void removeListener(@NotNull CircuitBreakerListener listener) {
+        listeners.remove(Objects.requireNonNull(listener));
+    }
+
+    /**
+     * Gets the circuit breaker that protects the specified handler when handling the specified message, creating it
+     * if necessary.
+     *
+     * @param message the message (never {@code null}).
+     * @param handler the handler of the message (never {@code null}).
+     * @return the circuit breaker (never {@code null}).
+     */
+    @NotNull
+    public CircuitBreaker getCircuitBreaker(@NotNull Message<?> message, @NotNull MessageHandler<?, ?> handler) {
+        final Object key = scope == Scope.MESSAGE_TYPE ? message.getClass() : handler;
+        return circuitBreakers.computeIfAbsent(key, k -> new CircuitBreaker(
+            scope == Scope.MESSAGE_TYPE ? message.getClass().getName() : handler.toString(), config, listeners));
+    }
+
+    /**
+     * Removes the circuit breaker of the specified handler if the scope is {@link Scope#HANDLER}, so that the circuit
+     * breaker of a handler that is no longer used can be garbage collected. Does nothing for other scopes.
+     *
+     * @param handler the handler whose circuit breaker should be removed (never {@code null}).
+     * @return true if a circuit breaker was removed, false otherwise.
+     */
+    public boolean removeCircuitBreaker(@NotNull MessageHandler<?, ?> handler) {
+        Objects.requireNonNull(handler);
+        return scope == Scope.HANDLER && circuitBreakers.remove(handler) != null;
+    }
+
+    /**
+     * Gets all the circuit breakers that have been created so far, e.g. for publishing metrics.
+     *
+     * @return an unmodifiable collection of circuit breakers (never {@code null}).
+     */
+    @NotNull
+    public Collection<CircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableCollection(circuitBreakers.values());
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lock-free concurrency limiter that adapts the number of messages that may be in flight at the same time to the
+ * measured latency, using a gradient algorithm similar to TCP Vegas.
+ * <p>
+ * The limiter keeps a long-term average of the latency (which approximates the latency of an unloaded system) and
+ * compares it with the average latency of the most recent sample window. As long as the recent latency stays within
+ * the tolerance, the limit grows by roughly the square root of the current limit for each sample window. When queueing
+ * makes the recent latency grow, the limit is reduced in proportion to the ratio between the two, which keeps the
+ * throughput near its maximum without letting latency blow up.
+ * </p>
+ * <p>
+ * Callers must first {@link #tryAcquire() acquire} a slot and then {@link #release(long) release} it once the message
+ * has been handled, passing the measured latency (including any time spent waiting in queues), or
+ * {@link #releaseWithoutSample() release} it without a sample if the message was never handled.
+ * </p>
+ *
+ * @see ConcurrencyLimiterRegistry
+ */
+@SuppressWarnings("unused")
+public class ConcurrencyLimiter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+
+    private final String name;
+    private final ConcurrencyLimiterConfig config;
+    private final long sampleWindowNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlightInWindow = new AtomicInteger();
+    private final AtomicLong sampleSum = new AtomicLong();
+    private final AtomicLong sampleCount = new AtomicLong();
+    private final AtomicLong sampleWindowEnd;
+    private final LongAdder rejected = new LongAdder();
+    private volatile double estimatedLimit;
+    private volatile int limit;
+    private volatile double longTermRtt;
+
+    /**
+     * Creates a new {@code ConcurrencyLimiter}.
+     *
+     * @param name the name of the limiter, used for logging and metrics (never {@code null}).
+     * @param config the configuration of the limiter (never {@code null}).
+     */
+    public ConcurrencyLimiter(@NotNull String name, @NotNull ConcurrencyLimiterConfig config) {
+        this.name = Objects.requireNonNull(name);
+        this.config = Objects.requireNonNull(config);
+        this.sampleWindowNanos = config.getSampleWindow().toNanos();
+        this.sampleWindowEnd = new AtomicLong(System.nanoTime() + sampleWindowNanos);
+        this.estimatedLimit = config.getInitialLimit();
+        this.limit = config.getInitialLimit();
+    }
+
+    /**
+     * Gets the name of this limiter.
+     */
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the current limit.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gets the number of messages currently in flight.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Gets the number of messages that have been rejected because the limit had been reached.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Tries to acquire a slot for a message. This method never blocks.
+     *
+     * @return true if the message may be handled, false if the limit has been reached.
+     */
+    public boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        maxInFlightInWindow.accumulateAndGet(current + 1, Math::max);
+        return true;
+    }
+
+    /**
+     * Releases a slot and records the latency of the message that occupied it.
+     *
+     * @param rttNanos the time from acquiring the slot until the message was handled, in nanoseconds.
+     */
+    public void release(long rttNanos) {
+        inFlight.decrementAndGet();
+        sampleSum.addAndGet(rttNanos);
+        sampleCount.incrementAndGet();
+        final long now = System.nanoTime();
+        final long windowEnd = sampleWindowEnd.get();
+        if (now - windowEnd >= 0 && sampleWindowEnd.compareAndSet(windowEnd, now + sampleWindowNanos)) {
+            // Only the thread that wins the race to close the window gets here, so the limit is never updated
+            // concurrently.
+            final long count = sampleCount.getAndSet(0);
+            final long sum = sampleSum.getAndSet(0);
+            final int maxInFlight = maxInFlightInWindow.getAndSet(inFlight.get());
+            if (count > 0) {
+                updateLimit((double) sum / count, maxInFlight);
+            }
+        }
+    }
+
+    /**
+     * Releases a slot without recording any latency, e.g. because the message was never handled.
+     */
+    public void releaseWithoutSample() {
+        inFlight.decrementAndGet();
+    }
+
+    private void updateLimit(double shortTermRtt, int maxInFlight) {
+        double longRtt = longTermRtt;
+        if (longRtt == 0.0) {
+            longRtt = shortTermRtt;
+        } else {
+            longRtt += (shortTermRtt - longRtt) / config.getLongTermRttWindowSize();
+            if (longRtt / shortTermRtt > 2.0) {
+                // Latency has dropped a lot, e.g. after recovering from an incident. Let the long-term average catch
+                // up faster so that the limit is not held back by old measurements.
+                longRtt *= 0.95;
+            }
+        }
+        longTermRtt = longRtt;
+
+        final double currentLimit = estimatedLimit;
+        if (maxInFlight < currentLimit / 2) {
+            // The limit was not what held the throughput back, so the samples say nothing about whether it is too
+            // low.
+            return;
+        }
+        final double gradient = Math.max(0.5, Math.min(1.0, config.getRttTolerance() * longRtt / shortTermRtt));
+        double newLimit = currentLimit * gradient + Math.sqrt(currentLimit);
+        newLimit = currentLimit * (1.0 - config.getSmoothing()) + newLimit * config.getSmoothing();
+        newLimit = Math.max(config.getMinLimit(), Math.min(config.getMaxLimit(), newLimit));
+        estimatedLimit = newLimit;
+        final int oldLimit = limit;
+        limit = (int) newLimit;
+        if (limit != oldLimit) {
+            LOGGER.debug("Concurrency limit of {} changed from {} to {} (short-term RTT {} ns, long-term RTT {} ns)",
+                name, oldLimit, limit, (long) shortTermRtt, (long) longRtt);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[name=%s, limit=%d, inFlight=%d]", getClass().getSimpleName(), name, limit,
+            inFlight.get());
+    }
+}
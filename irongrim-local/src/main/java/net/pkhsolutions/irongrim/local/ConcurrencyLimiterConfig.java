@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.time.Duration;
+import java.util.Objects;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Configuration of a {@link ConcurrencyLimiter}. The configuration is mutable and should therefore not be changed
+ * after it has been handed over to a {@link ConcurrencyLimiterRegistry}.
+ */
+@SuppressWarnings("unused")
+public class ConcurrencyLimiterConfig {
+
+    private int initialLimit = 20;
+    private int minLimit = 1;
+    private int maxLimit = 1000;
+    private double smoothing = 0.2;
+    private double rttTolerance = 1.5;
+    private Duration sampleWindow = Duration.ofMillis(100);
+    private int longTermRttWindowSize = 60;
+
+    /**
+     * Gets the limit to start with before any latencies have been measured. Default is 20.
+     */
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    /**
+     * @see #getInitialLimit()
+     */
+    @NotNull
+    public ConcurrencyLimiterConfig setInitialLimit(int initialLimit) {
+        this.initialLimit = checkLimit(initialLimit);
+        return this;
+    }
+
+    /**
+     * Gets the lowest limit the limiter will ever use. Default is 1.
+     */
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    /**
+     * @see #getMinLimit()
+     */
+    @NotNull
+    public ConcurrencyLimiterConfig setMinLimit(int minLimit) {
+        this.minLimit = checkLimit(minLimit);
+        return this;
+    }
+
+    /**
+     * Gets the highest limit the limiter will ever use. Default is 1000.
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @see #getMaxLimit()
+     */
+    @NotNull
+    public ConcurrencyLimiterConfig setMaxLimit(int maxLimit) {
+        this.maxLimit = checkLimit(maxLimit);
+        return this;
+    }
+
+    /**
+     * Gets the weight (0.0-1.0) a newly calculated limit is given compared to the current limit. Lower values make the
+     * limit change more slowly. Default is 0.2.
+     */
+    public double getSmoothing() {
+        return smoothing;
+    }
+
+    /**
+     * @see #getSmoothing()
+     */
+    @NotNull
+    public ConcurrencyLimiterConfig setSmoothing(double smoothing) {
+        if (smoothing <= 0.0 || smoothing > 1.0) {
+            throw new IllegalArgumentException("The smoothing must be greater than 0.0 and at most 1.0");
+        }
+        this.smoothing = smoothing;
+        return this;
+    }
+
+    /**
+     * Gets how much the short-term latency may exceed the long-term latency before the limit is reduced. Default is
+     * 1.5, meaning that a 50 % increase in latency is tolerated.
+     */
+    public double getRttTolerance() {
+        return rttTolerance;
+    }
+
+    /**
+     * @see #getRttTolerance()
+     */
+    @NotNull
+    public ConcurrencyLimiterConfig setRttTolerance(double rttTolerance) {
+        if (rttTolerance < 1.0) {
+            throw new IllegalArgumentException("The RTT tolerance must be at least 1.0");
+        }
+        this.rttTolerance = rttTolerance;
+        return this;
+    }
+
+    /**
+     * Gets the interval at which the measured latencies are aggregated and the limit is recalculated. Default is 100
+     * ms.
+     */
+    @NotNull
+    public Duration getSampleWindow() {
+        return sampleWindow;
+    }
+
+    /**
+     * @see #getSampleWindow()
+     */
+    @NotNull
+    public ConcurrencyLimiterConfig setSampleWindow(@NotNull Duration sampleWindow) {
+        this.sampleWindow = Objects.requireNonNull(sampleWindow);
+        return this;
+    }
+
+    /**
+     * Gets the number of sample windows the long-term latency is averaged over. Default is 60.
+     */
+    public int getLongTermRttWindowSize() {
+        return longTermRttWindowSize;
+    }
+
+    /**
+     * @see #getLongTermRttWindowSize()
+     */
+    @NotNull
+    public ConcurrencyLimiterConfig setLongTermRttWindowSize(int longTermRttWindowSize) {
+        if (longTermRttWindowSize < 1) {
+            throw new IllegalArgumentException("The long-term RTT window size must be positive");
+        }
+        this.longTermRttWindowSize = longTermRttWindowSize;
+        return this;
+    }
+
+    private static int checkLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.pkhsolutions.irongrim.api.Message;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Registry of {@link ConcurrencyLimiter}s used by a {@link LocalMessageBroker}. Depending on the {@link Scope}, either
+ * a single limiter is shared by all messages, or a limiter is created lazily for each message type.
+ *
+ * @see LocalMessageBroker#setConcurrencyLimiterRegistry(ConcurrencyLimiterRegistry)
+ */
+@SuppressWarnings("unused")
+public class ConcurrencyLimiterRegistry {
+
+    /**
+     * Enumeration of the scopes a concurrency limiter can cover.
+     */
+    public enum Scope {
+        /**
+         * One limiter for all messages.
+         */
+        GLOBAL,
+        /**
+         * One limiter for each message class.
+         */
+        MESSAGE_TYPE
+    }
+
+    private static final String GLOBAL_LIMITER_NAME = "global";
+
+    private final ConcurrencyLimiterConfig config;
+    private final Scope scope;
+    private final Map<Object, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new {@code ConcurrencyLimiterRegistry}.
+     *
+     * @param config the configuration to use for all limiters (never {@code null}).
+     * @param scope the scope of the limiters (never {@code null}).
+     */
+    public ConcurrencyLimiterRegistry(@NotNull ConcurrencyLimiterConfig config, @NotNull Scope scope) {
+        this.config = Objects.requireNonNull(config);
+        this.scope = Objects.requireNonNull(scope);
+    }
+
+    /**
+     * Gets the limiter that covers the specified message, creating it if necessary.
+     *
+     * @param message the message (never {@code null}).
+     * @return the limiter (never {@code null}).
+     */
+    @NotNull
+    public ConcurrencyLimiter getConcurrencyLimiter(@NotNull Message<?> message) {
+        final Object key = scope == Scope.GLOBAL ? GLOBAL_LIMITER_NAME : message.getClass();
+        return limiters.computeIfAbsent(key, k -> new ConcurrencyLimiter(
+            scope == Scope.GLOBAL ? GLOBAL_LIMITER_NAME : message.getClass().getName(), config));
+    }
+
+    /**
+     * Gets all the limiters that have been created so far, e.g. for publishing metrics.
+     *
+     * @return an unmodifiable collection of limiters (never {@code null}).
+     */
+    @NotNull
+    public Collection<ConcurrencyLimiter> getConcurrencyLimiters() {
+        return Collections.unmodifiableCollection(limiters.values());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import net.pkhsolutions.irongrim.api.Event;
+import net.pkhsolutions.irongrim.api.Message;
+import net.pkhsolutions.irongrim.api.MessageHandler;
+import net.pkhsolutions.irongrim.api.ScatterGatherQuery;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable plan for delivering messages of a specific class to <em>all</em> of their handlers, as is done for
+ * {@link Event}s and {@link ScatterGatherQuery scatter-gather queries}. A plan is computed once per message class and
+ * shared by all messages of that class. The handlers are sorted according to Spring's
+ * {@link org.springframework.core.annotation.Order @Order} annotation and {@link org.springframework.core.Ordered}
+ * interface.
+ */
+final class DeliveryPlan {
+
+    private final Class<? extends Message> messageClass;
+    private final List<MessageHandler> handlers;
+
+    DeliveryPlan(@NotNull Class<? extends Message> messageClass, @NotNull List<MessageHandler> handlers) {
+        this.messageClass = Objects.requireNonNull(messageClass);
+        this.handlers = Collections.unmodifiableList(handlers);
+    }
+
+    @NotNull
+    Class<? extends Message> getMessageClass() {
+        return messageClass;
+    }
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    <MESSAGE extends Message<REPLY>, REPLY> List<MessageHandler<MESSAGE, REPLY>> getHandlers() {
+        return (List<MessageHandler<MESSAGE, REPLY>>) (List<?>) handlers;
+    }
+
+    boolean isEmpty() {
+        return handlers.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[messageClass=%s, handlers=%s]", getClass().getSimpleName(), messageClass.getName(),
+            handlers);
+    }
+}
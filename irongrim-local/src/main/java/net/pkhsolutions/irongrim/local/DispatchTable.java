@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import net.pkhsolutions.irongrim.api.Message;
+import net.pkhsolutions.irongrim.api.MessageHandler;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable snapshot of the handlers known to a {@link LocalMessageBroker}. The table contains the handlers that have
+ * been registered at runtime, and the handlers and {@link DeliveryPlan}s that have already been resolved for each
+ * message class. Changes are made by creating a new table and publishing it atomically, so readers never have to
+ * lock.
+ */
+final class DispatchTable {
+
+    static final DispatchTable EMPTY = new DispatchTable(Collections.emptyList(), Collections.emptyMap(),
+        Collections.emptyMap());
+
+    private final List<MessageHandler> registeredHandlers;
+    private final Map<Class<?>, MessageHandler> handlers;
+    private final Map<Class<?>, DeliveryPlan> deliveryPlans;
+
+    private DispatchTable(@NotNull List<MessageHandler> registeredHandlers,
+        @NotNull Map<Class<?>, MessageHandler> handlers, @NotNull Map<Class<?>, DeliveryPlan> deliveryPlans) {
+        this.registeredHandlers = registeredHandlers;
+        this.handlers = handlers;
+        this.deliveryPlans = deliveryPlans;
+    }
+
+    /**
+     * Returns the handlers that have been registered at runtime, in the order they were registered.
+     */
+    @NotNull
+    List<MessageHandler> getRegisteredHandlers() {
+        return Collections.unmodifiableList(registeredHandlers);
+    }
+
+    boolean isRegistered(@NotNull MessageHandler handler) {
+        return registeredHandlers.contains(handler);
+    }
+
+    /**
+     * Checks whether the specified table has the same registered handlers as this table, in which case handlers and
+     * delivery plans resolved with one of the tables are valid for the other one as well.
+     */
+    boolean hasSameRegisteredHandlers(@NotNull DispatchTable other) {
+        return registeredHandlers == other.registeredHandlers || registeredHandlers.equals(other.registeredHandlers);
+    }
+
+    /**
+     * Returns the handler that has been resolved for the specified message class, or {@code null} if it has not been
+     * resolved yet.
+     */
+    @Nullable
+    MessageHandler getHandler(@NotNull Class<? extends Message> messageClass) {
+        return handlers.get(messageClass);
+    }
+
+    /**
+     * Returns the delivery plan that has been resolved for the specified message class, or {@code null} if it has not
+     * been resolved yet.
+     */
+    @Nullable
+    DeliveryPlan getDeliveryPlan(@NotNull Class<? extends Message> messageClass) {
+        return deliveryPlans.get(messageClass);
+    }
+
+    @NotNull
+    DispatchTable withHandler(@NotNull Class<? extends Message> messageClass, @NotNull MessageHandler handler) {
+        final Map<Class<?>, MessageHandler> newHandlers = new HashMap<>(handlers);
+        newHandlers.put(messageClass, Objects.requireNonNull(handler));
+        return new DispatchTable(registeredHandlers, newHandlers, deliveryPlans);
+    }
+
+    @NotNull
+    DispatchTable withDeliveryPlan(@NotNull DeliveryPlan deliveryPlan) {
+        final Map<Class<?>, DeliveryPlan> newDeliveryPlans = new HashMap<>(deliveryPlans);
+        newDeliveryPlans.put(deliveryPlan.getMessageClass(), deliveryPlan);
+        return new DispatchTable(registeredHandlers, handlers, newDeliveryPlans);
+    }
+
+    /**
+     * Returns a new table with the specified handler registered. Resolved handlers and delivery plans of the message
+     * classes supported by the handler are dropped, so that they are resolved again with the new handler included.
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    DispatchTable withRegisteredHandler(@NotNull MessageHandler handler) {
+        final List<MessageHandler> newRegisteredHandlers = new ArrayList<>(registeredHandlers);
+        newRegisteredHandlers.add(handler);
+        final Map<Class<?>, MessageHandler> newHandlers = new HashMap<>(handlers);
+        newHandlers.keySet().removeIf(messageClass -> handler.supports((Class<? extends Message>) messageClass));
+        final Map<Class<?>, DeliveryPlan> newDeliveryPlans = new HashMap<>(deliveryPlans);
+        newDeliveryPlans.keySet().removeIf(messageClass -> handler.supports((Class<? extends Message>) messageClass));
+        return new DispatchTable(newRegisteredHandlers, newHandlers, newDeliveryPlans);
+    }
+
+    /**
+     * Returns a new table without the specified handler. Resolved handlers and delivery plans that refer to the
+     * handler are dropped, so that they are resolved again without it.
+     */
+    @NotNull
+    DispatchTable withoutRegisteredHandler(@NotNull MessageHandler handler) {
+        final List<MessageHandler> newRegisteredHandlers = new ArrayList<>(registeredHandlers);
+        newRegisteredHandlers.remove(handler);
+        final Map<Class<?>, MessageHandler> newHandlers = new HashMap<>(handlers);
+        newHandlers.values().removeIf(handler::equals);
+        final Map<Class<?>, DeliveryPlan> newDeliveryPlans = new HashMap<>(deliveryPlans);
+        newDeliveryPlans.values().removeIf(plan -> plan.getHandlers().contains(handler));
+        return new DispatchTable(newRegisteredHandlers, newHandlers, newDeliveryPlans);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[registeredHandlers=%s, handlers=%s, deliveryPlans=%s]", getClass().getSimpleName(),
+            registeredHandlers, handlers.keySet(), deliveryPlans.keySet());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable record of a single dispatch, as captured by a {@link FlightRecorder}.
+ */
+@SuppressWarnings("unused")
+public final class FlightRecord {
+
+    /**
+     * Enumeration of the possible outcomes of a dispatch.
+     */
+    public enum Outcome {
+        /**
+         * The handler returned a reply.
+         */
+        SUCCESS,
+        /**
+         * The handler threw an exception.
+         */
+        FAILURE,
+        /**
+         * The message was rejected by a circuit breaker or a concurrency limiter.
+         */
+        REJECTED,
+        /**
+         * The message was dropped because its deadline had passed.
+         */
+        EXPIRED
+    }
+
+    private final long sequence;
+    private final Instant timestamp;
+    private final String messageClassName;
+    private final String handlerName;
+    private final long threadId;
+    private final String threadName;
+    private final long queueWaitNanos;
+    private final long executionNanos;
+    private final Outcome outcome;
+
+    FlightRecord(long sequence, @NotNull Instant timestamp, @NotNull String messageClassName,
+        @NotNull String handlerName, long threadId, @NotNull String threadName, long queueWaitNanos,
+        long executionNanos, @NotNull Outcome outcome) {
+        this.sequence = sequence;
+        this.timestamp = Objects.requireNonNull(timestamp);
+        this.messageClassName = Objects.requireNonNull(messageClassName);
+        this.handlerName = Objects.requireNonNull(handlerName);
+        this.threadId = threadId;
+        this.threadName = Objects.requireNonNull(threadName);
+        this.queueWaitNanos = queueWaitNanos;
+        this.executionNanos = executionNanos;
+        this.outcome = Objects.requireNonNull(outcome);
+    }
+
+    /**
+     * Gets the sequence number of the record. Records are numbered in the order they were written.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the time the dispatch completed.
+     */
+    @NotNull
+    public Instant getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the name of the class of the dispatched message.
+     */
+    @NotNull
+    public String getMessageClassName() {
+        return messageClassName;
+    }
+
+    /**
+     * Gets the name of the class of the handler the message was dispatched to.
+     */
+    @NotNull
+    public String getHandlerName() {
+        return handlerName;
+    }
+
+    /**
+     * Gets the ID of the thread that completed the dispatch.
+     */
+    public long getThreadId() {
+        return threadId;
+    }
+
+    /**
+     * Gets the name of the thread that completed the dispatch.
+     */
+    @NotNull
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * Gets the time the message waited between being admitted and the handler being invoked, in the specified unit.
+     */
+    public long getQueueWaitTime(@NotNull TimeUnit unit) {
+        return unit.convert(queueWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the time the handler spent handling the message, in the specified unit.
+     */
+    public long getExecutionTime(@NotNull TimeUnit unit) {
+        return unit.convert(executionNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the outcome of the dispatch.
+     */
+    @NotNull
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d %s %s -> %s [thread=%s(%d), queueWait=%dus, execution=%dus, outcome=%s]", sequence,
+            timestamp, messageClassName, handlerName, threadName, threadId, queueWaitNanos / 1000,
+            executionNanos / 1000, outcome);
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Always-on, low-overhead recorder of the most recent dispatches of a {@link LocalMessageBroker}. Every dispatch writes
+ * a fixed-size record into a lock-free ring buffer, overwriting the oldest record once the buffer is full. Names
+ * (message classes, handlers and threads) are interned, so writing a record does not allocate any memory once all
+ * names have been seen. The name of a thread is looked up only the first time the thread writes a record, which means
+ * that a thread that is renamed afterwards keeps its old name in the recorder.
+ * <p>
+ * The number of interned names is limited, so that applications that keep creating threads with new names cannot make
+ * the recorder grow without bound. Once the limit has been reached, new names are recorded as
+ * {@value #OVERFLOW_NAME}.
+ * </p>
+ * <p>
+ * The contents of the recorder can be {@link #snapshot() inspected} or {@link #dump(OutputStream) dumped} at any time
+ * without stopping the writers. Records that are being overwritten while a snapshot is taken are skipped. A dump can
+ * also be triggered automatically when a dispatch exceeds a {@link #setLatencyThreshold(Duration,
+ * FlightRecorderListener) latency threshold}. Dumps are written in a compact binary format that can be read with
+ * {@link FlightRecordingDecoder}.
+ * </p>
+ *
+ * @see LocalMessageBroker#setFlightRecorder(FlightRecorder)
+ */
+@SuppressWarnings("unused")
+public class FlightRecorder {
+
+    static final int MAGIC = 0x49474652; // "IGFR"
+    static final int VERSION = 1;
+
+    /**
+     * The name recorded for message classes, handlers and threads once the limit of interned names has been reached.
+     */
+    public static final String OVERFLOW_NAME = "<overflow>";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlightRecorder.class);
+
+    private static final int RECORD_SIZE = 8;
+    private static final int SEQUENCE = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int NAMES = 2;
+    private static final int THREAD_ID = 3;
+    private static final int QUEUE_WAIT = 4;
+    private static final int EXECUTION = 5;
+    private static final int OUTCOME = 6;
+    private static final int THREAD_NAME = 7;
+    private static final FlightRecord.Outcome[] OUTCOMES = FlightRecord.Outcome.values();
+    private static final int OVERFLOW_NAME_ID = 0;
+    private static final int DEFAULT_MAX_NAMES = 1024;
+
+    private final AtomicLongArray buffer;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong();
+    private final Map<String, Integer> nameIds = new ConcurrentHashMap<>();
+    private final Map<Integer, String> names = new ConcurrentHashMap<>();
+    private final AtomicInteger nextNameId = new AtomicInteger(OVERFLOW_NAME_ID + 1);
+    private final int maxNames;
+    private final ThreadLocal<Integer> threadNameId = new ThreadLocal<>();
+    private final AtomicLong lastTrigger = new AtomicLong(System.nanoTime() - Long.MAX_VALUE / 2);
+    private volatile long latencyThresholdNanos = Long.MAX_VALUE;
+    private volatile long minTriggerIntervalNanos = Duration.ofSeconds(60).toNanos();
+    private volatile FlightRecorderListener listener;
+
+    /**
+     * Creates a new {@code FlightRecorder}.
+     *
+     * @param capacity the number of records to keep, rounded up to the nearest power of two.
+     */
+    public FlightRecorder(int capacity) {
+        this(capacity, DEFAULT_MAX_NAMES);
+    }
+
+    /**
+     * Creates a new {@code FlightRecorder}.
+     *
+     * @param capacity the number of records to keep, rounded up to the nearest power of two.
+     * @param maxNames the maximum number of distinct names to intern (must be positive). Under contention, a few more
+     *        names than this may be interned.
+     */
+    public FlightRecorder(int capacity, int maxNames) {
+        if (capacity < 1 || capacity > (1 << 26)) {
+            throw new IllegalArgumentException("The capacity must be between 1 and 2^26");
+        }
+        if (maxNames < 1) {
+            throw new IllegalArgumentException("The maximum number of names must be positive");
+        }
+        this.maxNames = maxNames;
+        names.put(OVERFLOW_NAME_ID, OVERFLOW_NAME);
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.buffer = new AtomicLongArray(size * RECORD_SIZE);
+        this.mask = size - 1;
+        for (int i = 0; i < size; ++i) {
+            buffer.set(i * RECORD_SIZE + SEQUENCE, -1);
+        }
+    }
+
+    /**
+     * Gets the number of records the recorder keeps.
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Gets the total number of records written since the recorder was created.
+     */
+    public long getRecordCount() {
+        return cursor.get();
+    }
+
+    /**
+     * Sets a latency threshold that will notify the specified listener whenever the queue wait and execution time of a
+     * dispatch together exceed it. The listener is notified at most once per
+     * {@link #setMinTriggerInterval(Duration) minimum trigger interval}.
+     *
+     * @param threshold the threshold, or {@code null} to disable the trigger.
+     * @param listener the listener to notify, or {@code null} to disable the trigger.
+     */
+    public void setLatencyThreshold(@Nullable Duration threshold, @Nullable FlightRecorderListener listener) {
+        this.listener = listener;
+        this.latencyThresholdNanos = threshold == null || listener == null ? Long.MAX_VALUE : threshold.toNanos();
+    }
+
+    /**
+     * Sets the minimum time between two notifications of the latency threshold listener. Default is 60 seconds.
+     *
+     * @param minTriggerInterval the minimum interval (never {@code null}).
+     */
+    public void setMinTriggerInterval(@NotNull Duration minTriggerInterval) {
+        this.minTriggerIntervalNanos = minTriggerInterval.toNanos();
+    }
+
+    /**
+     * Writes a record of a completed dispatch.
+     *
+     * @param messageClass the class of the message (never {@code null}).
+     * @param handler the handler the message was dispatched to (never {@code null}).
+     * @param queueWaitNanos the time between admission and invocation, in nanoseconds.
+     * @param executionNanos the time the handler spent handling the message, in nanoseconds.
+     * @param outcome the outcome of the dispatch (never {@code null}).
+     */
+    public void record(@NotNull Class<?> messageClass, @NotNull Object handler, long queueWaitNanos,
+        long executionNanos, @NotNull FlightRecord.Outcome outcome) {
+        final Thread thread = Thread.currentThread();
+        final long packedNames = ((long) intern(messageClass.getName()) << 32)
+            | intern(handler.getClass().getName());
+        final long sequence = cursor.getAndIncrement();
+        final int base = (int) (sequence & mask) * RECORD_SIZE;
+        // Invalidate the slot first so that readers never mistake a half-written record for a complete one, then
+        // publish the sequence number after all the fields have been written.
+        buffer.set(base + SEQUENCE, -1);
+        buffer.lazySet(base + TIMESTAMP, System.currentTimeMillis());
+        buffer.lazySet(base + NAMES, packedNames);
+        buffer.lazySet(base + THREAD_ID, thread.getId());
+        buffer.lazySet(base + QUEUE_WAIT, queueWaitNanos);
+        buffer.lazySet(base + EXECUTION, executionNanos);
+        buffer.lazySet(base + OUTCOME, outcome.ordinal());
+        buffer.lazySet(base + THREAD_NAME, internThreadName(thread));
+        buffer.set(base + SEQUENCE, sequence);
+
+        if (queueWaitNanos + executionNanos >= latencyThresholdNanos) {
+            trigger(sequence);
+        }
+    }
+
+    private void trigger(long sequence) {
+        final FlightRecorderListener currentListener = listener;
+        final long now = System.nanoTime();
+        final long last = lastTrigger.get();
+        if (currentListener != null && now - last >= minTriggerIntervalNanos && lastTrigger.compareAndSet(last, now)) {
+            final FlightRecord record = read((int) (sequence & mask) * RECORD_SIZE);
+            if (record != null) {
+                try {
+                    currentListener.onLatencyThresholdExceeded(this, record);
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Flight recorder listener {} threw an exception", currentListener, ex);
+                }
+            }
+        }
+    }
+
+    private int internThreadName(Thread thread) {
+        Integer id = threadNameId.get();
+        if (id == null) {
+            id = intern(thread.getName());
+            threadNameId.set(id);
+        }
+        return id;
+    }
+
+    private int intern(String name) {
+        final Integer id = nameIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (nameIds.size() >= maxNames) {
+            return OVERFLOW_NAME_ID;
+        }
+        return nameIds.computeIfAbsent(name, n -> {
+            final int newId = nextNameId.getAndIncrement();
+            names.put(newId, n);
+            return newId;
+        });
+    }
+
+    /**
+     * Takes a snapshot of the records currently in the recorder.
+     *
+     * @return a list of records, ordered from oldest to newest (never {@code null}).
+     */
+    @NotNull
+    public List<FlightRecord> snapshot() {
+        final List<FlightRecord> records = new ArrayList<>(getCapacity());
+        for (int i = 0; i <= mask; ++i) {
+            final FlightRecord record = read(i * RECORD_SIZE);
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        records.sort(Comparator.comparingLong(FlightRecord::getSequence));
+        return records;
+    }
+
+    private FlightRecord read(int base) {
+        final long sequence = buffer.get(base + SEQUENCE);
+        if (sequence < 0) {
+            return null;
+        }
+        final long timestamp = buffer.get(base + TIMESTAMP);
+        final long packedNames = buffer.get(base + NAMES);
+        final long threadId = buffer.get(base + THREAD_ID);
+        final long queueWait = buffer.get(base + QUEUE_WAIT);
+        final long execution = buffer.get(base + EXECUTION);
+        final int outcome = (int) buffer.get(base + OUTCOME);
+        final int threadName = (int) buffer.get(base + THREAD_NAME);
+        if (buffer.get(base + SEQUENCE) != sequence) {
+            return null; // Overwritten while reading
+        }
+        return new FlightRecord(sequence, Instant.ofEpochMilli(timestamp), names.get((int) (packedNames >>> 32)),
+            names.get((int) packedNames), threadId, names.get(threadName), queueWait, execution, OUTCOMES[outcome]);
+    }
+
+    /**
+     * Writes a snapshot of the recorder to the specified stream in the binary format understood by
+     * {@link FlightRecordingDecoder}. The stream is not closed.
+     *
+     * @param outputStream the stream to write to (never {@code null}).
+     * @throws IOException if the snapshot could not be written.
+     */
+    public void dump(@NotNull OutputStream outputStream) throws IOException {
+        final List<FlightRecord> records = snapshot();
+        final Map<String, Integer> nameTable = new LinkedHashMap<>();
+        for (FlightRecord record : records) {
+            nameTable.putIfAbsent(record.getMessageClassName(), nameTable.size());
+            nameTable.putIfAbsent(record.getHandlerName(), nameTable.size());
+            nameTable.putIfAbsent(record.getThreadName(), nameTable.size());
+        }
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeVarLong(out, nameTable.size());
+        for (String name : nameTable.keySet()) {
+            out.writeUTF(name);
+        }
+        writeVarLong(out, records.size());
+        long previousSequence = 0;
+        long previousTimestamp = 0;
+        for (FlightRecord record : records) {
+            final long timestamp = record.getTimestamp().toEpochMilli();
+            writeVarLong(out, record.getSequence() - previousSequence);
+            writeVarLong(out, zigZag(timestamp - previousTimestamp));
+            writeVarLong(out, nameTable.get(record.getMessageClassName()));
+            writeVarLong(out, nameTable.get(record.getHandlerName()));
+            writeVarLong(out, nameTable.get(record.getThreadName()));
+            writeVarLong(out, record.getThreadId());
+            writeVarLong(out, zigZag(record.getQueueWaitTime(TimeUnit.NANOSECONDS)));
+            writeVarLong(out, zigZag(record.getExecutionTime(TimeUnit.NANOSECONDS)));
+            out.writeByte(record.getOutcome().ordinal());
+            previousSequence = record.getSequence();
+            previousTimestamp = timestamp;
+        }
+        out.flush();
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Creates a listener that dumps the recorder into a new file in the specified directory whenever the latency
+     * threshold is exceeded. The files are written by the specified executor, never by the thread that exceeded the
+     * threshold.
+     *
+     * @param directory the directory to write the dumps to (never {@code null}).
+     * @param executor the executor to write the dumps with (never {@code null}).
+     * @return the listener (never {@code null}).
+     */
+    @NotNull
+    public static FlightRecorderListener dumpToDirectory(@NotNull Path directory, @NotNull Executor executor) {
+        Objects.requireNonNull(directory);
+        Objects.requireNonNull(executor);
+        return (flightRecorder, record) -> executor.execute(() -> {
+            final Path file = directory.resolve("flight-recording-" + System.currentTimeMillis() + ".igfr");
+            try (OutputStream out = Files.newOutputStream(file)) {
+                flightRecorder.dump(out);
+                LOGGER.info("Dispatch {} exceeded the latency threshold, flight recording written to {}", record,
+                    file);
+            } catch (IOException ex) {
+                LOGGER.error("Could not write flight recording to {}", file, ex);
+            }
+        });
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Listener that is notified when a dispatch recorded by a {@link FlightRecorder} has exceeded the latency threshold.
+ * This is typically used to dump the recorder, see {@link FlightRecorder#dumpToDirectory(java.nio.file.Path,
+ * java.util.concurrent.Executor)}.
+ *
+ * @see FlightRecorder#setLatencyThreshold(java.time.Duration, FlightRecorderListener)
+ */
+@FunctionalInterface
+public interface FlightRecorderListener {
+
+    /**
+     * Called after the specified record has been written. This method is invoked by the thread that completed the
+     * dispatch, so implementations should return quickly and do any heavy lifting (such as writing files) in another
+     * thread.
+     *
+     * @param flightRecorder the flight recorder (never {@code null}).
+     * @param record the record that exceeded the threshold (never {@code null}).
+     */
+    void onLatencyThresholdExceeded(@NotNull FlightRecorder flightRecorder, @NotNull FlightRecord record);
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Decoder of the binary dumps written by {@link FlightRecorder#dump(OutputStream)}. The decoder can also be run from
+ * the command line, in which case it prints the records of the specified dump files:
+ *
+ * <pre>
+ * java -cp irongrim-local.jar net.pkhsolutions.irongrim.local.FlightRecordingDecoder flight-recording-1234.igfr
+ * </pre>
+ */
+public final class FlightRecordingDecoder {
+
+    private static final FlightRecord.Outcome[] OUTCOMES = FlightRecord.Outcome.values();
+
+    private FlightRecordingDecoder() {
+    }
+
+    /**
+     * Decodes a dump from the specified stream. The stream is not closed.
+     *
+     * @param inputStream the stream to read from (never {@code null}).
+     * @return the records of the dump, ordered from oldest to newest (never {@code null}).
+     * @throws IOException if the dump could not be read or is not a valid flight recording.
+     */
+    @NotNull
+    public static List<FlightRecord> decode(@NotNull InputStream inputStream) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != FlightRecorder.MAGIC) {
+            throw new IOException("Not a flight recording");
+        }
+        final int version = in.readUnsignedByte();
+        if (version != FlightRecorder.VERSION) {
+            throw new IOException("Unsupported flight recording version " + version);
+        }
+        final int nameCount = (int) readVarLong(in);
+        final String[] names = new String[nameCount];
+        for (int i = 0; i < nameCount; ++i) {
+            names[i] = in.readUTF();
+        }
+        final int recordCount = (int) readVarLong(in);
+        final List<FlightRecord> records = new ArrayList<>(recordCount);
+        long sequence = 0;
+        long timestamp = 0;
+        for (int i = 0; i < recordCount; ++i) {
+            sequence += readVarLong(in);
+            timestamp += unZigZag(readVarLong(in));
+            final String messageClassName = names[(int) readVarLong(in)];
+            final String handlerName = names[(int) readVarLong(in)];
+            final String threadName = names[(int) readVarLong(in)];
+            final long threadId = readVarLong(in);
+            final long queueWait = unZigZag(readVarLong(in));
+            final long execution = unZigZag(readVarLong(in));
+            final FlightRecord.Outcome outcome = OUTCOMES[in.readUnsignedByte()];
+            records.add(new FlightRecord(sequence, Instant.ofEpochMilli(timestamp), messageClassName, handlerName,
+                threadId, threadName, queueWait, execution, outcome));
+        }
+        return records;
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length number");
+    }
+
+    /**
+     * Prints the records of the flight recordings given as arguments to standard output.
+     *
+     * @param args the paths of the flight recordings to print.
+     * @throws IOException if a flight recording could not be read.
+     */
+    public static void main(String[] args) throws IOException {
+        for (String arg : args) {
+            System.out.println("Flight recording " + arg);
+            try (InputStream in = Files.newInputStream(Paths.get(arg))) {
+                decode(in).forEach(System.out::println);
+            }
+        }
+    }
+}
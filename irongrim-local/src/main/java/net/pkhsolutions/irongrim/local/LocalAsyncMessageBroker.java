@@ -15,29 +15,77 @@
  */
 package net.pkhsolutions.irongrim.local;
 
+import java.time.Duration;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import net.pkhsolutions.irongrim.api.*;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
 
 import rx.Observable;
+import rx.subscriptions.Subscriptions;
 
 /**
- * Extended version of {@link LocalMessageBroker} that also adds support for asynchronous message handling. If a
- * message handler implements {@link AsyncMessageHandler}, the broker will delegate to the handler directly. Otherwise,
- * the broker will invoke {@link MessageHandler#handleMessage(Message)} within a different thread by using an
- * {@link ExecutorService}.
+ * Extended version of {@link LocalFutureMessageBroker} that also adds support for asynchronous message handling using
+ * RxJava. If a message handler implements {@link AsyncMessageHandler}, the broker will delegate to the handler
+ * directly. Handlers implementing {@link FutureMessageHandler} are also invoked directly and their futures are
+ * converted to observables. Handlers implementing {@link NonBlockingMessageHandler} are invoked by the thread that
+ * subscribes to the observable, which emits the reply before {@code subscribe} returns. Otherwise, the broker will
+ * invoke {@link MessageHandler#handleMessage(Message)} within a different thread by using an {@link ExecutorService}.
+ * <p>
+ * Tasks are submitted to the executor service as {@link PrioritizedRunnable}s. When used together with a
+ * {@link PriorityThreadPoolExecutor}, messages with a higher {@link Priority} will therefore be handled before messages
+ * with a lower priority, which prevents e.g. batch commands from blocking interactive queries.
+ * </p>
+ * <p>
+ * The {@link Context} is transferred to the thread that handles the message. Messages whose deadline has passed are
+ * dropped both before they are queued and before the handler is invoked, and the observer is notified with a
+ * {@link DeadlineExceededException}.
+ * </p>
+ * <p>
+ * Messages rejected by an open {@link CircuitBreaker} or a {@link ConcurrencyLimiter} fail fast in the subscribing
+ * thread, without ever occupying a thread of the executor service. Since messages are admitted before they are queued,
+ * the latency measured by the concurrency limiters includes the time spent waiting in the queue, which is what makes
+ * the limiters notice when the executor service is overloaded.
+ * </p>
+ * <p>
+ * {@link Event}s are fanned out to all subscribers in parallel, each subscriber in its own task, unless the event
+ * {@link Event#isOrdered() requires ordered delivery}, in which case all subscribers are invoked one at a time by a
+ * single task. The returned observable completes once the event has been delivered to every subscriber, regardless of
+ * whether the subscribers succeeded or not. If the executor service rejects the delivery to a subscriber, the rejection
+ * is passed to the event error handler and the observable fails with it once the other deliveries have finished.
+ * </p>
+ * <p>
+ * {@link ScatterGatherQuery Scatter-gather queries} are sent to all of their handlers concurrently. The partial
+ * replies are merged by the reducer of the query as they arrive, and the query completes as soon as the reducer
+ * considers the merged reply complete or all handlers have replied. Handlers that exceed the shard timeout of the
+ * query are treated as failed. Scatter-gather queries sent synchronously are also handled concurrently.
+ * </p>
+ * <p>
+ * Messages sent with {@link #sendAsync(Message)} can optionally be retried when their handler fails, see
+ * {@link #setRetryPolicyRegistry(RetryPolicyRegistry)}. Pending retries are scheduled on a {@link TimingWheel} and do
+ * not occupy any thread while they wait. A message is not retried if its deadline would pass before the next attempt.
+ * Events, scatter-gather queries and {@link MessageBrokerWarmer warm-up messages} are never retried.
+ * </p>
  */
 @SuppressWarnings("unused")
-public class LocalAsyncMessageBroker extends LocalMessageBroker implements AsyncMessageBroker {
+public class LocalAsyncMessageBroker extends LocalFutureMessageBroker implements AsyncMessageBroker {
 
-    private final ExecutorService executorService;
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalAsyncMessageBroker.class);
+
+    private volatile RetryPolicyRegistry retryPolicyRegistry;
 
     /**
-     * Creates a new {@code LocalMessageBroker}.
+     * Creates a new {@code LocalAsyncMessageBroker}.
      *
      * @param applicationContext the Spring application context from which message handlers should be fetched (never
      *        {@code null}).
@@ -45,33 +93,243 @@ public class LocalAsyncMessageBroker extends LocalMessageBroker implements Async
      */
     public LocalAsyncMessageBroker(@NotNull ApplicationContext applicationContext,
         @NotNull ExecutorService executorService) {
-        super(applicationContext);
-        this.executorService = Objects.requireNonNull(executorService);
+        super(applicationContext, executorService);
     }
 
     @Override
+    public <MESSAGE extends Message<REPLY>, REPLY> REPLY send(@NotNull MESSAGE message) {
+        if (message instanceof ScatterGatherQuery) {
+            return sendAsync(message).toBlocking().single();
+        }
+        return super.send(message);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
     public @NotNull <MESSAGE extends Message<REPLY>, REPLY> Observable<REPLY> sendAsync(@NotNull MESSAGE message) {
         Objects.requireNonNull(message);
-        return getHandler(message).map(handler -> handleAsync(message, handler))
-            .orElseThrow(() -> new NoSuchMessageHandlerException(message.getClass()));
+        if (message instanceof Event) {
+            return (Observable<REPLY>) publishAsync((Event) message);
+        }
+        if (message instanceof ScatterGatherQuery) {
+            return scatterGatherAsync((ScatterGatherQuery<REPLY>) message);
+        }
+        final Context context = ContextHolder.getOptionalContext().orElse(null);
+        return getHandler(message).map(handler -> {
+            final RetryPolicyRegistry registry = retryPolicyRegistry;
+            final RetryPolicy policy = registry == null ? null : registry.getPolicy(message.getClass()).orElse(null);
+            if (policy == null || policy.getMaxAttempts() == 1 || MessageBrokerWarmer.isWarmUp(context)) {
+                return handleAsync(message, handler, context);
+            }
+            return handleWithRetries(message, handler, context, registry, policy, 1);
+        }).orElseThrow(() -> new NoSuchMessageHandlerException(message.getClass()));
+    }
+
+    /**
+     * Gets the registry of retry policies used for messages whose handler fails.
+     *
+     * @return the registry, or an empty {@code Optional} if messages are not retried.
+     */
+    @NotNull
+    public Optional<RetryPolicyRegistry> getRetryPolicyRegistry() {
+        return Optional.ofNullable(retryPolicyRegistry);
+    }
+
+    /**
+     * Sets the registry of retry policies used for messages whose handler fails.
+     *
+     * @param retryPolicyRegistry the registry, or {@code null} to stop retrying messages.
+     */
+    public void setRetryPolicyRegistry(@Nullable RetryPolicyRegistry retryPolicyRegistry) {
+        this.retryPolicyRegistry = retryPolicyRegistry;
+    }
+
+    /**
+     * Creates an observable that makes the specified attempt to handle the message and, if the attempt fails,
+     * schedules the next attempt on the timing wheel according to the retry policy. When the backoff has passed, the
+     * next attempt is made by the executor service.
+     */
+    private <MESSAGE extends Message<REPLY>, REPLY> Observable<REPLY> handleWithRetries(MESSAGE message,
+        MessageHandler<MESSAGE, REPLY> handler, Context context, RetryPolicyRegistry registry, RetryPolicy policy,
+        int attempt) {
+        final Class<? extends Message> messageClass = message.getClass();
+        Observable<REPLY> result = Observable.defer(() -> handleAsync(message, handler, context));
+        if (attempt > 1) {
+            result = result.doOnCompleted(() -> registry.recordRecovered(messageClass));
+        }
+        return result.onErrorResumeNext(ex -> {
+            if (!policy.isRetryable(ex)) {
+                registry.recordAbandoned(messageClass);
+                return Observable.error(ex);
+            }
+            if (attempt >= policy.getMaxAttempts()) {
+                LOGGER.debug("Giving up on message {} after {} attempts", message, attempt, ex);
+                registry.recordExhausted(messageClass);
+                return Observable.error(ex);
+            }
+            final Duration backoff = policy.getBackoff(attempt + 1);
+            if (context != null
+                && context.getRemainingTime().map(remaining -> remaining.compareTo(backoff) <= 0).orElse(false)) {
+                LOGGER.debug("Not retrying message {} since its deadline would pass before the next attempt", message);
+                registry.recordAbandoned(messageClass);
+                return Observable.error(ex);
+            }
+            LOGGER.debug("Retrying message {} in {} ms (attempt {})", message, backoff.toMillis(), attempt + 1, ex);
+            registry.recordRetry(messageClass);
+            return Observable.create(subscriber -> {
+                final TimingWheel.Timeout timeout;
+                try {
+                    // The timing wheel thread only hands the attempt over, so that it never runs handlers itself
+                    timeout = registry.getTimingWheel().schedule(() -> executeWithContext(getPriority(message, handler),
+                        context, () -> handleWithRetries(message, handler, context, registry, policy, attempt + 1)
+                            .unsafeSubscribe(subscriber), rejected -> subscriber.onError(ex)), backoff);
+                } catch (IllegalStateException timingWheelShutDown) {
+                    subscriber.onError(ex);
+                    return;
+                }
+                subscriber.add(Subscriptions.create(timeout::cancel));
+            });
+        });
     }
 
     @SuppressWarnings("unchecked")
     private <MESSAGE extends Message<REPLY>, REPLY> Observable<REPLY> handleAsync(MESSAGE message,
-        MessageHandler<MESSAGE, REPLY> handler) {
+        MessageHandler<MESSAGE, REPLY> handler, Context context) {
         if (handler instanceof AsyncMessageHandler) {
-            return ((AsyncMessageHandler) handler).handleMessageAsync(message);
-        } else {
-            final Context context = ContextHolder.getContext();
-            return Observable.create(subscriber -> executorService.submit(() -> {
-                ContextHolder.setContext(context);
+            if (!isDispatchTracked()) {
+                try {
+                    checkDeadline(message, context);
+                } catch (DeadlineExceededException ex) {
+                    return Observable.error(ex);
+                }
+                return ((AsyncMessageHandler) handler).handleMessageAsync(message);
+            }
+            return Observable.defer(() -> {
+                final MessageDispatch<MESSAGE, REPLY> dispatch = createDispatch(message, handler, context);
+                try {
+                    dispatch.admit();
+                } catch (MessageRejectedException ex) {
+                    return getFallbackReplyAsync(message, ex);
+                }
+                dispatch.onInvocationStarted();
+                final Observable<REPLY> reply;
+                try {
+                    reply = ((AsyncMessageHandler<MESSAGE, REPLY>) handler).handleMessageAsync(message);
+                } catch (Throwable ex) {
+                    dispatch.onError();
+                    throw ex;
+                }
+                return reply.doOnCompleted(dispatch::onSuccess).doOnError(ex -> dispatch.onError())
+                    .doOnUnsubscribe(dispatch::release);
+            });
+        } else if (handler instanceof NonBlockingMessageHandler) {
+            return Observable.create(subscriber -> {
+                final REPLY reply;
                 try {
-                    subscriber.onNext(handler.handleMessage(message));
+                    reply = dispatchInline(message, handler, context);
+                } catch (Throwable ex) {
+                    subscriber.onError(ex);
+                    return;
+                }
+                subscriber.onNext(reply);
+                subscriber.onCompleted();
+            });
+        } else if (handler instanceof FutureMessageHandler) {
+            return Observable.create(subscriber -> handleFuture(message, handler, context).whenComplete((reply, ex) -> {
+                if (ex == null) {
+                    subscriber.onNext(reply);
                     subscriber.onCompleted();
-                } finally {
-                    ContextHolder.resetContext();
+                } else {
+                    subscriber.onError(ex);
                 }
             }));
+        } else {
+            return executeAsync(message, handler, context, true);
+        }
+    }
+
+    /**
+     * Creates an observable that, once subscribed to, admits the message and invokes the handler using the executor
+     * service.
+     *
+     * @param useFallbackReply whether the fallback reply of the message should be emitted if the message is rejected.
+     */
+    private <MESSAGE extends Message<REPLY>, REPLY> Observable<REPLY> executeAsync(MESSAGE message,
+        MessageHandler<MESSAGE, REPLY> handler, Context context, boolean useFallbackReply) {
+        final Priority priority = getPriority(message, handler);
+        return Observable.create(subscriber -> {
+            final MessageDispatch<MESSAGE, REPLY> dispatch = createDispatch(message, handler, context);
+            try {
+                dispatch.admit();
+            } catch (MessageRejectedException ex) {
+                if (useFallbackReply) {
+                    getFallbackReplyAsync(message, ex).subscribe(subscriber);
+                } else {
+                    subscriber.onError(ex);
+                }
+                return;
+            }
+            try {
+                getExecutorService().execute(new PrioritizedRunnable(priority, () -> {
+                    ContextHolder.setContext(context);
+                    try {
+                        final REPLY reply = dispatch.invoke();
+                        subscriber.onNext(reply);
+                        subscriber.onCompleted();
+                    } catch (Throwable ex) {
+                        subscriber.onError(ex);
+                    } finally {
+                        ContextHolder.resetContext();
+                    }
+                }));
+            } catch (RejectedExecutionException ex) {
+                dispatch.release();
+                subscriber.onError(ex);
+            }
+        });
+    }
+
+    private <REPLY> Observable<REPLY> scatterGatherAsync(ScatterGatherQuery<REPLY> query) {
+        final List<MessageHandler<ScatterGatherQuery<REPLY>, REPLY>> handlers = getDeliveryPlan(query).getHandlers();
+        if (handlers.isEmpty()) {
+            throw new NoSuchMessageHandlerException(query.getClass());
+        }
+        final Context context = ContextHolder.getOptionalContext().orElse(null);
+        final ReplyReducer<REPLY> reducer = query.getReplyReducer();
+        final Long shardTimeoutNanos = query.getShardTimeout().map(Duration::toNanos).orElse(null);
+        return Observable.from(handlers).flatMap(handler -> {
+            Observable<REPLY> shard = executeAsync(query, handler, context, false);
+            if (shardTimeoutNanos != null) {
+                shard = shard.timeout(shardTimeoutNanos, TimeUnit.NANOSECONDS);
+            }
+            if (query.isPartialResultAllowed()) {
+                shard = shard.onErrorResumeNext(ex -> {
+                    LOGGER.warn("Handler {} failed to handle query {}, ignoring its reply", handler, query, ex);
+                    return Observable.empty();
+                });
+            }
+            return shard;
+        }).scan(reducer::reduce).takeUntil(reducer::isComplete).takeLast(1)
+            .switchIfEmpty(Observable.defer(() -> getFallbackReplyAsync(query,
+                new MessageRejectedException(query.getClass(), "no handler replied to the query"))));
+    }
+
+    private Observable<Void> publishAsync(Event event) {
+        final Context context = ContextHolder.getOptionalContext().orElse(null);
+        final List<MessageHandler<Event, Void>> subscribers = getDeliveryPlan(event).getHandlers();
+        if (subscribers.isEmpty()) {
+            return Observable.empty();
+        }
+        return Observable.create(observer -> publishWithExecutor(event, subscribers, context, observer::onCompleted,
+            observer::onError));
+    }
+
+    private <REPLY> Observable<REPLY> getFallbackReplyAsync(Message<REPLY> message,
+        MessageRejectedException exception) {
+        try {
+            return Observable.just(getFallbackReply(message, exception));
+        } catch (MessageRejectedException ex) {
+            return Observable.error(ex);
         }
     }
 }
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import net.pkhsolutions.irongrim.api.*;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * Extended version of {@link LocalMessageBroker} that adds support for asynchronous message handling by using
+ * {@link CompletableFuture}s. This broker does not depend on RxJava and does not create any RxJava objects. If a
+ * message handler implements {@link FutureMessageHandler}, the broker will delegate to the handler directly.
+ * Handlers implementing {@link NonBlockingMessageHandler} are invoked directly by the sending thread and the returned
+ * future is already completed. Otherwise, the broker will invoke {@link MessageHandler#handleMessage(Message)} within a
+ * different thread by using an {@link ExecutorService}.
+ * <p>
+ * Tasks are submitted to the executor service as {@link PrioritizedRunnable}s and the {@link Context} is transferred
+ * to the thread that handles the message, in the same way as in {@link LocalAsyncMessageBroker}. Rejected messages
+ * fail fast in the sending thread, without ever occupying a thread of the executor service.
+ * </p>
+ * <p>
+ * {@link Event}s are fanned out to all subscribers in parallel unless the event requires ordered delivery. If the
+ * executor service rejects the delivery to a subscriber, the rejection is passed to the event error handler and the
+ * returned future fails with it.
+ * {@link ScatterGatherQuery Scatter-gather queries} are sent to all of their handlers concurrently, each handler in its
+ * own task, and the partial replies are merged as they arrive. Handlers that exceed the shard timeout of the query are
+ * treated as failed, in the same way as in {@link LocalAsyncMessageBroker}.
+ * </p>
+ */
+@SuppressWarnings("unused")
+public class LocalFutureMessageBroker extends LocalMessageBroker implements FutureMessageBroker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalFutureMessageBroker.class);
+
+    private final ExecutorService executorService;
+
+    /**
+     * Creates a new {@code LocalFutureMessageBroker}.
+     *
+     * @param applicationContext the Spring application context from which message handlers should be fetched (never
+     *        {@code null}).
+     * @param executorService the executor service to use for handling messages asynchronously (never {@code null}).
+     */
+    public LocalFutureMessageBroker(@NotNull ApplicationContext applicationContext,
+        @NotNull ExecutorService executorService) {
+        super(applicationContext);
+        this.executorService = Objects.requireNonNull(executorService);
+    }
+
+    /**
+     * Returns the executor service that is used for handling messages asynchronously.
+     */
+    @NotNull
+    protected ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public @NotNull <MESSAGE extends Message<REPLY>, REPLY> CompletableFuture<REPLY> sendFuture(
+        @NotNull MESSAGE message) {
+        Objects.requireNonNull(message);
+        if (message instanceof Event) {
+            return (CompletableFuture<REPLY>) publishFuture((Event) message);
+        }
+        if (message instanceof ScatterGatherQuery) {
+            return scatterGatherFuture((ScatterGatherQuery<REPLY>) message);
+        }
+        final Context context = ContextHolder.getOptionalContext().orElse(null);
+        return getHandler(message).map(handler -> handleFuture(message, handler, context))
+            .orElseThrow(() -> new NoSuchMessageHandlerException(message.getClass()));
+    }
+
+    /**
+     * Admits the specified message and hands it over to the specified handler. If the handler implements
+     * {@link FutureMessageHandler} or {@link NonBlockingMessageHandler}, it is invoked by the current thread, otherwise
+     * the executor service is used.
+     *
+     * @param message the message to handle (never {@code null}).
+     * @param handler the handler of the message (never {@code null}).
+     * @param context the context of the message, or {@code null} if there is none.
+     * @return a future that will be completed with the reply (never {@code null}).
+     */
+    @SuppressWarnings("unchecked")
+    @NotNull
+    <MESSAGE extends Message<REPLY>, REPLY> CompletableFuture<REPLY> handleFuture(@NotNull MESSAGE message,
+        @NotNull MessageHandler<MESSAGE, REPLY> handler, Context context) {
+        if (handler instanceof NonBlockingMessageHandler) {
+            try {
+                return CompletableFuture.completedFuture(dispatchInline(message, handler, context));
+            } catch (RuntimeException ex) {
+                return failedFuture(ex);
+            }
+        }
+        final MessageDispatch<MESSAGE, REPLY> dispatch = createDispatch(message, handler, context);
+        try {
+            dispatch.admit();
+        } catch (MessageRejectedException ex) {
+            return getFallbackReplyFuture(message, ex);
+        }
+        if (handler instanceof FutureMessageHandler) {
+            dispatch.onInvocationStarted();
+            final CompletableFuture<REPLY> future;
+            try {
+                future = ((FutureMessageHandler<MESSAGE, REPLY>) handler).handleMessageFuture(message);
+            } catch (RuntimeException ex) {
+                dispatch.onError();
+                return failedFuture(ex);
+            }
+            return future.whenComplete((reply, ex) -> {
+                if (ex == null) {
+                    dispatch.onSuccess();
+                } else {
+                    dispatch.onError();
+                }
+            });
+        }
+        final CompletableFuture<REPLY> future = new CompletableFuture<>();
+        try {
+            executorService.execute(new PrioritizedRunnable(getPriority(message, handler), () -> {
+                ContextHolder.setContext(context);
+                try {
+                    future.complete(dispatch.invoke());
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                } finally {
+                    ContextHolder.resetContext();
+                }
+            }));
+        } catch (RejectedExecutionException ex) {
+            dispatch.release();
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Dispatches the specified message to the specified handler in the current thread, like
+     * {@link #send(Message)} does. The context is only set if it differs from the current context of the thread,
+     * which is never the case when the reply is requested by the thread that sent the message.
+     *
+     * @param message the message to handle (never {@code null}).
+     * @param handler the handler of the message (never {@code null}).
+     * @param context the context of the message, or {@code null} if there is none.
+     * @return the reply from the handler, or the fallback reply if the message was rejected.
+     */
+    <MESSAGE extends Message<REPLY>, REPLY> REPLY dispatchInline(@NotNull MESSAGE message,
+        @NotNull MessageHandler<MESSAGE, REPLY> handler, Context context) {
+        final Context currentContext = ContextHolder.getOptionalContext().orElse(null);
+        if (currentContext == context) {
+            return dispatch(message, handler);
+        }
+        ContextHolder.setContext(context);
+        try {
+            return dispatch(message, handler);
+        } finally {
+            if (currentContext == null) {
+                ContextHolder.resetContext();
+            } else {
+                ContextHolder.setContext(currentContext);
+            }
+        }
+    }
+
+    private <REPLY> CompletableFuture<REPLY> scatterGatherFuture(ScatterGatherQuery<REPLY> query) {
+        final List<MessageHandler<ScatterGatherQuery<REPLY>, REPLY>> handlers = getDeliveryPlan(query).getHandlers();
+        if (handlers.isEmpty()) {
+            throw new NoSuchMessageHandlerException(query.getClass());
+        }
+        final Context context = ContextHolder.getOptionalContext().orElse(null);
+        final Long shardTimeoutNanos = query.getShardTimeout().map(Duration::toNanos).orElse(null);
+        final ScatterGather<REPLY> scatterGather = new ScatterGather<>(query, handlers.size());
+        for (MessageHandler<ScatterGatherQuery<REPLY>, REPLY> handler : handlers) {
+            final MessageDispatch<ScatterGatherQuery<REPLY>, REPLY> dispatch = createDispatch(query, handler, context);
+            try {
+                dispatch.admit();
+            } catch (MessageRejectedException ex) {
+                scatterGather.onFailure(handler, ex);
+                continue;
+            }
+            final CompletableFuture<REPLY> shard = new CompletableFuture<>();
+            executeWithContext(getPriority(query, handler), context, () -> {
+                if (scatterGather.isDone()) {
+                    // The query was completed by the other handlers while this one was waiting in the queue. The
+                    // shard is cancelled so that its timeout is cancelled as well.
+                    dispatch.release();
+                    shard.cancel(false);
+                    return;
+                }
+                try {
+                    shard.complete(dispatch.invoke());
+                } catch (Throwable ex) {
+                    shard.completeExceptionally(ex);
+                }
+            }, ex -> {
+                dispatch.release();
+                shard.completeExceptionally(ex);
+            });
+            if (shardTimeoutNanos != null && !shard.isDone()) {
+                final ScheduledFuture<?> timeout = ShardTimeoutScheduler.INSTANCE.schedule(
+                    () -> shard.completeExceptionally(new TimeoutException("Handler " + handler
+                        + " did not reply within the shard timeout")), shardTimeoutNanos, TimeUnit.NANOSECONDS);
+                shard.whenComplete((reply, ex) -> timeout.cancel(false));
+            }
+            shard.whenComplete((reply, ex) -> {
+                if (ex == null) {
+                    scatterGather.onReply(reply);
+                } else {
+                    scatterGather.onFailure(handler, ex);
+                }
+            });
+        }
+        return scatterGather.result;
+    }
+
+    private CompletableFuture<Void> publishFuture(Event event) {
+        final Context context = ContextHolder.getOptionalContext().orElse(null);
+        final List<MessageHandler<Event, Void>> subscribers = getDeliveryPlan(event).getHandlers();
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        if (subscribers.isEmpty()) {
+            future.complete(null);
+        } else {
+            publishWithExecutor(event, subscribers, context, () -> future.complete(null),
+                future::completeExceptionally);
+        }
+        return future;
+    }
+
+    /**
+     * Delivers the specified event to the specified subscribers using the executor service, in parallel unless the
+     * event requires ordered delivery. Deliveries that the executor service rejects are passed to the event error
+     * handler like any other delivery failure.
+     *
+     * @param onDelivered run once the event has been delivered to every subscriber, regardless of whether the
+     *        subscribers succeeded or not.
+     * @param onRejected called instead of {@code onDelivered} with the first rejection if the executor service
+     *        rejected any of the deliveries.
+     */
+    void publishWithExecutor(@NotNull Event event, @NotNull List<MessageHandler<Event, Void>> subscribers,
+        Context context, @NotNull Runnable onDelivered, @NotNull Consumer<RejectedExecutionException> onRejected) {
+        if (event.isOrdered() || subscribers.size() == 1) {
+            executeWithContext(event.getPriority().orElse(Priority.NORMAL), context, () -> {
+                subscribers.forEach(subscriber -> deliver(event, subscriber, context));
+                onDelivered.run();
+            }, ex -> {
+                subscribers.forEach(subscriber -> handleEventError(event, subscriber, ex));
+                onRejected.accept(ex);
+            });
+        } else {
+            final AtomicInteger remaining = new AtomicInteger(subscribers.size());
+            final AtomicReference<RejectedExecutionException> rejection = new AtomicReference<>();
+            final Runnable countDown = () -> {
+                if (remaining.decrementAndGet() == 0) {
+                    final RejectedExecutionException ex = rejection.get();
+                    if (ex == null) {
+                        onDelivered.run();
+                    } else {
+                        onRejected.accept(ex);
+                    }
+                }
+            };
+            for (MessageHandler<Event, Void> subscriber : subscribers) {
+                executeWithContext(getPriority(event, subscriber), context, () -> {
+                    deliver(event, subscriber, context);
+                    countDown.run();
+                }, ex -> {
+                    handleEventError(event, subscriber, ex);
+                    rejection.compareAndSet(null, ex);
+                    countDown.run();
+                });
+            }
+        }
+    }
+
+    /**
+     * Executes the specified task using the executor service, with the specified context set as the current context.
+     * If the executor service rejects the task, {@code onRejected} is called by the current thread instead.
+     */
+    void executeWithContext(@NotNull Priority priority, Context context, @NotNull Runnable task,
+        @NotNull Consumer<RejectedExecutionException> onRejected) {
+        try {
+            executorService.execute(new PrioritizedRunnable(priority, () -> {
+                ContextHolder.setContext(context);
+                try {
+                    task.run();
+                } finally {
+                    ContextHolder.resetContext();
+                }
+            }));
+        } catch (RejectedExecutionException ex) {
+            LOGGER.warn("Executor service rejected task", ex);
+            onRejected.accept(ex);
+        }
+    }
+
+    /**
+     * Merges the replies of the handlers of a scatter-gather query as they arrive. The reducer is never invoked
+     * concurrently, since all the methods are synchronized.
+     */
+    private class ScatterGather<REPLY> {
+
+        private final CompletableFuture<REPLY> result = new CompletableFuture<>();
+        private final ScatterGatherQuery<REPLY> query;
+        private final ReplyReducer<REPLY> reducer;
+        private int remaining;
+        private boolean hasReply;
+        private REPLY accumulated;
+
+        ScatterGather(ScatterGatherQuery<REPLY> query, int shards) {
+            this.query = query;
+            this.reducer = query.getReplyReducer();
+            this.remaining = shards;
+        }
+
+        boolean isDone() {
+            return result.isDone();
+        }
+
+        synchronized void onReply(REPLY partial) {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                accumulated = hasReply ? reducer.reduce(accumulated, partial) : partial;
+                hasReply = true;
+                if (--remaining == 0 || reducer.isComplete(accumulated)) {
+                    result.complete(accumulated);
+                }
+            } catch (RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        }
+
+        synchronized void onFailure(MessageHandler<?, ?> handler, Throwable exception) {
+            if (result.isDone()) {
+                return;
+            }
+            if (!query.isPartialResultAllowed()) {
+                result.completeExceptionally(exception);
+                return;
+            }
+            LOGGER.warn("Handler {} failed to handle query {}, ignoring its reply", handler, query, exception);
+            if (--remaining == 0) {
+                if (hasReply) {
+                    result.complete(accumulated);
+                    return;
+                }
+                try {
+                    result.complete(getFallbackReply(query, new MessageRejectedException(query.getClass(),
+                        "no handler replied to the query")));
+                } catch (MessageRejectedException ex) {
+                    result.completeExceptionally(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lazily created scheduler that fails the handlers of scatter-gather queries that exceed their shard timeout.
+     */
+    static class ShardTimeoutScheduler {
+
+        static final ScheduledThreadPoolExecutor INSTANCE = createScheduler();
+
+        private static ScheduledThreadPoolExecutor createScheduler() {
+            final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                final Thread thread = new Thread(runnable, "irongrim-shard-timeout");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
+
+    private <REPLY> CompletableFuture<REPLY> getFallbackReplyFuture(Message<REPLY> message,
+        MessageRejectedException exception) {
+        try {
+            return CompletableFuture.completedFuture(getFallbackReply(message, exception));
+        } catch (MessageRejectedException ex) {
+            return failedFuture(ex);
+        }
+    }
+
+    private static <REPLY> CompletableFuture<REPLY> failedFuture(Throwable ex) {
+        final CompletableFuture<REPLY> future = new CompletableFuture<>();
+        future.completeExceptionally(ex);
+        return future;
+    }
+
+    /**
+     * Returns the priority of the specified message, falling back to the priority of the handler if the message does
+     * not have one.
+     */
+    @NotNull
+    static Priority getPriority(@NotNull Message<?> message, @NotNull MessageHandler<?, ?> handler) {
+        return message.getPriority().orElseGet(() -> handler instanceof PrioritizedMessageHandler
+            ? ((PrioritizedMessageHandler<?, ?>) handler).getPriority() : Priority.NORMAL);
+    }
+}
@@ -15,25 +15,64 @@
  */
 package net.pkhsolutions.irongrim.local;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
-import net.pkhsolutions.irongrim.api.Message;
-import net.pkhsolutions.irongrim.api.MessageBroker;
-import net.pkhsolutions.irongrim.api.MessageHandler;
-import net.pkhsolutions.irongrim.api.NoSuchMessageHandlerException;
+import net.pkhsolutions.irongrim.api.*;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
+import org.springframework.core.annotation.AnnotationAwareOrderComparator;
+import org.springframework.util.ErrorHandler;
 import org.springframework.util.StopWatch;
 
 /**
  * Thread-safe implementation of {@link MessageBroker} that looks up the {@link MessageHandler}s from the Spring
  * application context. The handlers are cached, so the lookup is only done once for each message type.
+ * <p>
+ * Handlers can also be {@link #registerHandler(MessageHandler) registered} and
+ * {@link #unregisterHandler(MessageHandler) unregistered} at runtime, for example by plugins. Registered handlers take
+ * precedence over the handlers in the application context. The cached handlers are kept in an immutable dispatch
+ * table that is replaced atomically whenever it changes, so sending a message never requires locking. Messages that
+ * are already being handled by a handler when it is unregistered are not affected and finish normally.
+ * </p>
+ * <p>
+ * {@link Event}s are delivered to all subscribers, one at a time in the order defined by Spring's
+ * {@link org.springframework.core.annotation.Order @Order} annotation and {@link org.springframework.core.Ordered}
+ * interface. The subscribers of each event class are looked up once and then cached. Exceptions thrown by subscribers
+ * are passed to the {@link #setEventErrorHandler(ErrorHandler) event error handler}, which by default logs them.
+ * </p>
+ * <p>
+ * {@link ScatterGatherQuery Scatter-gather queries} are sent to all of their handlers, one at a time, and the replies
+ * are merged using the reducer of the query. Use {@link LocalAsyncMessageBroker} to query the handlers concurrently.
+ * </p>
+ * <p>
+ * If the current {@link Context} has a deadline that has already passed, the message is dropped and a
+ * {@link DeadlineExceededException} is thrown instead of invoking the handler.
+ * </p>
+ * <p>
+ * The handlers can optionally be protected by {@link CircuitBreaker}s, see
+ * {@link #setCircuitBreakerRegistry(CircuitBreakerRegistry)}. While a circuit breaker is open, messages are rejected
+ * without invoking the handler. The {@link Message#getFallbackReply() fallback reply} of the message is returned
+ * instead if there is one; otherwise a {@link CircuitBreakerOpenException} is thrown.
+ * </p>
+ * <p>
+ * The number of messages in flight can optionally be limited by adaptive {@link ConcurrencyLimiter}s, see
+ * {@link #setConcurrencyLimiterRegistry(ConcurrencyLimiterRegistry)}. Messages exceeding the limit are rejected in the
+ * same way as messages rejected by an open circuit breaker.
+ * </p>
+ * <p>
+ * Every dispatch can optionally be recorded by a {@link FlightRecorder}, see
+ * {@link #setFlightRecorder(FlightRecorder)}. This is cheap enough to be left on in production, unlike TRACE logging.
+ * </p>
  */
 @SuppressWarnings("unused")
 public class LocalMessageBroker implements MessageBroker {
@@ -41,7 +80,12 @@ public class LocalMessageBroker implements MessageBroker {
     private static final Logger LOGGER = LoggerFactory.getLogger(LocalMessageBroker.class);
 
     private final ApplicationContext applicationContext;
-    private final Map<Class<?>, MessageHandler> messageHandlerCache = new ConcurrentHashMap<>();
+    private final AtomicReference<DispatchTable> dispatchTable = new AtomicReference<>(DispatchTable.EMPTY);
+    private final LongAdder expiredMessageCount = new LongAdder();
+    private volatile CircuitBreakerRegistry circuitBreakerRegistry;
+    private volatile ConcurrencyLimiterRegistry concurrencyLimiterRegistry;
+    private volatile FlightRecorder flightRecorder;
+    private volatile ErrorHandler eventErrorHandler = ex -> LOGGER.error("Event subscriber threw an exception", ex);
 
     /**
      * Creates a new {@code LocalMessageBroker}.
@@ -54,13 +98,21 @@ public class LocalMessageBroker implements MessageBroker {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public <MESSAGE extends Message<REPLY>, REPLY> REPLY send(@NotNull MESSAGE message) {
         Objects.requireNonNull(message);
         LOGGER.trace("Sending message synchronously {}", message);
         final StopWatch stopWatch = new StopWatch();
         stopWatch.start();
         try {
-            return getHandler(message).map(handler -> handler.handleMessage(message))
+            if (message instanceof Event) {
+                publish((Event) message);
+                return null;
+            }
+            if (message instanceof ScatterGatherQuery) {
+                return scatterGather((ScatterGatherQuery<REPLY>) message);
+            }
+            return getHandler(message).map(handler -> dispatch(message, handler))
                 .orElseThrow(() -> new NoSuchMessageHandlerException(message.getClass()));
         } finally {
             stopWatch.stop();
@@ -68,6 +120,337 @@ public class LocalMessageBroker implements MessageBroker {
         }
     }
 
+    /**
+     * Registers a handler at runtime. The handler is used in addition to the handlers in the application context, and
+     * takes precedence over them when a message class has a single handler. Handlers that are already registered are
+     * ignored.
+     *
+     * @param handler the handler to register (never {@code null}).
+     * @return true if the handler was registered, false if it was already registered.
+     */
+    public boolean registerHandler(@NotNull MessageHandler<?, ?> handler) {
+        Objects.requireNonNull(handler);
+        DispatchTable table;
+        do {
+            table = dispatchTable.get();
+            if (table.isRegistered(handler)) {
+                return false;
+            }
+        } while (!dispatchTable.compareAndSet(table, table.withRegisteredHandler(handler)));
+        LOGGER.info("Registered handler {}", handler);
+        return true;
+    }
+
+    /**
+     * Unregisters a handler that has previously been {@link #registerHandler(MessageHandler) registered}. New messages
+     * are no longer delivered to the handler once this method returns, but messages that are already being handled by
+     * it are allowed to finish. The circuit breaker of the handler, if any, is removed from the
+     * {@link CircuitBreakerRegistry}.
+     *
+     * @param handler the handler to unregister (never {@code null}).
+     * @return true if the handler was unregistered, false if it was not registered.
+     */
+    public boolean unregisterHandler(@NotNull MessageHandler<?, ?> handler) {
+        Objects.requireNonNull(handler);
+        DispatchTable table;
+        do {
+            table = dispatchTable.get();
+            if (!table.isRegistered(handler)) {
+                return false;
+            }
+        } while (!dispatchTable.compareAndSet(table, table.withoutRegisteredHandler(handler)));
+        final CircuitBreakerRegistry circuitBreakerRegistry = this.circuitBreakerRegistry;
+        if (circuitBreakerRegistry != null) {
+            circuitBreakerRegistry.removeCircuitBreaker(handler);
+        }
+        LOGGER.info("Unregistered handler {}", handler);
+        return true;
+    }
+
+    /**
+     * Gets the number of messages that have been dropped because their deadline had passed before they were handled.
+     *
+     * @return the number of expired messages.
+     */
+    public long getExpiredMessageCount() {
+        return expiredMessageCount.sum();
+    }
+
+    /**
+     * Sets the handler that is passed any exceptions thrown by event subscribers, as well as the exceptions of events
+     * that could not be delivered to a subscriber at all. By default, the exceptions are logged.
+     *
+     * @param eventErrorHandler the error handler (never {@code null}).
+     */
+    public void setEventErrorHandler(@NotNull ErrorHandler eventErrorHandler) {
+        this.eventErrorHandler = Objects.requireNonNull(eventErrorHandler);
+    }
+
+    private void publish(Event event) {
+        final Context context = ContextHolder.getOptionalContext().orElse(null);
+        final List<MessageHandler<Event, Void>> subscribers = getDeliveryPlan(event).getHandlers();
+        for (MessageHandler<Event, Void> subscriber : subscribers) {
+            deliver(event, subscriber, context);
+        }
+    }
+
+    /**
+     * Delivers the specified event to a single subscriber in the current thread. Any exception thrown by the
+     * subscriber, or any rejection of the event, is passed to the event error handler.
+     *
+     * @param event the event to deliver (never {@code null}).
+     * @param subscriber the subscriber to deliver the event to (never {@code null}).
+     * @param context the context of the event, or {@code null} if there is none.
+     */
+    void deliver(@NotNull Event event, @NotNull MessageHandler<Event, Void> subscriber, @Nullable Context context) {
+        try {
+            final MessageDispatch<Event, Void> dispatch = createDispatch(event, subscriber, context);
+            dispatch.admit();
+            dispatch.invoke();
+        } catch (RuntimeException ex) {
+            handleEventError(event, subscriber, ex);
+        }
+    }
+
+    /**
+     * Passes an exception that prevented the specified event from being delivered to the specified subscriber to the
+     * event error handler.
+     *
+     * @param event the event that could not be delivered (never {@code null}).
+     * @param subscriber the subscriber that did not receive the event (never {@code null}).
+     * @param exception the exception (never {@code null}).
+     */
+    void handleEventError(@NotNull Event event, @NotNull MessageHandler<Event, Void> subscriber,
+        @NotNull RuntimeException exception) {
+        LOGGER.debug("Could not deliver event {} to subscriber {}", event, subscriber, exception);
+        eventErrorHandler.handleError(exception);
+    }
+
+    /**
+     * Sends the specified query to all of its handlers, one at a time, and merges the replies. Shard timeouts are not
+     * supported, since the handlers are invoked by the current thread.
+     */
+    <REPLY> REPLY scatterGather(@NotNull ScatterGatherQuery<REPLY> query) {
+        final List<MessageHandler<ScatterGatherQuery<REPLY>, REPLY>> handlers = getDeliveryPlan(query).getHandlers();
+        if (handlers.isEmpty()) {
+            throw new NoSuchMessageHandlerException(query.getClass());
+        }
+        final ReplyReducer<REPLY> reducer = query.getReplyReducer();
+        final Context context = ContextHolder.getOptionalContext().orElse(null);
+        boolean hasReply = false;
+        REPLY accumulated = null;
+        for (MessageHandler<ScatterGatherQuery<REPLY>, REPLY> handler : handlers) {
+            final REPLY partial;
+            try {
+                final MessageDispatch<ScatterGatherQuery<REPLY>, REPLY> dispatch = createDispatch(query, handler,
+                    context);
+                dispatch.admit();
+                partial = dispatch.invoke();
+            } catch (RuntimeException ex) {
+                if (!query.isPartialResultAllowed()) {
+                    throw ex;
+                }
+                LOGGER.warn("Handler {} failed to handle query {}, ignoring its reply", handler, query, ex);
+                continue;
+            }
+            accumulated = hasReply ? reducer.reduce(accumulated, partial) : partial;
+            hasReply = true;
+            if (reducer.isComplete(accumulated)) {
+                break;
+            }
+        }
+        if (!hasReply) {
+            return query.getFallbackReply().orElseThrow(
+                () -> new MessageRejectedException(query.getClass(), "no handler replied to the query"));
+        }
+        return accumulated;
+    }
+
+    /**
+     * Gets the plan for delivering the specified message to all of its handlers, either from the cache or by looking
+     * up the handlers in the application context. This is used for {@link Event}s and {@link ScatterGatherQuery
+     * scatter-gather queries}.
+     *
+     * @param message the message that needs to be delivered (never {@code null}).
+     * @return the delivery plan (never {@code null}).
+     */
+    @NotNull
+    DeliveryPlan getDeliveryPlan(@NotNull Message<?> message) {
+        return getDeliveryPlan(message.getClass());
+    }
+
+    @NotNull
+    private DeliveryPlan getDeliveryPlan(@NotNull Class<? extends Message> messageClass) {
+        DispatchTable table = dispatchTable.get();
+        DeliveryPlan deliveryPlan = table.getDeliveryPlan(messageClass);
+        if (deliveryPlan != null) {
+            return deliveryPlan;
+        }
+        while (true) {
+            final DispatchTable scannedTable = table;
+            final List<MessageHandler> handlers = getCandidateHandlers(scannedTable).stream()
+                .filter(handler -> handler.supports(messageClass)).sorted(AnnotationAwareOrderComparator.INSTANCE)
+                .collect(Collectors.toList());
+            final DeliveryPlan newDeliveryPlan = new DeliveryPlan(messageClass, handlers);
+            do {
+                if (dispatchTable.compareAndSet(table, table.withDeliveryPlan(newDeliveryPlan))) {
+                    LOGGER.info("Found {} handler(s) for multicast message class {}", handlers.size(),
+                        messageClass.getName());
+                    return newDeliveryPlan;
+                }
+                table = dispatchTable.get();
+                deliveryPlan = table.getDeliveryPlan(messageClass);
+                if (deliveryPlan != null) {
+                    return deliveryPlan;
+                }
+                // The plan is still valid for the new table unless a handler was (un)registered during the scan
+            } while (table.hasSameRegisteredHandlers(scannedTable));
+        }
+    }
+
+    /**
+     * Looks up the handler(s) of the specified message class and stores them in the cache, so that the first message
+     * of that class does not have to wait for the application context to be scanned.
+     *
+     * @param messageClass the message class whose handlers should be looked up (never {@code null}).
+     * @return true if at least one handler was found, false otherwise.
+     * @see MessageBrokerWarmer
+     */
+    public boolean preResolveHandlers(@NotNull Class<? extends Message> messageClass) {
+        Objects.requireNonNull(messageClass);
+        if (Event.class.isAssignableFrom(messageClass) || ScatterGatherQuery.class.isAssignableFrom(messageClass)) {
+            return !getDeliveryPlan(messageClass).isEmpty();
+        }
+        return resolveHandler(messageClass) != null;
+    }
+
+    /**
+     * Gets the registry of circuit breakers that protect the message handlers.
+     *
+     * @return the registry, or an empty {@code Optional} if circuit breakers are not in use.
+     */
+    @NotNull
+    public Optional<CircuitBreakerRegistry> getCircuitBreakerRegistry() {
+        return Optional.ofNullable(circuitBreakerRegistry);
+    }
+
+    /**
+     * Sets the registry of circuit breakers that protect the message handlers.
+     *
+     * @param circuitBreakerRegistry the registry, or {@code null} to stop using circuit breakers.
+     */
+    public void setCircuitBreakerRegistry(@Nullable CircuitBreakerRegistry circuitBreakerRegistry) {
+        this.circuitBreakerRegistry = circuitBreakerRegistry;
+    }
+
+    /**
+     * Gets the registry of concurrency limiters that limit the number of messages in flight.
+     *
+     * @return the registry, or an empty {@code Optional} if concurrency limiters are not in use.
+     */
+    @NotNull
+    public Optional<ConcurrencyLimiterRegistry> getConcurrencyLimiterRegistry() {
+        return Optional.ofNullable(concurrencyLimiterRegistry);
+    }
+
+    /**
+     * Sets the registry of concurrency limiters that limit the number of messages in flight.
+     *
+     * @param concurrencyLimiterRegistry the registry, or {@code null} to stop limiting concurrency.
+     */
+    public void setConcurrencyLimiterRegistry(@Nullable ConcurrencyLimiterRegistry concurrencyLimiterRegistry) {
+        this.concurrencyLimiterRegistry = concurrencyLimiterRegistry;
+    }
+
+    /**
+     * Gets the flight recorder that records every dispatch.
+     *
+     * @return the flight recorder, or an empty {@code Optional} if dispatches are not recorded.
+     */
+    @NotNull
+    public Optional<FlightRecorder> getFlightRecorder() {
+        return Optional.ofNullable(flightRecorder);
+    }
+
+    /**
+     * Sets the flight recorder that records every dispatch.
+     *
+     * @param flightRecorder the flight recorder, or {@code null} to stop recording dispatches.
+     */
+    public void setFlightRecorder(@Nullable FlightRecorder flightRecorder) {
+        this.flightRecorder = flightRecorder;
+    }
+
+    /**
+     * Checks whether every dispatch needs to be tracked from admission to completion, i.e. whether circuit breakers,
+     * concurrency limiters or a flight recorder are in use.
+     */
+    boolean isDispatchTracked() {
+        return circuitBreakerRegistry != null || concurrencyLimiterRegistry != null || flightRecorder != null;
+    }
+
+    /**
+     * Admits and invokes the specified handler in the current thread.
+     *
+     * @param message the message to handle (never {@code null}).
+     * @param handler the handler to invoke (never {@code null}).
+     * @return the reply from the handler, or the fallback reply if the message was rejected.
+     * @throws MessageRejectedException if the message was rejected and has no fallback reply.
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected <MESSAGE extends Message<REPLY>, REPLY> REPLY dispatch(@NotNull MESSAGE message,
+        @NotNull MessageHandler<MESSAGE, REPLY> handler) {
+        final MessageDispatch<MESSAGE, REPLY> dispatch = createDispatch(message, handler,
+            ContextHolder.getOptionalContext().orElse(null));
+        try {
+            dispatch.admit();
+        } catch (MessageRejectedException ex) {
+            return getFallbackReply(message, ex);
+        }
+        return dispatch.invoke();
+    }
+
+    @NotNull
+    <MESSAGE extends Message<REPLY>, REPLY> MessageDispatch<MESSAGE, REPLY> createDispatch(@NotNull MESSAGE message,
+        @NotNull MessageHandler<MESSAGE, REPLY> handler, @Nullable Context context) {
+        return new MessageDispatch<>(this, message, handler, context);
+    }
+
+    /**
+     * Gets the fallback reply of a message that has been rejected. Messages that were rejected because of an expired
+     * deadline never get a fallback reply, since nobody is waiting for it.
+     *
+     * @param message the rejected message (never {@code null}).
+     * @param exception the reason the message was rejected (never {@code null}).
+     * @return the fallback reply.
+     * @throws MessageRejectedException the {@code exception} if there is no fallback reply.
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected <REPLY> REPLY getFallbackReply(@NotNull Message<REPLY> message,
+        @NotNull MessageRejectedException exception) {
+        if (exception instanceof DeadlineExceededException) {
+            throw exception;
+        }
+        LOGGER.debug("Message {} was rejected, trying to use fallback reply", message, exception);
+        return message.getFallbackReply().orElseThrow(() -> exception);
+    }
+
+    /**
+     * Checks whether the deadline of the specified {@link Context} has passed.
+     *
+     * @param message the message that is about to be handled (never {@code null}).
+     * @param context the context of the message, or {@code null} if there is none.
+     * @throws DeadlineExceededException if the deadline has passed.
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected void checkDeadline(@NotNull Message<?> message, @Nullable Context context) {
+        if (context != null && context.isExpired()) {
+            LOGGER.debug("Dropping message {} since its deadline has passed", message);
+            expiredMessageCount.increment();
+            throw new DeadlineExceededException(message.getClass());
+        }
+    }
+
     /**
      * Tries to find a message handler for the specified message, either from the cache or from the application context.
      * 
@@ -78,25 +461,47 @@ public class LocalMessageBroker implements MessageBroker {
     @NotNull
     protected <MESSAGE extends Message<REPLY>, REPLY> Optional<MessageHandler<MESSAGE, REPLY>> getHandler(
         @NotNull MESSAGE message) {
-        final Class<? extends Message> messageClass = message.getClass();
-        MessageHandler messageHandler = messageHandlerCache.get(messageClass);
+        return Optional.ofNullable(resolveHandler(message.getClass()));
+    }
+
+    private MessageHandler resolveHandler(@NotNull Class<? extends Message> messageClass) {
+        DispatchTable table = dispatchTable.get();
+        MessageHandler messageHandler = table.getHandler(messageClass);
         if (messageHandler != null) {
             LOGGER.trace("Found handler {} for message class {} in cache", messageHandler, messageClass.getName());
-        } else {
-            LOGGER.debug("Looking for a handler for message class {}", messageClass.getName());
-            messageHandler = findHandler(messageClass);
-            if (messageHandler != null) {
-                LOGGER.info("Found handler {} for message class {}", messageHandler, messageClass.getName());
-                messageHandlerCache.put(messageClass, messageHandler);
-            } else {
+            return messageHandler;
+        }
+        LOGGER.debug("Looking for a handler for message class {}", messageClass.getName());
+        while (true) {
+            final DispatchTable scannedTable = table;
+            messageHandler = getCandidateHandlers(scannedTable).stream()
+                .filter(handler -> handler.supports(messageClass)).findFirst().orElse(null);
+            if (messageHandler == null) {
                 LOGGER.warn("Found no handler for message class {}", messageClass);
+                return null;
             }
+            do {
+                if (dispatchTable.compareAndSet(table, table.withHandler(messageClass, messageHandler))) {
+                    LOGGER.info("Found handler {} for message class {}", messageHandler, messageClass.getName());
+                    return messageHandler;
+                }
+                table = dispatchTable.get();
+                final MessageHandler cachedHandler = table.getHandler(messageClass);
+                if (cachedHandler != null) {
+                    return cachedHandler;
+                }
+                // The handler is still valid for the new table unless a handler was (un)registered during the scan
+            } while (table.hasSameRegisteredHandlers(scannedTable));
         }
-        return Optional.ofNullable(messageHandler);
     }
 
-    private MessageHandler findHandler(@NotNull Class<? extends Message> messageClass) {
-        return applicationContext.getBeansOfType(MessageHandler.class).values().stream()
-            .filter(handler -> handler.supports(messageClass)).findFirst().orElse(null);
+    /**
+     * Returns the registered handlers of the specified table followed by the handlers in the application context.
+     */
+    @NotNull
+    private List<MessageHandler> getCandidateHandlers(@NotNull DispatchTable table) {
+        final List<MessageHandler> candidates = new ArrayList<>(table.getRegisteredHandlers());
+        candidates.addAll(applicationContext.getBeansOfType(MessageHandler.class).values());
+        return candidates;
     }
 }
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.time.Duration;
+import java.util.*;
+
+import net.pkhsolutions.irongrim.api.*;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.SmartLifecycle;
+
+/**
+ * Warms up a {@link LocalMessageBroker} when the Spring application context starts, so that the first real messages
+ * do not have to pay for scanning the application context for handlers, cold caches and code that has not yet been
+ * compiled by the JIT compiler. The warm-up consists of two steps:
+ * <ol>
+ * <li>The handlers of all {@link #setMessageClasses(Collection) known message classes} and of the classes of all
+ * warm-up messages are looked up and stored in the cache of the broker.</li>
+ * <li>The warm-up messages of all {@link WarmableMessageHandler}s are sent through the broker
+ * {@link #setIterations(int) a number of times}. Every message is sent using {@link MessageBroker#send(Message)},
+ * and also using {@link AsyncMessageBroker#sendAsync(Message)} and {@link FutureMessageBroker#sendFuture(Message)} if
+ * the broker supports them. A {@link Context} is set while the messages are being sent.</li>
+ * </ol>
+ * <p>
+ * The warm-up is performed in {@link #start()}, which blocks until the warm-up has finished. Since Spring Boot starts
+ * the embedded servlet container after all lifecycle beans have been started, the node does not accept requests, and
+ * therefore does not report itself as ready, before the warm-up has finished. Other readiness checks can use
+ * {@link #isWarmedUp()}. Failures during the warm-up are logged but do not prevent the application from starting.
+ * </p>
+ * <p>
+ * Warm-up messages are marked with the {@value #WARM_UP_ATTRIBUTE} attribute of the {@link Context}, which is also
+ * inherited by any messages the handlers send in turn. The broker lets marked messages bypass the circuit breakers,
+ * the concurrency limiters, the flight recorder and the retry policies. Otherwise, warm-up failures and the slow calls
+ * of code that has not been compiled yet would count towards the production state of the circuit breakers and
+ * limiters, and a circuit breaker could be open before the first real message arrives.
+ * </p>
+ */
+@SuppressWarnings("unused")
+public class MessageBrokerWarmer implements SmartLifecycle {
+
+    /**
+     * The name of the {@link Context} attribute that marks warm-up messages.
+     */
+    public static final String WARM_UP_ATTRIBUTE = "irongrim.warmUp";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageBrokerWarmer.class);
+
+    private final ApplicationContext applicationContext;
+    private final LocalMessageBroker messageBroker;
+    private final Set<Class<? extends Message>> messageClasses = new LinkedHashSet<>();
+    private int iterations = 1000;
+    private Duration timeLimit = Duration.ofSeconds(30);
+    private int phase = 0;
+    private volatile boolean running;
+    private volatile Duration warmUpDuration;
+
+    /**
+     * Creates a new {@code MessageBrokerWarmer}.
+     *
+     * @param applicationContext the Spring application context from which the {@link WarmableMessageHandler}s should
+     *        be fetched (never {@code null}).
+     * @param messageBroker the message broker to warm up (never {@code null}).
+     */
+    public MessageBrokerWarmer(@NotNull ApplicationContext applicationContext,
+        @NotNull LocalMessageBroker messageBroker) {
+        this.applicationContext = Objects.requireNonNull(applicationContext);
+        this.messageBroker = Objects.requireNonNull(messageBroker);
+    }
+
+    /**
+     * Sets the message classes whose handlers should be looked up in advance, in addition to the classes of the
+     * warm-up messages.
+     *
+     * @param messageClasses the message classes (never {@code null}).
+     * @return this warmer, to allow for method chaining.
+     */
+    @NotNull
+    public MessageBrokerWarmer setMessageClasses(@NotNull Collection<Class<? extends Message>> messageClasses) {
+        this.messageClasses.clear();
+        this.messageClasses.addAll(messageClasses);
+        return this;
+    }
+
+    /**
+     * Sets the number of times every warm-up message is sent through each of the send methods of the broker. The
+     * default is 1000. Zero means that the handlers are only looked up in advance.
+     *
+     * @param iterations the number of iterations (must not be negative).
+     * @return this warmer, to allow for method chaining.
+     */
+    @NotNull
+    public MessageBrokerWarmer setIterations(int iterations) {
+        if (iterations < 0) {
+            throw new IllegalArgumentException("iterations must not be negative");
+        }
+        this.iterations = iterations;
+        return this;
+    }
+
+    /**
+     * Sets the maximum time to spend on sending warm-up messages. If the time limit is reached, the warm-up stops after
+     * the current iteration. The default is 30 seconds.
+     *
+     * @param timeLimit the time limit (never {@code null}).
+     * @return this warmer, to allow for method chaining.
+     */
+    @NotNull
+    public MessageBrokerWarmer setTimeLimit(@NotNull Duration timeLimit) {
+        this.timeLimit = Objects.requireNonNull(timeLimit);
+        return this;
+    }
+
+    /**
+     * Sets the lifecycle phase in which the warm-up is performed. The default is 0.
+     *
+     * @param phase the phase.
+     * @return this warmer, to allow for method chaining.
+     * @see SmartLifecycle#getPhase()
+     */
+    @NotNull
+    public MessageBrokerWarmer setPhase(int phase) {
+        this.phase = phase;
+        return this;
+    }
+
+    /**
+     * Checks whether the warm-up has finished.
+     */
+    public boolean isWarmedUp() {
+        return warmUpDuration != null;
+    }
+
+    /**
+     * Gets the time the warm-up took.
+     *
+     * @return the duration of the warm-up, or an empty {@code Optional} if the warm-up has not finished yet.
+     */
+    @NotNull
+    public Optional<Duration> getWarmUpDuration() {
+        return Optional.ofNullable(warmUpDuration);
+    }
+
+    /**
+     * Performs the warm-up. This method is invoked by {@link #start()} but can also be invoked manually.
+     *
+     * @return the duration of the warm-up (never {@code null}).
+     */
+    @NotNull
+    public Duration warmUp() {
+        final long start = System.nanoTime();
+        final List<Message<?>> messages = getWarmUpMessages();
+        final Set<Class<? extends Message>> classesToResolve = new LinkedHashSet<>(messageClasses);
+        messages.forEach(message -> classesToResolve.add(message.getClass()));
+        int unresolved = 0;
+        for (Class<? extends Message> messageClass : classesToResolve) {
+            if (!messageBroker.preResolveHandlers(messageClass)) {
+                ++unresolved;
+            }
+        }
+        final long resolved = System.nanoTime();
+        LOGGER.info("Looked up handlers for {} message class(es) in {} ms, {} without handlers",
+            classesToResolve.size(), (resolved - start) / 1_000_000, unresolved);
+
+        int completedIterations = 0;
+        int failures = 0;
+        if (!messages.isEmpty()) {
+            final long timeLimitNanos = timeLimit.toNanos();
+            final Context callerContext = ContextHolder.getOptionalContext().orElse(null);
+            ContextHolder.setContext(new Context().setAttribute(WARM_UP_ATTRIBUTE, Boolean.TRUE));
+            try {
+                while (completedIterations < iterations && System.nanoTime() - resolved < timeLimitNanos) {
+                    for (Message<?> message : messages) {
+                        failures += sendWarmUpMessage(message);
+                    }
+                    ++completedIterations;
+                }
+            } finally {
+                if (callerContext == null) {
+                    ContextHolder.resetContext();
+                } else {
+                    ContextHolder.setContext(callerContext);
+                }
+            }
+            if (completedIterations < iterations) {
+                LOGGER.warn("Warm-up time limit of {} reached after {} of {} iterations", timeLimit,
+                    completedIterations, iterations);
+            }
+            if (failures > 0) {
+                LOGGER.warn("{} warm-up message(s) failed, see the debug log for details", failures);
+            }
+        }
+        final Duration duration = Duration.ofNanos(System.nanoTime() - start);
+        LOGGER.info("Sent {} warm-up message(s) {} time(s) in {} ms, warm-up took {} ms in total", messages.size(),
+            completedIterations, (System.nanoTime() - resolved) / 1_000_000, duration.toMillis());
+        warmUpDuration = duration;
+        return duration;
+    }
+
+    /**
+     * Checks whether the specified context belongs to a warm-up message.
+     *
+     * @param context the context, or {@code null} if the message has none.
+     * @return true if the message is a warm-up message, false otherwise.
+     */
+    static boolean isWarmUp(@Nullable Context context) {
+        return context != null && Boolean.TRUE.equals(context.getAttribute(WARM_UP_ATTRIBUTE));
+    }
+
+    private List<Message<?>> getWarmUpMessages() {
+        final List<Message<?>> messages = new ArrayList<>();
+        for (MessageHandler<?, ?> handler : applicationContext.getBeansOfType(MessageHandler.class).values()) {
+            if (handler instanceof WarmableMessageHandler) {
+                messages.addAll(((WarmableMessageHandler<?, ?>) handler).getWarmUpMessages());
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Sends the specified message using all the send methods of the broker.
+     *
+     * @return the number of send methods that failed.
+     */
+    private int sendWarmUpMessage(Message<?> message) {
+        int failures = 0;
+        try {
+            messageBroker.send(message);
+        } catch (RuntimeException ex) {
+            LOGGER.debug("Warm-up message {} failed", message, ex);
+            ++failures;
+        }
+        if (messageBroker instanceof FutureMessageBroker) {
+            try {
+                ((FutureMessageBroker) messageBroker).sendFuture(message).join();
+            } catch (RuntimeException ex) {
+                LOGGER.debug("Warm-up message {} failed", message, ex);
+                ++failures;
+            }
+        }
+        if (messageBroker instanceof AsyncMessageBroker) {
+            try {
+                RxWarmUp.sendAsync((AsyncMessageBroker) messageBroker, message);
+            } catch (RuntimeException ex) {
+                LOGGER.debug("Warm-up message {} failed", message, ex);
+                ++failures;
+            }
+        }
+        return failures;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        warmUp();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return phase;
+    }
+
+    /**
+     * Keeps all references to RxJava in a separate class, so that the warmer can be used without RxJava on the
+     * classpath.
+     */
+    private static class RxWarmUp {
+
+        static void sendAsync(AsyncMessageBroker messageBroker, Message<?> message) {
+            messageBroker.sendAsync(message).toBlocking().lastOrDefault(null);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.pkhsolutions.irongrim.api.*;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A single dispatch of a message to its handler through a {@link LocalMessageBroker}. A dispatch is first
+ * {@link #admit() admitted}, which is where the broker decides whether the message should be handled at all, and then
+ * {@link #invoke() invoked} by the thread that handles the message. Keeping the two steps apart makes it possible for
+ * {@link LocalAsyncMessageBroker} to reject messages before they ever reach its executor service.
+ * <p>
+ * A dispatch is not thread-safe, but may be handed over from one thread to another between admission and invocation.
+ * The exception is finishing the dispatch: {@link #release()}, {@link #onSuccess()} and {@link #onError()} may be
+ * called concurrently and any number of times, but only the first call has any effect. This makes it possible to
+ * release an asynchronous dispatch when its subscriber unsubscribes without knowing whether it has already completed.
+ * </p>
+ */
+class MessageDispatch<MESSAGE extends Message<REPLY>, REPLY> {
+
+    private final LocalMessageBroker broker;
+    private final MESSAGE message;
+    private final MessageHandler<MESSAGE, REPLY> handler;
+    private final Context context;
+    private final FlightRecorder flightRecorder;
+    private final boolean warmUp;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private CircuitBreaker circuitBreaker;
+    private CircuitBreaker.Generation circuitBreakerPermission;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private long admissionTime;
+    private long invocationTime;
+
+    MessageDispatch(@NotNull LocalMessageBroker broker, @NotNull MESSAGE message,
+        @NotNull MessageHandler<MESSAGE, REPLY> handler, @Nullable Context context) {
+        this.broker = Objects.requireNonNull(broker);
+        this.message = Objects.requireNonNull(message);
+        this.handler = Objects.requireNonNull(handler);
+        this.context = context;
+        this.warmUp = MessageBrokerWarmer.isWarmUp(context);
+        this.flightRecorder = warmUp ? null : broker.getFlightRecorder().orElse(null);
+    }
+
+    @NotNull
+    MESSAGE getMessage() {
+        return message;
+    }
+
+    @NotNull
+    MessageHandler<MESSAGE, REPLY> getHandler() {
+        return handler;
+    }
+
+    @Nullable
+    Context getContext() {
+        return context;
+    }
+
+    /**
+     * Decides whether the message may be handled. If this method returns normally, either {@link #invoke()} or
+     * {@link #release()} must be called afterwards. Warm-up messages bypass the circuit breakers and the concurrency
+     * limiters, see {@link MessageBrokerWarmer}.
+     *
+     * @throws MessageRejectedException if the message must not be handled.
+     */
+    void admit() {
+        admissionTime = System.nanoTime();
+        try {
+            broker.checkDeadline(message, context);
+            if (warmUp) {
+                return;
+            }
+            final CircuitBreakerRegistry circuitBreakerRegistry = broker.getCircuitBreakerRegistry().orElse(null);
+            if (circuitBreakerRegistry != null) {
+                final CircuitBreaker candidate = circuitBreakerRegistry.getCircuitBreaker(message, handler);
+                final CircuitBreaker.Generation permission = candidate.tryAcquirePermission();
+                if (permission == null) {
+                    throw new CircuitBreakerOpenException(message.getClass());
+                }
+                circuitBreaker = candidate;
+                circuitBreakerPermission = permission;
+            }
+            final ConcurrencyLimiterRegistry concurrencyLimiterRegistry = broker.getConcurrencyLimiterRegistry()
+                .orElse(null);
+            if (concurrencyLimiterRegistry != null) {
+                final ConcurrencyLimiter candidate = concurrencyLimiterRegistry.getConcurrencyLimiter(message);
+                if (!candidate.tryAcquire()) {
+                    release();
+                    throw new ConcurrencyLimitExceededException(message.getClass());
+                }
+                concurrencyLimiter = candidate;
+            }
+        } catch (MessageRejectedException ex) {
+            record(0, 0, ex instanceof DeadlineExceededException ? FlightRecord.Outcome.EXPIRED
+                : FlightRecord.Outcome.REJECTED);
+            throw ex;
+        }
+    }
+
+    /**
+     * Invokes the handler in the current thread and records the outcome. The deadline is checked once more, since
+     * the message may have been waiting in a queue since it was admitted.
+     *
+     * @return the reply from the handler.
+     * @throws DeadlineExceededException if the deadline has passed.
+     */
+    REPLY invoke() {
+        onInvocationStarted();
+        try {
+            broker.checkDeadline(message, context);
+        } catch (DeadlineExceededException ex) {
+            release();
+            record(invocationTime - admissionTime, 0, FlightRecord.Outcome.EXPIRED);
+            throw ex;
+        }
+        final REPLY reply;
+        try {
+            reply = handler.handleMessage(message);
+        } catch (Throwable ex) {
+            onError();
+            throw ex;
+        }
+        onSuccess();
+        return reply;
+    }
+
+    /**
+     * Releases everything that was acquired when the dispatch was admitted, without recording any outcome. Does
+     * nothing if the dispatch has already been finished.
+     */
+    void release() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        if (circuitBreaker != null) {
+            circuitBreaker.releasePermission(circuitBreakerPermission);
+        }
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.releaseWithoutSample();
+        }
+    }
+
+    /**
+     * Records that the handler is about to be invoked. This is called by {@link #invoke()}, but must be called
+     * explicitly when the handler is invoked in some other way.
+     */
+    void onInvocationStarted() {
+        invocationTime = System.nanoTime();
+    }
+
+    /**
+     * Records that the handler has successfully handled the message. This is called by {@link #invoke()}, but must be
+     * called explicitly when the handler is invoked in some other way.
+     */
+    void onSuccess() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (circuitBreaker != null) {
+            circuitBreaker.onSuccess(circuitBreakerPermission, now - invocationTime);
+        }
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.release(now - admissionTime);
+        }
+        record(invocationTime - admissionTime, now - invocationTime, FlightRecord.Outcome.SUCCESS);
+    }
+
+    /**
+     * Records that the handler has failed to handle the message. This is called by {@link #invoke()}, but must be
+     * called explicitly when the handler is invoked in some other way.
+     */
+    void onError() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (circuitBreaker != null) {
+            circuitBreaker.onError(circuitBreakerPermission, now - invocationTime);
+        }
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.release(now - admissionTime);
+        }
+        record(invocationTime - admissionTime, now - invocationTime, FlightRecord.Outcome.FAILURE);
+    }
+
+    private void record(long queueWaitNanos, long executionNanos, FlightRecord.Outcome outcome) {
+        if (flightRecorder != null) {
+            flightRecorder.record(message.getClass(), handler, queueWaitNanos, executionNanos, outcome);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.util.Objects;
+
+import net.pkhsolutions.irongrim.api.Priority;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A {@link Runnable} that carries a {@link Priority} and the time it was created. A {@link PriorityThreadPoolExecutor}
+ * will use these to decide in which order to run its tasks. Other executors will just run the task as usual.
+ */
+public class PrioritizedRunnable implements Runnable {
+
+    private final Priority priority;
+    private final Runnable delegate;
+    private final long creationTime;
+
+    /**
+     * Creates a new {@code PrioritizedRunnable}.
+     *
+     * @param priority the priority of the task (never {@code null}).
+     * @param delegate the task to run (never {@code null}).
+     */
+    public PrioritizedRunnable(@NotNull Priority priority, @NotNull Runnable delegate) {
+        this.priority = Objects.requireNonNull(priority);
+        this.delegate = Objects.requireNonNull(delegate);
+        this.creationTime = System.nanoTime();
+    }
+
+    /**
+     * Gets the priority of this task.
+     *
+     * @return the priority (never {@code null}).
+     */
+    @NotNull
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Gets the time this task was created, as returned by {@link System#nanoTime()}.
+     *
+     * @return the creation time in nanoseconds.
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    @Override
+    public void run() {
+        delegate.run();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[priority=%s, delegate=%s]", getClass().getSimpleName(), priority, delegate);
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.pkhsolutions.irongrim.api.Priority;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Fixed size thread pool that runs its queued tasks in {@link Priority} order. Tasks that are not
+ * {@link PrioritizedRunnable}s are run with {@link Priority#NORMAL}.
+ * <p>
+ * To prevent starvation, tasks are aged while they wait: every time a task has waited for the aging interval, it is
+ * treated as if it had one priority level higher than the previous. A {@link Priority#LOW} task that has waited for
+ * two aging intervals will therefore compete on equal terms with a freshly queued {@link Priority#HIGH} task. Within
+ * the same effective priority, tasks are run in FIFO order.
+ * </p>
+ * <p>
+ * The executor keeps track of how long tasks of each priority have been waiting in the queue, see
+ * {@link #getQueueWaitStatistics(Priority)}.
+ * </p>
+ */
+@SuppressWarnings("unused")
+public class PriorityThreadPoolExecutor extends ThreadPoolExecutor {
+
+    private final Map<Priority, WaitTimeRecorder> waitTimeRecorders = new EnumMap<>(Priority.class);
+
+    /**
+     * Creates a new {@code PriorityThreadPoolExecutor} that uses the {@link Executors#defaultThreadFactory() default
+     * thread factory}.
+     *
+     * @param poolSize the number of threads in the pool.
+     * @param agingInterval the time after which a waiting task is promoted by one priority level (must be positive).
+     * @param unit the time unit of the {@code agingInterval} (never {@code null}).
+     */
+    public PriorityThreadPoolExecutor(int poolSize, long agingInterval, @NotNull TimeUnit unit) {
+        this(poolSize, agingInterval, unit, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * Creates a new {@code PriorityThreadPoolExecutor}.
+     *
+     * @param poolSize the number of threads in the pool.
+     * @param agingInterval the time after which a waiting task is promoted by one priority level (must be positive).
+     * @param unit the time unit of the {@code agingInterval} (never {@code null}).
+     * @param threadFactory the factory to use when creating new threads (never {@code null}).
+     */
+    public PriorityThreadPoolExecutor(int poolSize, long agingInterval, @NotNull TimeUnit unit,
+        @NotNull ThreadFactory threadFactory) {
+        super(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new AgingPriorityQueue(unit.toNanos(agingInterval)),
+            threadFactory);
+        for (Priority priority : Priority.values()) {
+            waitTimeRecorders.put(priority, new WaitTimeRecorder());
+        }
+    }
+
+    @Override
+    public void execute(@NotNull Runnable command) {
+        Objects.requireNonNull(command);
+        super.execute(command instanceof PrioritizedRunnable ? command
+            : new PrioritizedRunnable(Priority.NORMAL, command));
+    }
+
+    /**
+     * Executes the specified task with the specified priority.
+     *
+     * @param priority the priority of the task (never {@code null}).
+     * @param command the task to execute (never {@code null}).
+     */
+    public void execute(@NotNull Priority priority, @NotNull Runnable command) {
+        execute(new PrioritizedRunnable(priority, command));
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        final Priority priority = runnable instanceof PrioritizedRunnable
+            ? ((PrioritizedRunnable) runnable).getPriority() : Priority.NORMAL;
+        return new PrioritizedFutureTask<>(priority, new FutureTask<>(runnable, value));
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new PrioritizedFutureTask<>(Priority.NORMAL, new FutureTask<>(callable));
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        if (r instanceof PrioritizedRunnable) {
+            final PrioritizedRunnable task = (PrioritizedRunnable) r;
+            waitTimeRecorders.get(task.getPriority()).record(System.nanoTime() - task.getCreationTime());
+        }
+    }
+
+    /**
+     * Gets statistics about how long tasks of the specified priority have been waiting in the queue before being run.
+     *
+     * @param priority the priority (never {@code null}).
+     * @return a snapshot of the statistics (never {@code null}).
+     */
+    @NotNull
+    public QueueWaitStatistics getQueueWaitStatistics(@NotNull Priority priority) {
+        return waitTimeRecorders.get(Objects.requireNonNull(priority)).snapshot();
+    }
+
+    /**
+     * Gets the number of tasks of the specified priority that are currently waiting in the queue.
+     *
+     * @param priority the priority (never {@code null}).
+     * @return the number of queued tasks.
+     */
+    public int getQueueSize(@NotNull Priority priority) {
+        return ((AgingPriorityQueue) getQueue()).size(Objects.requireNonNull(priority));
+    }
+
+    /**
+     * Future returned by {@code submit} that keeps the priority of the submitted task when it is queued.
+     */
+    private static class PrioritizedFutureTask<T> extends PrioritizedRunnable implements RunnableFuture<T> {
+
+        private final FutureTask<T> future;
+
+        PrioritizedFutureTask(Priority priority, FutureTask<T> future) {
+            super(priority, future);
+            this.future = future;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            return future.get();
+        }
+
+        @Override
+        public T get(long timeout, @NotNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+            return future.get(timeout, unit);
+        }
+    }
+
+    private static class WaitTimeRecorder {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long waitNanos) {
+            count.increment();
+            total.add(waitNanos);
+            max.accumulate(waitNanos);
+        }
+
+        QueueWaitStatistics snapshot() {
+            return new QueueWaitStatistics(count.sum(), total.sum(), max.get());
+        }
+    }
+
+    /**
+     * Blocking queue with one FIFO queue per priority. When a task is taken, the heads of all the queues are compared
+     * using their aged priorities.
+     */
+    private static class AgingPriorityQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+        private static final Priority[] PRIORITIES = Priority.values();
+
+        private final long agingNanos;
+        private final List<ArrayDeque<PrioritizedRunnable>> queues = new ArrayList<>(PRIORITIES.length);
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private int size;
+
+        AgingPriorityQueue(long agingNanos) {
+            if (agingNanos <= 0) {
+                throw new IllegalArgumentException("The aging interval must be positive");
+            }
+            this.agingNanos = agingNanos;
+            for (Priority ignored : PRIORITIES) {
+                queues.add(new ArrayDeque<>());
+            }
+        }
+
+        @Override
+        public boolean offer(@NotNull Runnable runnable) {
+            final PrioritizedRunnable task = (PrioritizedRunnable) runnable;
+            lock.lock();
+            try {
+                queues.get(task.getPriority().ordinal()).addLast(task);
+                size++;
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void put(@NotNull Runnable runnable) {
+            offer(runnable);
+        }
+
+        @Override
+        public boolean offer(@NotNull Runnable runnable, long timeout, @NotNull TimeUnit unit) {
+            return offer(runnable);
+        }
+
+        @Override
+        public Runnable poll() {
+            lock.lock();
+            try {
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @NotNull
+        @Override
+        public Runnable take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (size == 0) {
+                    notEmpty.await();
+                }
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable poll(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (size == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable peek() {
+            lock.lock();
+            try {
+                final ArrayDeque<PrioritizedRunnable> queue = selectQueue();
+                return queue == null ? null : queue.peekFirst();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private PrioritizedRunnable dequeue() {
+            final ArrayDeque<PrioritizedRunnable> queue = selectQueue();
+            if (queue == null) {
+                return null;
+            }
+            size--;
+            return queue.pollFirst();
+        }
+
+        private ArrayDeque<PrioritizedRunnable> selectQueue() {
+            final long now = System.nanoTime();
+            ArrayDeque<PrioritizedRunnable> selected = null;
+            long selectedRank = Long.MAX_VALUE;
+            for (ArrayDeque<PrioritizedRunnable> queue : queues) {
+                final PrioritizedRunnable head = queue.peekFirst();
+                if (head != null) {
+                    final long rank = head.getPriority().ordinal() - (now - head.getCreationTime()) / agingNanos;
+                    if (rank < selectedRank) {
+                        selected = queue;
+                        selectedRank = rank;
+                    }
+                }
+            }
+            return selected;
+        }
+
+        int size(Priority priority) {
+            lock.lock();
+            try {
+                return queues.get(priority.ordinal()).size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof PrioritizedRunnable)) {
+                return false;
+            }
+            lock.lock();
+            try {
+                if (queues.get(((PrioritizedRunnable) o).getPriority().ordinal()).remove(o)) {
+                    size--;
+                    return true;
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int drainTo(@NotNull Collection<? super Runnable> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(@NotNull Collection<? super Runnable> c, int maxElements) {
+            lock.lock();
+            try {
+                int drained = 0;
+                Runnable task;
+                while (drained < maxElements && (task = dequeue()) != null) {
+                    c.add(task);
+                    drained++;
+                }
+                return drained;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Runnable> iterator() {
+            final List<Runnable> snapshot = new ArrayList<>();
+            lock.lock();
+            try {
+                queues.forEach(snapshot::addAll);
+            } finally {
+                lock.unlock();
+            }
+            final Iterator<Runnable> delegate = snapshot.iterator();
+            return new Iterator<Runnable>() {
+
+                private Runnable current;
+
+                @Override
+                public boolean hasNext() {
+                    return delegate.hasNext();
+                }
+
+                @Override
+                public Runnable next() {
+                    current = delegate.next();
+                    return current;
+                }
+
+                @Override
+                public void remove() {
+                    if (current == null) {
+                        throw new IllegalStateException();
+                    }
+                    AgingPriorityQueue.this.remove(current);
+                    current = null;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable snapshot of the time tasks have spent waiting in the queue of a {@link PriorityThreadPoolExecutor}.
+ */
+public final class QueueWaitStatistics {
+
+    private final long count;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+
+    QueueWaitStatistics(long count, long totalWaitNanos, long maxWaitNanos) {
+        this.count = count;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    /**
+     * Gets the number of tasks that have been taken from the queue.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the total time all tasks have been waiting in the queue, in the specified unit.
+     */
+    public long getTotalWaitTime(TimeUnit unit) {
+        return unit.convert(totalWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the mean time a task has been waiting in the queue, in the specified unit, or 0 if no tasks have been run.
+     */
+    public long getMeanWaitTime(TimeUnit unit) {
+        return count == 0 ? 0 : unit.convert(totalWaitNanos / count, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the longest time a single task has been waiting in the queue, in the specified unit.
+     */
+    public long getMaxWaitTime(TimeUnit unit) {
+        return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[count=%d, meanWaitNanos=%d, maxWaitNanos=%d]", getClass().getSimpleName(), count,
+            count == 0 ? 0 : totalWaitNanos / count, maxWaitNanos);
+    }
+}
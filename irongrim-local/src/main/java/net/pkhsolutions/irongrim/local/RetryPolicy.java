@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+import net.pkhsolutions.irongrim.api.MessageRejectedException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Policy for retrying messages whose handler has failed, used by {@link LocalAsyncMessageBroker}. The delay before
+ * each retry grows exponentially and is randomized by the jitter, so that messages that failed at the same time are not
+ * all retried at the same time. The policy is mutable and should therefore not be changed after it has been handed
+ * over to a {@link RetryPolicyRegistry}.
+ * <p>
+ * {@link MessageRejectedException}s, e.g. exceeded deadlines and open circuit breakers, are never retried.
+ * </p>
+ */
+@SuppressWarnings("unused")
+public class RetryPolicy {
+
+    private int maxAttempts = 3;
+    private Duration initialBackoff = Duration.ofMillis(100);
+    private Duration maxBackoff = Duration.ofSeconds(10);
+    private double backoffMultiplier = 2.0;
+    private double jitter = 0.2;
+    private Set<Class<? extends Throwable>> retryableExceptions = Collections.emptySet();
+
+    /**
+     * Gets the maximum number of times the handler is invoked, including the first attempt. Default is 3.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @see #getMaxAttempts()
+     */
+    @NotNull
+    public RetryPolicy setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("The maximum number of attempts must be positive");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Gets the delay before the first retry. Default is 100 ms.
+     */
+    @NotNull
+    public Duration getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * @see #getInitialBackoff()
+     */
+    @NotNull
+    public RetryPolicy setInitialBackoff(@NotNull Duration initialBackoff) {
+        this.initialBackoff = Objects.requireNonNull(initialBackoff);
+        return this;
+    }
+
+    /**
+     * Gets the upper limit of the delay between two attempts, before jitter is applied. Default is 10 seconds.
+     */
+    @NotNull
+    public Duration getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * @see #getMaxBackoff()
+     */
+    @NotNull
+    public RetryPolicy setMaxBackoff(@NotNull Duration maxBackoff) {
+        this.maxBackoff = Objects.requireNonNull(maxBackoff);
+        return this;
+    }
+
+    /**
+     * Gets the factor by which the delay is multiplied after each retry. Default is 2.0.
+     */
+    public double getBackoffMultiplier() {
+        return backoffMultiplier;
+    }
+
+    /**
+     * @see #getBackoffMultiplier()
+     */
+    @NotNull
+    public RetryPolicy setBackoffMultiplier(double backoffMultiplier) {
+        if (backoffMultiplier < 1.0) {
+            throw new IllegalArgumentException("The backoff multiplier must be at least 1.0");
+        }
+        this.backoffMultiplier = backoffMultiplier;
+        return this;
+    }
+
+    /**
+     * Gets the share (0.0-1.0) of the delay that is randomized. With a jitter of 0.2, the actual delay is between 80%
+     * and 100% of the computed delay. Default is 0.2.
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @see #getJitter()
+     */
+    @NotNull
+    public RetryPolicy setJitter(double jitter) {
+        if (jitter < 0.0 || jitter > 1.0) {
+            throw new IllegalArgumentException("The jitter must be between 0.0 and 1.0");
+        }
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * Gets the exception types that are retried, including their subtypes. If empty, all exceptions except
+     * {@link MessageRejectedException}s are retried. Default is empty.
+     */
+    @NotNull
+    public Set<Class<? extends Throwable>> getRetryableExceptions() {
+        return retryableExceptions;
+    }
+
+    /**
+     * @see #getRetryableExceptions()
+     */
+    @NotNull
+    @SafeVarargs
+    public final RetryPolicy setRetryableExceptions(@NotNull Class<? extends Throwable>... retryableExceptions) {
+        this.retryableExceptions = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(retryableExceptions)));
+        return this;
+    }
+
+    /**
+     * Checks whether a message whose handler failed with the specified exception should be retried according to this
+     * policy, ignoring the number of attempts.
+     *
+     * @param exception the exception thrown by the handler (never {@code null}).
+     * @return true if the message can be retried, false otherwise.
+     */
+    public boolean isRetryable(@NotNull Throwable exception) {
+        if (exception instanceof MessageRejectedException) {
+            return false;
+        }
+        if (retryableExceptions.isEmpty()) {
+            return true;
+        }
+        for (Class<? extends Throwable> retryableException : retryableExceptions) {
+            if (retryableException.isInstance(exception)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the delay before the specified attempt, including jitter.
+     *
+     * @param attempt the number of the attempt that is about to be made, starting from 2 for the first retry.
+     * @return the delay (never {@code null}).
+     */
+    @NotNull
+    public Duration getBackoff(int attempt) {
+        final double backoffNanos = Math.min(maxBackoff.toNanos(),
+            initialBackoff.toNanos() * Math.pow(backoffMultiplier, Math.max(0, attempt - 2)));
+        final double randomFactor = 1.0 - jitter * ThreadLocalRandom.current().nextDouble();
+        return Duration.ofNanos((long) (backoffNanos * randomFactor));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.pkhsolutions.irongrim.api.Message;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Registry of the {@link RetryPolicy retry policies} used by a {@link LocalAsyncMessageBroker}. Policies are
+ * registered per message class and also apply to subclasses that have no policy of their own. Messages without a
+ * policy use the default policy, if there is one. The registry also collects {@link RetryStatistics} for each message
+ * class.
+ * <p>
+ * Pending retries are scheduled on a {@link TimingWheel}, which is not owned by the registry and must be shut down
+ * separately.
+ * </p>
+ *
+ * @see LocalAsyncMessageBroker#setRetryPolicyRegistry(RetryPolicyRegistry)
+ */
+@SuppressWarnings("unused")
+public class RetryPolicyRegistry {
+
+    private final TimingWheel timingWheel;
+    private final Map<Class<?>, RetryPolicy> policies = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Optional<RetryPolicy>> resolvedPolicies = new ConcurrentHashMap<>();
+    private final Map<Class<? extends Message>, Counters> counters = new ConcurrentHashMap<>();
+    private volatile RetryPolicy defaultPolicy;
+
+    /**
+     * Creates a new {@code RetryPolicyRegistry}.
+     *
+     * @param timingWheel the timing wheel to schedule retries on (never {@code null}).
+     */
+    public RetryPolicyRegistry(@NotNull TimingWheel timingWheel) {
+        this.timingWheel = Objects.requireNonNull(timingWheel);
+    }
+
+    /**
+     * Gets the timing wheel that retries are scheduled on.
+     */
+    @NotNull
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    /**
+     * Sets the retry policy of the specified message class and its subclasses.
+     *
+     * @param messageClass the message class (never {@code null}).
+     * @param policy the retry policy, or {@code null} to remove the policy.
+     * @return this registry, to allow method chaining.
+     */
+    @NotNull
+    public RetryPolicyRegistry setPolicy(@NotNull Class<? extends Message> messageClass, @Nullable RetryPolicy policy) {
+        Objects.requireNonNull(messageClass);
+        if (policy == null) {
+            policies.remove(messageClass);
+        } else {
+            policies.put(messageClass, policy);
+        }
+        resolvedPolicies.clear();
+        return this;
+    }
+
+    /**
+     * Sets the retry policy of messages that have no policy of their own.
+     *
+     * @param defaultPolicy the default retry policy, or {@code null} to not retry such messages at all.
+     * @return this registry, to allow method chaining.
+     */
+    @NotNull
+    public RetryPolicyRegistry setDefaultPolicy(@Nullable RetryPolicy defaultPolicy) {
+        this.defaultPolicy = defaultPolicy;
+        return this;
+    }
+
+    /**
+     * Gets the retry policy of messages that have no policy of their own.
+     */
+    @NotNull
+    public Optional<RetryPolicy> getDefaultPolicy() {
+        return Optional.ofNullable(defaultPolicy);
+    }
+
+    /**
+     * Gets the retry policy of the specified message class, which is the policy of the class itself, of its nearest
+     * superclass that has a policy, or the default policy, in that order.
+     *
+     * @param messageClass the message class (never {@code null}).
+     * @return the retry policy, or an empty {@code Optional} if messages of the class should not be retried.
+     */
+    @NotNull
+    public Optional<RetryPolicy> getPolicy(@NotNull Class<? extends Message> messageClass) {
+        final Optional<RetryPolicy> policy = resolvedPolicies.computeIfAbsent(messageClass, key -> {
+            for (Class<?> clazz = key; clazz != null; clazz = clazz.getSuperclass()) {
+                final RetryPolicy candidate = policies.get(clazz);
+                if (candidate != null) {
+                    return Optional.of(candidate);
+                }
+            }
+            return Optional.empty();
+        });
+        return policy.isPresent() ? policy : getDefaultPolicy();
+    }
+
+    /**
+     * Gets the retry statistics of the specified message class.
+     *
+     * @param messageClass the message class (never {@code null}).
+     * @return the statistics, or an empty {@code Optional} if no message of the class has failed yet.
+     */
+    @NotNull
+    public Optional<RetryStatistics> getStatistics(@NotNull Class<? extends Message> messageClass) {
+        return Optional.ofNullable(counters.get(Objects.requireNonNull(messageClass))).map(Counters::toStatistics);
+    }
+
+    /**
+     * Gets the retry statistics of all message classes that have failed so far, e.g. for publishing metrics.
+     *
+     * @return a map of statistics keyed by message class (never {@code null}).
+     */
+    @NotNull
+    public Map<Class<? extends Message>, RetryStatistics> getStatistics() {
+        final Map<Class<? extends Message>, RetryStatistics> statistics = new HashMap<>();
+        counters.forEach((messageClass, c) -> statistics.put(messageClass, c.toStatistics()));
+        return statistics;
+    }
+
+    void recordRetry(@NotNull Class<? extends Message> messageClass) {
+        getCounters(messageClass).retries.increment();
+    }
+
+    void recordRecovered(@NotNull Class<? extends Message> messageClass) {
+        getCounters(messageClass).recovered.increment();
+    }
+
+    void recordExhausted(@NotNull Class<? extends Message> messageClass) {
+        getCounters(messageClass).exhausted.increment();
+    }
+
+    void recordAbandoned(@NotNull Class<? extends Message> messageClass) {
+        getCounters(messageClass).abandoned.increment();
+    }
+
+    private Counters getCounters(Class<? extends Message> messageClass) {
+        return counters.computeIfAbsent(messageClass, key -> new Counters());
+    }
+
+    private static final class Counters {
+
+        final LongAdder retries = new LongAdder();
+        final LongAdder recovered = new LongAdder();
+        final LongAdder exhausted = new LongAdder();
+        final LongAdder abandoned = new LongAdder();
+
+        RetryStatistics toStatistics() {
+            return new RetryStatistics(retries.sum(), recovered.sum(), exhausted.sum(), abandoned.sum());
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+/**
+ * Immutable snapshot of the retries made for a message class by a {@link LocalAsyncMessageBroker}.
+ *
+ * @see RetryPolicyRegistry#getStatistics()
+ */
+public final class RetryStatistics {
+
+    private final long retryCount;
+    private final long recoveredCount;
+    private final long exhaustedCount;
+    private final long abandonedCount;
+
+    RetryStatistics(long retryCount, long recoveredCount, long exhaustedCount, long abandonedCount) {
+        this.retryCount = retryCount;
+        this.recoveredCount = recoveredCount;
+        this.exhaustedCount = exhaustedCount;
+        this.abandonedCount = abandonedCount;
+    }
+
+    /**
+     * Gets the number of retries that have been scheduled.
+     */
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Gets the number of messages that succeeded after at least one retry.
+     */
+    public long getRecoveredCount() {
+        return recoveredCount;
+    }
+
+    /**
+     * Gets the number of messages that failed on every attempt allowed by the retry policy.
+     */
+    public long getExhaustedCount() {
+        return exhaustedCount;
+    }
+
+    /**
+     * Gets the number of messages that failed with an exception that is not retryable, or whose deadline would have
+     * passed before the next attempt.
+     */
+    public long getAbandonedCount() {
+        return abandonedCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[retryCount=%d, recoveredCount=%d, exhaustedCount=%d, abandonedCount=%d]",
+            getClass().getSimpleName(), retryCount, recoveredCount, exhaustedCount, abandonedCount);
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel for scheduling large numbers of delayed tasks. Scheduling and cancelling a task are O(1)
+ * operations, regardless of how many tasks are pending, which makes the wheel suitable for e.g. retries and timeouts
+ * that are scheduled for a large share of all messages. In exchange, tasks are run with a precision of one tick.
+ * <p>
+ * New tasks are put on a lock-free queue and moved into the buckets of the wheel by a single worker thread, once per
+ * tick. The worker thread is started when the first task is scheduled. Tasks are run by the worker thread, so they
+ * should be short and must not block; hand longer work over to an executor.
+ * </p>
+ */
+@SuppressWarnings("unused")
+public class TimingWheel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimingWheel.class);
+
+    private static final int STATE_INIT = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_SHUTDOWN = 2;
+
+    /**
+     * The maximum number of new tasks moved into the wheel per tick, so that a burst of new tasks cannot delay the
+     * tasks that are already due.
+     */
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Thread workerThread;
+    private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+    private final CountDownLatch startTimeInitialized = new CountDownLatch(1);
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final LongAdder pendingCount = new LongAdder();
+    private final List<Timeout> unprocessedTimeouts = new ArrayList<>();
+    private volatile long startTime;
+    private long tick;
+
+    /**
+     * Creates a new {@code TimingWheel} with a tick duration of 10 ms and 512 buckets, whose worker thread is a daemon
+     * thread.
+     */
+    public TimingWheel() {
+        this(Duration.ofMillis(10), 512, runnable -> {
+            final Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+            thread.setName("irongrim-timing-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a new {@code TimingWheel}.
+     *
+     * @param tickDuration the duration of one tick, i.e. the precision of the wheel (never {@code null}).
+     * @param ticksPerWheel the number of buckets in the wheel, rounded up to the nearest power of two. Tasks whose
+     *        delay is longer than one revolution are kept in their bucket for several revolutions.
+     * @param threadFactory the thread factory to use for creating the worker thread (never {@code null}).
+     */
+    public TimingWheel(@NotNull Duration tickDuration, int ticksPerWheel, @NotNull ThreadFactory threadFactory) {
+        Objects.requireNonNull(threadFactory);
+        tickNanos = Objects.requireNonNull(tickDuration).toNanos();
+        if (tickNanos < TimeUnit.MILLISECONDS.toNanos(1)) {
+            throw new IllegalArgumentException("The tick duration must be at least one millisecond");
+        }
+        if (ticksPerWheel < 1 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("The number of ticks per wheel must be between 1 and 2^30");
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; ++i) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        workerThread = threadFactory.newThread(this::runWorker);
+    }
+
+    /**
+     * Schedules the specified task to be run by the worker thread once the delay has elapsed.
+     *
+     * @param task the task to run (never {@code null}).
+     * @param delay the delay after which the task should be run (never {@code null}).
+     * @return a handle that can be used to cancel the task (never {@code null}).
+     * @throws IllegalStateException if the wheel has been shut down.
+     */
+    @NotNull
+    public Timeout schedule(@NotNull Runnable task, @NotNull Duration delay) {
+        Objects.requireNonNull(task);
+        start();
+        final long deadline = System.nanoTime() + Math.max(0, Objects.requireNonNull(delay).toNanos()) - startTime;
+        final Timeout timeout = new Timeout(task, deadline);
+        pendingCount.increment();
+        newTimeouts.add(timeout);
+        if (state.get() == STATE_SHUTDOWN && timeout.cancel()) {
+            throw new IllegalStateException("The timing wheel has been shut down");
+        }
+        return timeout;
+    }
+
+    /**
+     * Gets the number of tasks that have been scheduled but not yet run or cancelled.
+     */
+    public long getPendingCount() {
+        return pendingCount.sum();
+    }
+
+    /**
+     * Stops the worker thread. Tasks that have not been run yet are cancelled and returned.
+     *
+     * @return the timeouts of the tasks that were still pending (never {@code null}).
+     */
+    @NotNull
+    public List<Timeout> shutdown() {
+        if (state.getAndSet(STATE_SHUTDOWN) != STATE_STARTED) {
+            return new ArrayList<>();
+        }
+        workerThread.interrupt();
+        boolean interrupted = false;
+        while (workerThread.isAlive()) {
+            try {
+                workerThread.join(100);
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        final List<Timeout> unprocessed = new ArrayList<>();
+        for (Timeout timeout : unprocessedTimeouts) {
+            if (timeout.cancel()) {
+                unprocessed.add(timeout);
+            }
+        }
+        return unprocessed;
+    }
+
+    private void start() {
+        if (state.get() == STATE_INIT && state.compareAndSet(STATE_INIT, STATE_STARTED)) {
+            workerThread.start();
+        }
+        if (state.get() == STATE_SHUTDOWN) {
+            throw new IllegalStateException("The timing wheel has been shut down");
+        }
+        boolean interrupted = false;
+        while (startTime == 0) {
+            try {
+                startTimeInitialized.await();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWorker() {
+        // Zero is used to signal that the start time has not been initialized
+        startTime = Math.max(System.nanoTime(), 1);
+        startTimeInitialized.countDown();
+        while (state.get() == STATE_STARTED) {
+            final long now = waitForNextTick();
+            if (now > 0) {
+                removeCancelledTimeouts();
+                transferNewTimeouts();
+                wheel[(int) (tick & mask)].expireTimeouts(now);
+                ++tick;
+            }
+        }
+        for (Bucket bucket : wheel) {
+            bucket.drainTo(unprocessedTimeouts);
+        }
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            unprocessedTimeouts.add(timeout);
+        }
+        removeCancelledTimeouts();
+    }
+
+    /**
+     * Sleeps until the start of the next tick and returns the current time relative to the start time, or a negative
+     * value if the wheel was shut down while sleeping.
+     */
+    private long waitForNextTick() {
+        final long deadline = tickNanos * (tick + 1);
+        while (true) {
+            final long now = System.nanoTime() - startTime;
+            final long sleepMillis = (deadline - now + 999_999) / 1_000_000;
+            if (sleepMillis <= 0) {
+                return now;
+            }
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException ex) {
+                if (state.get() == STATE_SHUTDOWN) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void transferNewTimeouts() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; ++i) {
+            final Timeout timeout = newTimeouts.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state.get() != Timeout.STATE_INIT) {
+                continue;
+            }
+            final long dueTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            // Tasks that are already due are put in the current bucket so that they are run right away
+            wheel[(int) (Math.max(dueTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelledTimeouts() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * Handle of a task scheduled on a {@link TimingWheel}.
+     */
+    public final class Timeout {
+
+        private static final int STATE_INIT = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+        // The following fields are only accessed by the worker thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Gets the scheduled task.
+         */
+        @NotNull
+        public Runnable getTask() {
+            return task;
+        }
+
+        /**
+         * Cancels the task, unless it has already been run.
+         *
+         * @return true if the task was cancelled, false if it had already been run or cancelled.
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(STATE_INIT, STATE_CANCELLED)) {
+                return false;
+            }
+            pendingCount.decrement();
+            cancelledTimeouts.add(this);
+            return true;
+        }
+
+        /**
+         * Returns whether the task has been cancelled.
+         */
+        public boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        /**
+         * Returns whether the task has been run (or is being run).
+         */
+        public boolean isExpired() {
+            return state.get() == STATE_EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(STATE_INIT, STATE_EXPIRED)) {
+                return;
+            }
+            pendingCount.decrement();
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                LOGGER.warn("Task {} scheduled on the timing wheel threw an exception", task, ex);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts that fall into the same slot of the wheel. Only accessed by the worker thread.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expireTimeouts(long now) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.deadline <= now) {
+                        timeout.expire();
+                    } else {
+                        // Cannot happen since the timeout was put in this bucket for this round
+                        throw new IllegalStateException("Timeout deadline is later than the current tick");
+                    }
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    --timeout.remainingRounds;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = timeout.next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void drainTo(List<Timeout> timeouts) {
+            Timeout timeout;
+            while ((timeout = head) != null) {
+                remove(timeout);
+                timeouts.add(timeout);
+            }
+        }
+    }
+}
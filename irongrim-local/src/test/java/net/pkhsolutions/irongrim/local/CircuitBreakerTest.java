@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest {
+
+    private List<String> transitions;
+    private CircuitBreaker circuitBreaker;
+
+    @Before
+    public void setUp() {
+        transitions = new ArrayList<>();
+        CircuitBreakerConfig config = new CircuitBreakerConfig().setSlidingWindowSize(10).setMinimumNumberOfCalls(4)
+            .setFailureRateThreshold(0.5f).setSlowCallDurationThreshold(Duration.ofSeconds(1))
+            .setWaitDurationInOpenState(Duration.ofMillis(20)).setPermittedNumberOfCallsInHalfOpenState(2);
+        circuitBreaker = new CircuitBreaker("test", config,
+            Collections.singletonList((cb, from, to) -> transitions.add(from + "->" + to)));
+    }
+
+    private CircuitBreaker.Generation acquirePermission() {
+        final CircuitBreaker.Generation permission = circuitBreaker.tryAcquirePermission();
+        assertNotNull(permission);
+        return permission;
+    }
+
+    private void openCircuitBreaker() {
+        for (int i = 0; i < 4; ++i) {
+            circuitBreaker.onError(acquirePermission(), 0);
+        }
+    }
+
+    @Test
+    public void onError_failureRateBelowMinimumNumberOfCalls_circuitBreakerStaysClosed() {
+        for (int i = 0; i < 3; ++i) {
+            circuitBreaker.onError(acquirePermission(), 0);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertEquals(1.0f, circuitBreaker.getFailureRate(), 0.0f);
+    }
+
+    @Test
+    public void onError_failureRateReachesThreshold_circuitBreakerOpensAndRejectsCalls() {
+        openCircuitBreaker();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertNull(circuitBreaker.tryAcquirePermission());
+        assertEquals(1, circuitBreaker.getNotPermittedCallCount());
+        assertEquals(Collections.singletonList("CLOSED->OPEN"), transitions);
+    }
+
+    @Test
+    public void onSuccess_slowCallRateReachesThreshold_circuitBreakerOpens() {
+        for (int i = 0; i < 4; ++i) {
+            circuitBreaker.onSuccess(acquirePermission(), Duration.ofSeconds(2).toNanos());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void tryAcquirePermission_waitDurationHasPassedAndProbesSucceed_circuitBreakerCloses() throws Exception {
+        openCircuitBreaker();
+        Thread.sleep(30);
+        final CircuitBreaker.Generation first = acquirePermission();
+        final CircuitBreaker.Generation second = acquirePermission();
+        assertNull(circuitBreaker.tryAcquirePermission());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.onSuccess(first, 0);
+        circuitBreaker.onSuccess(second, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertEquals(0.0f, circuitBreaker.getFailureRate(), 0.0f);
+        assertEquals(Arrays.asList("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED"), transitions);
+    }
+
+    @Test
+    public void tryAcquirePermission_waitDurationHasPassedAndProbeFails_circuitBreakerOpensAgain() throws Exception {
+        openCircuitBreaker();
+        Thread.sleep(30);
+        circuitBreaker.onError(acquirePermission(), 0);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertNull(circuitBreaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void onError_callPermittedWhileClosedFinishesWhenHalfOpen_outcomeIsNotCountedAsProbe() throws Exception {
+        final CircuitBreaker.Generation longCall = acquirePermission();
+        openCircuitBreaker();
+        Thread.sleep(30);
+        final CircuitBreaker.Generation probe = acquirePermission();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.onError(longCall, 0);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.releasePermission(longCall);
+        assertNotNull(circuitBreaker.tryAcquirePermission());
+        assertNull(circuitBreaker.tryAcquirePermission());
+        circuitBreaker.onError(probe, 0);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void onSuccess_probeOfEarlierHalfOpenGenerationFinishesLate_circuitBreakerDoesNotClose() throws Exception {
+        openCircuitBreaker();
+        Thread.sleep(30);
+        final CircuitBreaker.Generation lateProbe = acquirePermission();
+        circuitBreaker.onError(acquirePermission(), 0);
+        Thread.sleep(30);
+        final CircuitBreaker.Generation probe = acquirePermission();
+        circuitBreaker.onSuccess(lateProbe, 0);
+        circuitBreaker.onSuccess(probe, 0);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void tryAcquirePermission_manyThreadsRaceForHalfOpenPermits_noMoreThanPermittedProbesAreLetThrough()
+        throws Exception {
+        final int threads = 8;
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            openCircuitBreaker();
+            for (int round = 0; round < 20; ++round) {
+                Thread.sleep(25);
+                final CyclicBarrier barrier = new CyclicBarrier(threads);
+                final List<Future<CircuitBreaker.Generation>> permits = new ArrayList<>();
+                for (int i = 0; i < threads; ++i) {
+                    permits.add(executorService.submit(() -> {
+                        barrier.await();
+                        return circuitBreaker.tryAcquirePermission();
+                    }));
+                }
+                CircuitBreaker.Generation probe = null;
+                int granted = 0;
+                for (Future<CircuitBreaker.Generation> permit : permits) {
+                    if (permit.get() != null) {
+                        probe = permit.get();
+                        ++granted;
+                    }
+                }
+                assertTrue("Round " + round + " granted " + granted + " permits", granted >= 1 && granted <= 2);
+                circuitBreaker.onError(probe, 0);
+                assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void releasePermission_halfOpenPermissionReleased_permissionCanBeAcquiredAgain() throws Exception {
+        openCircuitBreaker();
+        Thread.sleep(30);
+        acquirePermission();
+        final CircuitBreaker.Generation unused = acquirePermission();
+        circuitBreaker.releasePermission(unused);
+        assertNotNull(circuitBreaker.tryAcquirePermission());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ConcurrencyLimiter}.
+ */
+public class ConcurrencyLimiterTest {
+
+    private ConcurrencyLimiter limiter;
+
+    @Before
+    public void setUp() {
+        limiter = new ConcurrencyLimiter("test", new ConcurrencyLimiterConfig().setInitialLimit(10).setMinLimit(2)
+            .setMaxLimit(100).setSampleWindow(Duration.ZERO).setLongTermRttWindowSize(100));
+    }
+
+    private void runSaturatedRounds(int rounds, long rttNanos) {
+        for (int round = 0; round < rounds; ++round) {
+            int acquired = 0;
+            while (limiter.tryAcquire()) {
+                acquired++;
+            }
+            for (int i = 0; i < acquired; ++i) {
+                limiter.release(rttNanos);
+            }
+        }
+    }
+
+    @Test
+    public void tryAcquire_limitReached_acquisitionRejected() {
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        assertEquals(10, limiter.getInFlight());
+        assertEquals(1, limiter.getRejectedCount());
+        limiter.releaseWithoutSample();
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void release_latencyStableUnderSaturation_limitGrows() {
+        runSaturatedRounds(20, 1000);
+        assertTrue(limiter.getLimit() > 10);
+        assertTrue(limiter.getLimit() <= 100);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void release_latencyGrowsUnderSaturation_limitShrinks() {
+        runSaturatedRounds(20, 1000);
+        final int limitBeforeQueueing = limiter.getLimit();
+        runSaturatedRounds(5, 10000);
+        assertTrue(limiter.getLimit() < limitBeforeQueueing);
+        assertTrue(limiter.getLimit() >= 2);
+    }
+
+    @Test
+    public void release_fewMessagesInFlight_limitIsNotChanged() {
+        for (int i = 0; i < 50; ++i) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(1000);
+        }
+        assertEquals(10, limiter.getLimit());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link FlightRecorder} and {@link FlightRecordingDecoder}.
+ */
+public class FlightRecorderTest {
+
+    private final Object handler = new Object();
+
+    @Test
+    public void constructor_capacityIsNotPowerOfTwo_capacityIsRoundedUp() {
+        assertEquals(8, new FlightRecorder(5).getCapacity());
+        assertEquals(8, new FlightRecorder(8).getCapacity());
+    }
+
+    @Test
+    public void snapshot_moreRecordsThanCapacity_onlyNewestRecordsAreKeptInOrder() {
+        FlightRecorder recorder = new FlightRecorder(4);
+        for (int i = 0; i < 10; ++i) {
+            recorder.record(TestMessage.class, handler, i, i * 10, FlightRecord.Outcome.SUCCESS);
+        }
+        List<FlightRecord> records = recorder.snapshot();
+        assertEquals(4, records.size());
+        assertEquals(6, records.get(0).getSequence());
+        assertEquals(9, records.get(3).getSequence());
+        assertEquals(90, records.get(3).getExecutionTime(TimeUnit.NANOSECONDS));
+        assertEquals(TestMessage.class.getName(), records.get(0).getMessageClassName());
+        assertEquals(Thread.currentThread().getName(), records.get(0).getThreadName());
+        assertEquals(10, recorder.getRecordCount());
+    }
+
+    @Test
+    public void record_maxNumberOfNamesReached_newNamesAreRecordedAsOverflow() throws Exception {
+        FlightRecorder recorder = new FlightRecorder(16, 3);
+        recorder.record(TestMessage.class, handler, 0, 0, FlightRecord.Outcome.SUCCESS);
+        Thread thread = new Thread(() -> recorder.record(TestMessage.class, handler, 0, 0,
+            FlightRecord.Outcome.SUCCESS), "worker-1");
+        thread.start();
+        thread.join();
+
+        List<FlightRecord> records = recorder.snapshot();
+        assertEquals(Thread.currentThread().getName(), records.get(0).getThreadName());
+        assertEquals(FlightRecorder.OVERFLOW_NAME, records.get(1).getThreadName());
+        assertEquals(TestMessage.class.getName(), records.get(1).getMessageClassName());
+    }
+
+    @Test
+    public void dump_decodedAgain_recordsAreIdentical() throws Exception {
+        FlightRecorder recorder = new FlightRecorder(16);
+        recorder.record(TestMessage.class, handler, 1000, 250000, FlightRecord.Outcome.SUCCESS);
+        recorder.record(String.class, handler, 0, 0, FlightRecord.Outcome.REJECTED);
+        recorder.record(TestMessage.class, handler, 5, 7, FlightRecord.Outcome.FAILURE);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recorder.dump(out);
+        List<FlightRecord> decoded = FlightRecordingDecoder.decode(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(recorder.snapshot().toString(), decoded.toString());
+        assertEquals(FlightRecord.Outcome.REJECTED, decoded.get(1).getOutcome());
+        assertEquals(String.class.getName(), decoded.get(1).getMessageClassName());
+        assertEquals(1000, decoded.get(0).getQueueWaitTime(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void record_latencyThresholdExceeded_listenerIsNotifiedOncePerInterval() {
+        FlightRecorder recorder = new FlightRecorder(16);
+        List<FlightRecord> triggeringRecords = new ArrayList<>();
+        recorder.setLatencyThreshold(Duration.ofMillis(1), (flightRecorder, record) -> triggeringRecords.add(record));
+        recorder.setMinTriggerInterval(Duration.ofHours(1));
+
+        recorder.record(TestMessage.class, handler, 0, 1000, FlightRecord.Outcome.SUCCESS);
+        recorder.record(TestMessage.class, handler, 500000, 600000, FlightRecord.Outcome.SUCCESS);
+        recorder.record(TestMessage.class, handler, 0, 2000000, FlightRecord.Outcome.SUCCESS);
+
+        assertEquals(1, triggeringRecords.size());
+        assertEquals(1, triggeringRecords.get(0).getSequence());
+    }
+}
@@ -16,23 +16,28 @@
 package net.pkhsolutions.irongrim.local;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.junit.Assert.assertTrue;
+import static net.pkhsolutions.irongrim.local.TestScatterGatherQuery.givenShards;
+import static org.mockito.Mockito.*;
 
-import java.util.Collections;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
 
-import net.pkhsolutions.irongrim.api.AsyncMessageHandler;
-import net.pkhsolutions.irongrim.api.MessageHandler;
-import net.pkhsolutions.irongrim.api.NoSuchMessageHandlerException;
+import net.pkhsolutions.irongrim.api.*;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.stubbing.Answer;
 import org.springframework.context.ApplicationContext;
 
 import rx.Observable;
+import rx.observers.TestSubscriber;
 
 /**
  * Unit test for {@link LocalAsyncMessageBroker}.
@@ -44,6 +49,7 @@ public class LocalAsyncMessageBrokerTest {
     private LocalAsyncMessageBroker localAsyncMessageBroker;
     private MessageHandler<TestMessage, String> messageHandler;
     private AsyncMessageHandler<TestMessage, String> asyncMessageHandler;
+    private TimingWheel timingWheel;
 
     @Before
     @SuppressWarnings("unchecked")
@@ -55,6 +61,14 @@ public class LocalAsyncMessageBrokerTest {
         localAsyncMessageBroker = new LocalAsyncMessageBroker(applicationContext, executorService);
     }
 
+    @After
+    public void tearDown() {
+        ContextHolder.resetContext();
+        if (timingWheel != null) {
+            timingWheel.shutdown();
+        }
+    }
+
     @Test(expected = NoSuchMessageHandlerException.class)
     public void sendAsync_noHandlersInApplicationContext_exceptionThrown() {
         when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(Collections.emptyMap());
@@ -84,4 +98,376 @@ public class LocalAsyncMessageBrokerTest {
 
         assertEquals("hello", localAsyncMessageBroker.sendAsync(message).toBlocking().single());
     }
+
+    @Test
+    public void sendAsync_normalHandlerThrowsException_exceptionIsPassedToObserver() {
+        final TestMessage message = new TestMessage();
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenThrow(new IllegalStateException("failure"));
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+
+        final Throwable error = localAsyncMessageBroker.sendAsync(message).materialize().toBlocking().single()
+            .getThrowable();
+        assertEquals("failure", error.getMessage());
+    }
+
+    @Test
+    public void sendAsync_deadlineHasPassed_messageIsDroppedWithoutInvokingHandler() {
+        final TestMessage message = new TestMessage();
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+        ContextHolder.setContext(new Context().setDeadline(Instant.now().minusSeconds(1)));
+
+        final Throwable error = localAsyncMessageBroker.sendAsync(message).materialize().toBlocking().single()
+            .getThrowable();
+        assertTrue(error instanceof DeadlineExceededException);
+        verify(messageHandler, never()).handleMessage(message);
+    }
+
+    @Test
+    public void sendAsync_contextIsSet_contextIsTransferredToHandlerThread() {
+        final TestMessage message = new TestMessage();
+        final Context context = new Context().setAttribute("hello", "world");
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message))
+            .thenAnswer(invocation -> (String) ContextHolder.getContext().getAttribute("hello"));
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+        ContextHolder.setContext(context);
+
+        assertEquals("world", localAsyncMessageBroker.sendAsync(message).toBlocking().single());
+    }
+
+    @Test
+    public void sendAsync_concurrencyLimitReached_messageIsRejectedWithoutUsingExecutorService() throws Exception {
+        final TestMessage message = new TestMessage();
+        final CountDownLatch handlerStarted = new CountDownLatch(1);
+        final CountDownLatch handlerBlocker = new CountDownLatch(1);
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenAnswer(invocation -> {
+            handlerStarted.countDown();
+            handlerBlocker.await();
+            return "hello";
+        });
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+        localAsyncMessageBroker.setConcurrencyLimiterRegistry(new ConcurrencyLimiterRegistry(
+            new ConcurrencyLimiterConfig().setInitialLimit(1), ConcurrencyLimiterRegistry.Scope.GLOBAL));
+
+        final TestSubscriber<String> first = new TestSubscriber<>();
+        localAsyncMessageBroker.sendAsync(message).subscribe(first);
+        handlerStarted.await();
+
+        final TestSubscriber<String> second = new TestSubscriber<>();
+        localAsyncMessageBroker.sendAsync(message).subscribe(second);
+        second.assertError(ConcurrencyLimitExceededException.class);
+
+        handlerBlocker.countDown();
+        first.awaitTerminalEvent();
+        first.assertValue("hello");
+    }
+
+    @Test
+    public void sendAsync_asyncHandlerSubscriberUnsubscribesEarly_concurrencyLimiterSlotIsReleased() {
+        final TestMessage message = new TestMessage();
+        when(asyncMessageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(asyncMessageHandler.handleMessageAsync(message)).thenReturn(Observable.never());
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", asyncMessageHandler));
+        localAsyncMessageBroker.setConcurrencyLimiterRegistry(new ConcurrencyLimiterRegistry(
+            new ConcurrencyLimiterConfig().setInitialLimit(1), ConcurrencyLimiterRegistry.Scope.GLOBAL));
+
+        for (int i = 0; i < 3; ++i) {
+            final TestSubscriber<String> subscriber = new TestSubscriber<>();
+            localAsyncMessageBroker.sendAsync(message).subscribe(subscriber);
+            subscriber.assertNoErrors();
+            subscriber.unsubscribe();
+        }
+    }
+
+    @Test
+    public void sendAsync_asyncHandlerThrowsSynchronously_exceptionIsPassedToObserverAndSlotIsReleased() {
+        final TestMessage message = new TestMessage();
+        when(asyncMessageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(asyncMessageHandler.handleMessageAsync(message)).thenThrow(new IllegalStateException("failure"));
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", asyncMessageHandler));
+        localAsyncMessageBroker.setConcurrencyLimiterRegistry(new ConcurrencyLimiterRegistry(
+            new ConcurrencyLimiterConfig().setInitialLimit(1), ConcurrencyLimiterRegistry.Scope.GLOBAL));
+
+        for (int i = 0; i < 3; ++i) {
+            final TestSubscriber<String> subscriber = new TestSubscriber<>();
+            localAsyncMessageBroker.sendAsync(message).subscribe(subscriber);
+            subscriber.assertError(IllegalStateException.class);
+        }
+    }
+
+    @Test
+    public void sendAsync_handlerFailsTransiently_messageIsRetriedUntilItSucceeds() {
+        final TestMessage message = new TestMessage();
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenThrow(new IllegalStateException("first"))
+            .thenThrow(new IllegalStateException("second")).thenReturn("hello");
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+        final RetryPolicyRegistry registry = givenRetryPolicy(new RetryPolicy().setMaxAttempts(3));
+
+        assertEquals("hello", localAsyncMessageBroker.sendAsync(message).toBlocking().single());
+
+        verify(messageHandler, times(3)).handleMessage(message);
+        final RetryStatistics statistics = registry.getStatistics(TestMessage.class).get();
+        assertEquals(2, statistics.getRetryCount());
+        assertEquals(1, statistics.getRecoveredCount());
+        assertEquals(0, statistics.getExhaustedCount());
+    }
+
+    @Test
+    public void sendAsync_handlerKeepsFailing_exceptionIsPassedToObserverAfterMaxAttempts() {
+        final TestMessage message = new TestMessage();
+        final IllegalStateException exception = new IllegalStateException("failure");
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenThrow(exception);
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+        final RetryPolicyRegistry registry = givenRetryPolicy(new RetryPolicy().setMaxAttempts(3));
+
+        final TestSubscriber<String> subscriber = new TestSubscriber<>();
+        localAsyncMessageBroker.sendAsync(message).subscribe(subscriber);
+        subscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+
+        subscriber.assertError(exception);
+        verify(messageHandler, times(3)).handleMessage(message);
+        final RetryStatistics statistics = registry.getStatistics(TestMessage.class).get();
+        assertEquals(2, statistics.getRetryCount());
+        assertEquals(1, statistics.getExhaustedCount());
+    }
+
+    @Test
+    public void sendAsync_exceptionIsNotRetryable_exceptionIsPassedToObserverWithoutRetrying() {
+        final TestMessage message = new TestMessage();
+        final IllegalStateException exception = new IllegalStateException("failure");
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenThrow(exception);
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+        final RetryPolicyRegistry registry = givenRetryPolicy(
+            new RetryPolicy().setRetryableExceptions(IllegalArgumentException.class));
+
+        final TestSubscriber<String> subscriber = new TestSubscriber<>();
+        localAsyncMessageBroker.sendAsync(message).subscribe(subscriber);
+        subscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+
+        subscriber.assertError(exception);
+        verify(messageHandler).handleMessage(message);
+        final RetryStatistics statistics = registry.getStatistics(TestMessage.class).get();
+        assertEquals(0, statistics.getRetryCount());
+        assertEquals(1, statistics.getAbandonedCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendAsync_nonBlockingHandlerFailsTransiently_retryIsMadeByExecutorServiceAndNotByTimingWheel() {
+        final TestMessage message = new TestMessage();
+        final NonBlockingMessageHandler<TestMessage, String> handler = mock(NonBlockingMessageHandler.class);
+        final List<Thread> attemptThreads = new CopyOnWriteArrayList<>();
+        when(handler.supports(TestMessage.class)).thenReturn(true);
+        when(handler.handleMessage(message)).thenAnswer(invocation -> {
+            attemptThreads.add(Thread.currentThread());
+            if (attemptThreads.size() == 1) {
+                throw new IllegalStateException("failure");
+            }
+            return "hello";
+        });
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", handler));
+        givenRetryPolicy(new RetryPolicy().setMaxAttempts(2));
+
+        assertEquals("hello", localAsyncMessageBroker.sendAsync(message).toBlocking().single());
+
+        assertEquals(2, attemptThreads.size());
+        assertFalse(attemptThreads.get(1).getName().startsWith("timing-wheel"));
+        assertNotSame(Thread.currentThread(), attemptThreads.get(1));
+    }
+
+    private RetryPolicyRegistry givenRetryPolicy(RetryPolicy policy) {
+        timingWheel = new TimingWheel(Duration.ofMillis(1), 64, runnable -> new Thread(runnable, "timing-wheel"));
+        final RetryPolicyRegistry registry = new RetryPolicyRegistry(timingWheel).setPolicy(TestMessage.class,
+            policy.setInitialBackoff(Duration.ofMillis(5)).setJitter(0.0));
+        localAsyncMessageBroker.setRetryPolicyRegistry(registry);
+        return registry;
+    }
+
+    @Test
+    public void unregisterHandler_messageInFlight_messageIsHandledNormally() throws Exception {
+        final TestMessage message = new TestMessage();
+        final CountDownLatch handlerStarted = new CountDownLatch(1);
+        final CountDownLatch handlerBlocker = new CountDownLatch(1);
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenAnswer(invocation -> {
+            handlerStarted.countDown();
+            handlerBlocker.await(5, TimeUnit.SECONDS);
+            return "hello";
+        });
+        when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(Collections.emptyMap());
+        localAsyncMessageBroker.registerHandler(messageHandler);
+
+        final TestSubscriber<String> subscriber = new TestSubscriber<>();
+        localAsyncMessageBroker.sendAsync(message).subscribe(subscriber);
+        assertTrue(handlerStarted.await(5, TimeUnit.SECONDS));
+        assertTrue(localAsyncMessageBroker.unregisterHandler(messageHandler));
+        handlerBlocker.countDown();
+        subscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+
+        subscriber.assertValue("hello");
+        subscriber.assertCompleted();
+        assertFalse(localAsyncMessageBroker.getHandler(message).isPresent());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendAsync_eventWithSeveralSubscribers_eventIsDeliveredToAllSubscribersInParallel() throws Exception {
+        final TestEvent event = new TestEvent();
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final MessageHandler<TestEvent, Void> first = mock(MessageHandler.class);
+        final MessageHandler<TestEvent, Void> second = mock(MessageHandler.class);
+        for (MessageHandler<TestEvent, Void> subscriber : Arrays.asList(first, second)) {
+            when(subscriber.supports(TestEvent.class)).thenReturn(true);
+            when(subscriber.handleMessage(event)).thenAnswer(invocation -> {
+                // Only completes if both subscribers are invoked at the same time
+                barrier.await(5, TimeUnit.SECONDS);
+                return null;
+            });
+        }
+        final Map<String, MessageHandler> beans = new HashMap<>();
+        beans.put("first", first);
+        beans.put("second", second);
+        when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(beans);
+        final LocalAsyncMessageBroker broker = new LocalAsyncMessageBroker(applicationContext,
+            Executors.newFixedThreadPool(2));
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+        broker.setEventErrorHandler(errors::add);
+
+        final TestSubscriber<Void> subscriber = new TestSubscriber<>();
+        broker.sendAsync(event).subscribe(subscriber);
+        subscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+
+        subscriber.assertCompleted();
+        assertTrue(errors.isEmpty());
+        verify(first).handleMessage(event);
+        verify(second).handleMessage(event);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendAsync_eventRejectedByExecutorService_errorHandlerIsNotifiedAndObservableFails() {
+        final TestEvent event = new TestEvent();
+        final MessageHandler<TestEvent, Void> subscriber = mock(MessageHandler.class);
+        when(subscriber.supports(TestEvent.class)).thenReturn(true);
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("subscriber", subscriber));
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        executorService.shutdown();
+        final LocalAsyncMessageBroker broker = new LocalAsyncMessageBroker(applicationContext, executorService);
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+        broker.setEventErrorHandler(errors::add);
+
+        final TestSubscriber<Void> testSubscriber = new TestSubscriber<>();
+        broker.sendAsync(event).subscribe(testSubscriber);
+
+        testSubscriber.assertError(RejectedExecutionException.class);
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof RejectedExecutionException);
+        verify(subscriber, never()).handleMessage(event);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendAsync_nonBlockingHandler_handlerInvokedInSubscribingThread() {
+        final TestMessage message = new TestMessage();
+        final NonBlockingMessageHandler<TestMessage, String> handler = mock(NonBlockingMessageHandler.class);
+        final Thread subscribingThread = Thread.currentThread();
+        final Context context = new Context().setAttribute("hello", "world");
+        when(handler.supports(TestMessage.class)).thenReturn(true);
+        when(handler.handleMessage(message)).thenAnswer(invocation -> {
+            assertSame(subscribingThread, Thread.currentThread());
+            return (String) ContextHolder.getContext().getAttribute("hello");
+        });
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", handler));
+        ContextHolder.setContext(context);
+
+        final TestSubscriber<String> subscriber = new TestSubscriber<>();
+        localAsyncMessageBroker.sendAsync(message).subscribe(subscriber);
+
+        // No need to wait, the reply is emitted before subscribe returns
+        subscriber.assertValue("world");
+        subscriber.assertCompleted();
+        assertSame(context, ContextHolder.getContext());
+    }
+
+    @Test
+    public void sendAsync_scatterGatherQuery_handlersAreInvokedInParallelAndRepliesAreReduced() {
+        final TestScatterGatherQuery query = new TestScatterGatherQuery(Integer.MAX_VALUE, false, null);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        givenShards(applicationContext, query, invocation -> {
+            // Only completes if both handlers are invoked at the same time
+            barrier.await(5, TimeUnit.SECONDS);
+            return 1;
+        }, invocation -> {
+            barrier.await(5, TimeUnit.SECONDS);
+            return 2;
+        });
+        final LocalAsyncMessageBroker broker = new LocalAsyncMessageBroker(applicationContext,
+            Executors.newFixedThreadPool(2));
+
+        final TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+        broker.sendAsync(query).subscribe(subscriber);
+        subscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+
+        subscriber.assertValue(3);
+        subscriber.assertCompleted();
+    }
+
+    @Test
+    public void sendAsync_scatterGatherQueryWithPartialResultsAllowedAndOneHandlerTimesOut_timeoutIsIgnored() {
+        final TestScatterGatherQuery query = new TestScatterGatherQuery(Integer.MAX_VALUE, true,
+            Duration.ofMillis(100));
+        final CountDownLatch latch = new CountDownLatch(1);
+        givenShards(applicationContext, query, invocation -> 1, invocation -> {
+            latch.await(5, TimeUnit.SECONDS);
+            return 2;
+        });
+        final LocalAsyncMessageBroker broker = new LocalAsyncMessageBroker(applicationContext,
+            Executors.newFixedThreadPool(2));
+
+        final TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+        broker.sendAsync(query).subscribe(subscriber);
+        subscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+        latch.countDown();
+
+        subscriber.assertValue(1);
+        subscriber.assertCompleted();
+    }
+
+    @Test
+    public void sendAsync_scatterGatherQueryAndOneHandlerTimesOut_timeoutExceptionEmitted() {
+        final TestScatterGatherQuery query = new TestScatterGatherQuery(Integer.MAX_VALUE, false,
+            Duration.ofMillis(100));
+        final CountDownLatch latch = new CountDownLatch(1);
+        givenShards(applicationContext, query, invocation -> 1, invocation -> {
+            latch.await(5, TimeUnit.SECONDS);
+            return 2;
+        });
+        final LocalAsyncMessageBroker broker = new LocalAsyncMessageBroker(applicationContext,
+            Executors.newFixedThreadPool(2));
+
+        final TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+        broker.sendAsync(query).subscribe(subscriber);
+        subscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+        latch.countDown();
+
+        subscriber.assertError(TimeoutException.class);
+    }
 }
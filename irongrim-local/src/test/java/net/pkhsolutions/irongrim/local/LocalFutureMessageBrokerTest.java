@@ -0,0 +1,251 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import static org.junit.Assert.*;
+import static net.pkhsolutions.irongrim.local.TestScatterGatherQuery.givenShards;
+import static org.mockito.Mockito.*;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.pkhsolutions.irongrim.api.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.stubbing.Answer;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * Unit test for {@link LocalFutureMessageBroker}.
+ */
+public class LocalFutureMessageBrokerTest {
+
+    private ApplicationContext applicationContext;
+    private ExecutorService executorService;
+    private LocalFutureMessageBroker localFutureMessageBroker;
+    private MessageHandler<TestMessage, String> messageHandler;
+    private FutureMessageHandler<TestMessage, String> futureMessageHandler;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        applicationContext = mock(ApplicationContext.class);
+        messageHandler = mock(MessageHandler.class);
+        futureMessageHandler = mock(FutureMessageHandler.class);
+        executorService = Executors.newSingleThreadExecutor();
+        localFutureMessageBroker = new LocalFutureMessageBroker(applicationContext, executorService);
+    }
+
+    @After
+    public void tearDown() {
+        ContextHolder.resetContext();
+        executorService.shutdownNow();
+    }
+
+    @Test(expected = NoSuchMessageHandlerException.class)
+    public void sendFuture_noHandlersInApplicationContext_exceptionThrown() {
+        when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(Collections.emptyMap());
+        localFutureMessageBroker.sendFuture(new TestMessage());
+    }
+
+    @Test
+    public void sendFuture_handlerFound_handlerInvokedInAnotherThreadWithContext() throws Exception {
+        final TestMessage message = new TestMessage();
+        final Context context = new Context();
+        context.setAttribute("hello", "world");
+        ContextHolder.setContext(context);
+        final Thread callingThread = Thread.currentThread();
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenAnswer(invocation -> {
+            assertNotSame(callingThread, Thread.currentThread());
+            return (String) ContextHolder.getContext().getAttribute("hello");
+        });
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+
+        assertEquals("world", localFutureMessageBroker.sendFuture(message).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sendFuture_handlerThrowsException_futureCompletedExceptionally() throws Exception {
+        final TestMessage message = new TestMessage();
+        final IllegalStateException exception = new IllegalStateException("failure");
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenThrow(exception);
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+
+        try {
+            localFutureMessageBroker.sendFuture(message).get(5, TimeUnit.SECONDS);
+            fail("No exception thrown");
+        } catch (ExecutionException ex) {
+            assertSame(exception, ex.getCause());
+        }
+    }
+
+    @Test
+    public void sendFuture_futureMessageHandlerFound_handlerInvokedDirectly() throws Exception {
+        final TestMessage message = new TestMessage();
+        final CompletableFuture<String> future = CompletableFuture.completedFuture("hello");
+        when(futureMessageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(futureMessageHandler.handleMessageFuture(message)).thenReturn(future);
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", futureMessageHandler));
+
+        assertEquals("hello", localFutureMessageBroker.sendFuture(message).get(5, TimeUnit.SECONDS));
+        verify(futureMessageHandler, never()).handleMessage(message);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendFuture_nonBlockingHandlerThrowsException_completedFutureReturned() {
+        final TestMessage message = new TestMessage();
+        final NonBlockingMessageHandler<TestMessage, String> handler = mock(NonBlockingMessageHandler.class);
+        final IllegalStateException exception = new IllegalStateException("failure");
+        when(handler.supports(TestMessage.class)).thenReturn(true);
+        when(handler.handleMessage(message)).thenThrow(exception);
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", handler));
+
+        final CompletableFuture<String> future = localFutureMessageBroker.sendFuture(message);
+
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.join();
+            fail("No exception thrown");
+        } catch (CompletionException ex) {
+            assertSame(exception, ex.getCause());
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendFuture_event_futureCompletedOnceAllSubscribersHaveBeenInvoked() throws Exception {
+        final TestEvent event = new TestEvent();
+        final MessageHandler<TestEvent, Void> first = mock(MessageHandler.class);
+        final MessageHandler<TestEvent, Void> second = mock(MessageHandler.class);
+        when(first.supports(TestEvent.class)).thenReturn(true);
+        when(second.supports(TestEvent.class)).thenReturn(true);
+        final Map<String, MessageHandler> beans = new HashMap<>();
+        beans.put("first", first);
+        beans.put("second", second);
+        when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(beans);
+
+        assertNull(localFutureMessageBroker.sendFuture(event).get(5, TimeUnit.SECONDS));
+        verify(first).handleMessage(event);
+        verify(second).handleMessage(event);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendFuture_eventRejectedByExecutorService_errorHandlerIsNotifiedAndFutureFails() throws Exception {
+        final TestEvent event = new TestEvent();
+        final MessageHandler<TestEvent, Void> first = mock(MessageHandler.class);
+        final MessageHandler<TestEvent, Void> second = mock(MessageHandler.class);
+        when(first.supports(TestEvent.class)).thenReturn(true);
+        when(second.supports(TestEvent.class)).thenReturn(true);
+        final Map<String, MessageHandler> beans = new HashMap<>();
+        beans.put("first", first);
+        beans.put("second", second);
+        when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(beans);
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+        localFutureMessageBroker.setEventErrorHandler(errors::add);
+        executorService.shutdown();
+
+        try {
+            localFutureMessageBroker.sendFuture(event).get(5, TimeUnit.SECONDS);
+            fail("Expected the future to fail");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(2, errors.size());
+        assertTrue(errors.get(0) instanceof RejectedExecutionException);
+        verify(first, never()).handleMessage(event);
+    }
+
+    @Test
+    public void sendFuture_scatterGatherQuery_handlersAreInvokedInParallelAndRepliesAreReduced() throws Exception {
+        final TestScatterGatherQuery query = new TestScatterGatherQuery(Integer.MAX_VALUE, false, null);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        givenShards(applicationContext, query, invocation -> {
+            // Only completes if both handlers are invoked at the same time
+            barrier.await(5, TimeUnit.SECONDS);
+            return 1;
+        }, invocation -> {
+            barrier.await(5, TimeUnit.SECONDS);
+            return 2;
+        });
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final LocalFutureMessageBroker broker = new LocalFutureMessageBroker(applicationContext, pool);
+            assertEquals(3, (int) broker.sendFuture(query).get(5, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sendFuture_scatterGatherQueryAndOneHandlerTimesOut_futureFailsWithTimeoutException() throws Exception {
+        final TestScatterGatherQuery query = new TestScatterGatherQuery(Integer.MAX_VALUE, false,
+            Duration.ofMillis(100));
+        final CountDownLatch latch = new CountDownLatch(1);
+        givenShards(applicationContext, query, invocation -> 1, invocation -> {
+            latch.await(5, TimeUnit.SECONDS);
+            return 2;
+        });
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final LocalFutureMessageBroker broker = new LocalFutureMessageBroker(applicationContext, pool);
+            broker.sendFuture(query).get(5, TimeUnit.SECONDS);
+            fail("Expected the future to fail");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        } finally {
+            latch.countDown();
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sendFuture_scatterGatherQueryCompletedWhileHandlerIsQueued_handlerIsSkippedAndItsTimeoutCancelled()
+        throws Exception {
+        final TestScatterGatherQuery query = new TestScatterGatherQuery(1, false, Duration.ofHours(1));
+        final List<MessageHandler<TestScatterGatherQuery, Integer>> shards = givenShards(applicationContext, query,
+            invocation -> 1, invocation -> 2);
+        final int pendingTimeouts = LocalFutureMessageBroker.ShardTimeoutScheduler.INSTANCE.getQueue().size();
+
+        assertEquals(1, (int) localFutureMessageBroker.sendFuture(query).get(5, TimeUnit.SECONDS));
+        // The executor service has a single thread, so the skipped handler has been dequeued once this has run
+        executorService.submit(() -> null).get(5, TimeUnit.SECONDS);
+
+        verify(shards.get(1), never()).handleMessage(query);
+        assertEquals(pendingTimeouts, LocalFutureMessageBroker.ShardTimeoutScheduler.INSTANCE.getQueue().size());
+    }
+
+    @Test
+    public void sendFuture_scatterGatherQueryWithPartialResultsAllowedAndOneHandlerFails_failureIsIgnored()
+        throws Exception {
+        final TestScatterGatherQuery query = new TestScatterGatherQuery(Integer.MAX_VALUE, true, null);
+        givenShards(applicationContext, query, invocation -> 1, invocation -> {
+            throw new IllegalStateException("failure");
+        }, invocation -> 3);
+
+        assertEquals(4, (int) localFutureMessageBroker.sendFuture(query).get(5, TimeUnit.SECONDS));
+    }
+}
@@ -15,17 +15,20 @@
  */
 package net.pkhsolutions.irongrim.local;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
-import java.util.Collections;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import net.pkhsolutions.irongrim.api.MessageHandler;
-import net.pkhsolutions.irongrim.api.NoSuchMessageHandlerException;
+import net.pkhsolutions.irongrim.api.*;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.context.ApplicationContext;
+import org.springframework.core.Ordered;
 
 /**
  * Unit test for {@link LocalMessageBroker}.
@@ -45,6 +48,11 @@ public class LocalMessageBrokerTest {
         localMessageBroker = new LocalMessageBroker(applicationContext);
     }
 
+    @After
+    public void tearDown() {
+        ContextHolder.resetContext();
+    }
+
     @Test(expected = NoSuchMessageHandlerException.class)
     public void send_noHandlersInApplicationContext_exceptionThrown() {
         when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(Collections.emptyMap());
@@ -76,4 +84,279 @@ public class LocalMessageBrokerTest {
         verify(messageHandler).supports(TestMessage.class);
         verify(applicationContext).getBeansOfType(MessageHandler.class);
     }
+
+    @Test
+    public void send_deadlineHasPassed_messageIsDroppedWithoutInvokingHandler() {
+        final TestMessage message = new TestMessage();
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+        ContextHolder.setContext(new Context().setDeadline(Instant.now().minusSeconds(1)));
+
+        try {
+            localMessageBroker.send(message);
+            fail("No exception thrown");
+        } catch (DeadlineExceededException ex) {
+            assertEquals(TestMessage.class, ex.getMessageClass());
+        }
+        verify(messageHandler, never()).handleMessage(message);
+        assertEquals(1, localMessageBroker.getExpiredMessageCount());
+    }
+
+    @Test
+    public void send_circuitBreakerIsOpen_fallbackReplyIsReturnedWithoutInvokingHandler() {
+        final TestMessageWithFallback message = new TestMessageWithFallback();
+        when(messageHandler.supports(TestMessageWithFallback.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenThrow(new IllegalStateException("failure"));
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+        localMessageBroker.setCircuitBreakerRegistry(new CircuitBreakerRegistry(
+            new CircuitBreakerConfig().setMinimumNumberOfCalls(2), CircuitBreakerRegistry.Scope.MESSAGE_TYPE));
+
+        for (int i = 0; i < 2; ++i) {
+            try {
+                localMessageBroker.send(message);
+                fail("No exception thrown");
+            } catch (IllegalStateException ex) {
+                assertEquals("failure", ex.getMessage());
+            }
+        }
+        assertEquals("fallback", localMessageBroker.send(message));
+        verify(messageHandler, times(2)).handleMessage(message);
+    }
+
+    @Test(expected = CircuitBreakerOpenException.class)
+    public void send_circuitBreakerIsOpenAndNoFallbackReply_exceptionThrown() {
+        final TestMessage message = new TestMessage();
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenThrow(new IllegalStateException("failure"));
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+        localMessageBroker.setCircuitBreakerRegistry(new CircuitBreakerRegistry(
+            new CircuitBreakerConfig().setMinimumNumberOfCalls(1), CircuitBreakerRegistry.Scope.HANDLER));
+
+        try {
+            localMessageBroker.send(message);
+        } catch (IllegalStateException ex) {
+            // Expected, opens the circuit breaker
+        }
+        localMessageBroker.send(message);
+    }
+
+    @Test
+    public void send_flightRecorderIsSet_dispatchIsRecorded() {
+        final TestMessage message = new TestMessage();
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenReturn("hello");
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+        final FlightRecorder flightRecorder = new FlightRecorder(16);
+        localMessageBroker.setFlightRecorder(flightRecorder);
+
+        localMessageBroker.send(message);
+
+        final List<FlightRecord> records = flightRecorder.snapshot();
+        assertEquals(1, records.size());
+        assertEquals(TestMessage.class.getName(), records.get(0).getMessageClassName());
+        assertEquals(FlightRecord.Outcome.SUCCESS, records.get(0).getOutcome());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void send_eventWithSeveralSubscribersAndOneFails_eventIsDeliveredToAllSubscribersInOrder() {
+        final TestEvent event = new TestEvent();
+        final List<String> deliveries = new ArrayList<>();
+        final List<Throwable> errors = new ArrayList<>();
+        final MessageHandler<TestEvent, Void> first = mock(MessageHandler.class,
+            withSettings().extraInterfaces(Ordered.class));
+        final MessageHandler<TestEvent, Void> second = mock(MessageHandler.class,
+            withSettings().extraInterfaces(Ordered.class));
+        when(((Ordered) first).getOrder()).thenReturn(1);
+        when(((Ordered) second).getOrder()).thenReturn(2);
+        when(first.supports(TestEvent.class)).thenReturn(true);
+        when(second.supports(TestEvent.class)).thenReturn(true);
+        when(messageHandler.supports(TestEvent.class)).thenReturn(false);
+        when(first.handleMessage(event)).thenAnswer(invocation -> {
+            deliveries.add("first");
+            throw new IllegalStateException("failure");
+        });
+        when(second.handleMessage(event)).thenAnswer(invocation -> {
+            deliveries.add("second");
+            return null;
+        });
+        final Map<String, MessageHandler> beans = new LinkedHashMap<>();
+        beans.put("second", second);
+        beans.put("mockHandler", messageHandler);
+        beans.put("first", first);
+        when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(beans);
+        localMessageBroker.setEventErrorHandler(errors::add);
+
+        assertNull(localMessageBroker.send(event));
+        localMessageBroker.send(event);
+
+        assertEquals(Arrays.asList("first", "second", "first", "second"), deliveries);
+        assertEquals(2, errors.size());
+        verify(applicationContext).getBeansOfType(MessageHandler.class);
+        verify(messageHandler, never()).handleMessage(any());
+    }
+
+    @Test
+    public void send_eventWithoutSubscribers_eventIsDiscarded() {
+        when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(Collections.emptyMap());
+        assertNull(localMessageBroker.send(new TestEvent()));
+    }
+
+    @Test
+    public void send_scatterGatherQuery_repliesOfAllHandlersAreReduced() {
+        final TestScatterGatherQuery query = new TestScatterGatherQuery(Integer.MAX_VALUE, false, null);
+        givenShards(query, 1, 2, 3);
+        assertEquals(Integer.valueOf(6), localMessageBroker.send(query));
+    }
+
+    @Test
+    public void send_scatterGatherQueryCompletesEarly_remainingHandlersAreNotInvoked() {
+        final TestScatterGatherQuery query = new TestScatterGatherQuery(3, false, null);
+        final List<MessageHandler<TestScatterGatherQuery, Integer>> shards = givenShards(query, 1, 2, 3);
+        assertEquals(Integer.valueOf(3), localMessageBroker.send(query));
+        verify(shards.get(2), never()).handleMessage(query);
+    }
+
+    @Test
+    public void send_scatterGatherQueryWithPartialResultsAllowedAndOneHandlerFails_failureIsIgnored() {
+        final TestScatterGatherQuery query = new TestScatterGatherQuery(Integer.MAX_VALUE, true, null);
+        final List<MessageHandler<TestScatterGatherQuery, Integer>> shards = givenShards(query, 1, 2, 3);
+        when(shards.get(1).handleMessage(query)).thenThrow(new IllegalStateException("failure"));
+        assertEquals(Integer.valueOf(4), localMessageBroker.send(query));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void send_scatterGatherQueryAndOneHandlerFails_exceptionThrown() {
+        final TestScatterGatherQuery query = new TestScatterGatherQuery(Integer.MAX_VALUE, false, null);
+        final List<MessageHandler<TestScatterGatherQuery, Integer>> shards = givenShards(query, 1, 2, 3);
+        when(shards.get(1).handleMessage(query)).thenThrow(new IllegalStateException("failure"));
+        localMessageBroker.send(query);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void registerHandler_handlerAlreadyResolvedFromApplicationContext_registeredHandlerTakesPrecedence() {
+        final TestMessage message = new TestMessage();
+        final MessageHandler<TestMessage, String> registeredHandler = mock(MessageHandler.class);
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenReturn("hello");
+        when(registeredHandler.supports(TestMessage.class)).thenReturn(true);
+        when(registeredHandler.handleMessage(message)).thenReturn("plugin");
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+
+        assertEquals("hello", localMessageBroker.send(message));
+        assertTrue(localMessageBroker.registerHandler(registeredHandler));
+        assertFalse(localMessageBroker.registerHandler(registeredHandler));
+        assertEquals("plugin", localMessageBroker.send(message));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void unregisterHandler_registeredHandler_messagesAreNoLongerDeliveredToIt() {
+        final TestMessage message = new TestMessage();
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenReturn("hello");
+        when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(Collections.emptyMap());
+        localMessageBroker.registerHandler(messageHandler);
+
+        assertEquals("hello", localMessageBroker.send(message));
+        assertTrue(localMessageBroker.unregisterHandler(messageHandler));
+        assertFalse(localMessageBroker.unregisterHandler(messageHandler));
+        try {
+            localMessageBroker.send(message);
+            fail("No exception thrown");
+        } catch (NoSuchMessageHandlerException ex) {
+            assertEquals(TestMessage.class, ex.getMessageClass());
+        }
+        verify(messageHandler).handleMessage(message);
+    }
+
+    @Test
+    public void unregisterHandler_handlerHasCircuitBreaker_circuitBreakerIsRemoved() {
+        final TestMessage message = new TestMessage();
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenReturn("hello");
+        when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(Collections.emptyMap());
+        final CircuitBreakerRegistry circuitBreakerRegistry = new CircuitBreakerRegistry(new CircuitBreakerConfig(),
+            CircuitBreakerRegistry.Scope.HANDLER);
+        localMessageBroker.setCircuitBreakerRegistry(circuitBreakerRegistry);
+        localMessageBroker.registerHandler(messageHandler);
+
+        localMessageBroker.send(message);
+        assertEquals(1, circuitBreakerRegistry.getCircuitBreakers().size());
+        localMessageBroker.unregisterHandler(messageHandler);
+
+        assertTrue(circuitBreakerRegistry.getCircuitBreakers().isEmpty());
+    }
+
+    @Test
+    public void send_tableChangedDuringScanButNoHandlerRegistered_applicationContextIsNotScannedAgain() {
+        final TestMessage message = new TestMessage();
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(messageHandler.handleMessage(message)).thenReturn("hello");
+        final Map<String, MessageHandler> beans = Collections.singletonMap("mockHandler", messageHandler);
+        final AtomicInteger scans = new AtomicInteger();
+        when(applicationContext.getBeansOfType(MessageHandler.class)).thenAnswer(invocation -> {
+            if (scans.incrementAndGet() == 1) {
+                // Another thread resolves the handlers of another message class while this one is scanning
+                localMessageBroker.send(new TestEvent());
+            }
+            return beans;
+        });
+
+        assertEquals("hello", localMessageBroker.send(message));
+        assertEquals("hello", localMessageBroker.send(message));
+
+        verify(applicationContext, times(2)).getBeansOfType(MessageHandler.class);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void registerHandler_eventSubscriberRegisteredAndUnregistered_deliveryPlanIsUpdated() {
+        final TestEvent event = new TestEvent();
+        final MessageHandler<TestEvent, Void> subscriber = mock(MessageHandler.class);
+        final MessageHandler<TestEvent, Void> registeredSubscriber = mock(MessageHandler.class);
+        when(subscriber.supports(TestEvent.class)).thenReturn(true);
+        when(registeredSubscriber.supports(TestEvent.class)).thenReturn(true);
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("subscriber", subscriber));
+
+        localMessageBroker.send(event);
+        localMessageBroker.registerHandler(registeredSubscriber);
+        localMessageBroker.send(event);
+        localMessageBroker.unregisterHandler(registeredSubscriber);
+        localMessageBroker.send(event);
+
+        verify(subscriber, times(3)).handleMessage(event);
+        verify(registeredSubscriber, times(1)).handleMessage(event);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<MessageHandler<TestScatterGatherQuery, Integer>> givenShards(TestScatterGatherQuery query,
+        Integer... replies) {
+        final List<MessageHandler<TestScatterGatherQuery, Integer>> shards = new ArrayList<>();
+        final Map<String, MessageHandler> beans = new LinkedHashMap<>();
+        for (Integer reply : replies) {
+            final MessageHandler<TestScatterGatherQuery, Integer> shard = mock(MessageHandler.class);
+            when(shard.supports(TestScatterGatherQuery.class)).thenReturn(true);
+            when(shard.handleMessage(query)).thenReturn(reply);
+            shards.add(shard);
+            beans.put("shard" + reply, shard);
+        }
+        when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(beans);
+        return shards;
+    }
+
+    private static class TestMessageWithFallback extends TestMessage {
+
+        @Override
+        public Optional<String> getFallbackReply() {
+            return Optional.of("fallback");
+        }
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Collections;
+
+import net.pkhsolutions.irongrim.api.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * Unit test for {@link MessageBrokerWarmer}.
+ */
+public class MessageBrokerWarmerTest {
+
+    private ApplicationContext applicationContext;
+    private LocalMessageBroker localMessageBroker;
+    private MessageBrokerWarmer messageBrokerWarmer;
+    private WarmableMessageHandler<TestMessage, String> messageHandler;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        applicationContext = mock(ApplicationContext.class);
+        messageHandler = mock(WarmableMessageHandler.class);
+        when(messageHandler.supports(TestMessage.class)).thenReturn(true);
+        when(applicationContext.getBeansOfType(MessageHandler.class))
+            .thenReturn(Collections.singletonMap("mockHandler", messageHandler));
+        localMessageBroker = new LocalMessageBroker(applicationContext);
+        messageBrokerWarmer = new MessageBrokerWarmer(applicationContext, localMessageBroker);
+    }
+
+    @After
+    public void tearDown() {
+        ContextHolder.resetContext();
+    }
+
+    @Test
+    public void warmUp_knownMessageClass_handlerIsLookedUpInAdvance() {
+        when(messageHandler.getWarmUpMessages()).thenReturn(Collections.emptyList());
+        when(messageHandler.handleMessage(any(TestMessage.class))).thenReturn("hello");
+        messageBrokerWarmer.setMessageClasses(Collections.singleton(TestMessage.class)).warmUp();
+        // Once for the warm-up messages and once for the handler
+        verify(applicationContext, times(2)).getBeansOfType(MessageHandler.class);
+
+        assertEquals("hello", localMessageBroker.send(new TestMessage()));
+
+        verify(applicationContext, times(2)).getBeansOfType(MessageHandler.class);
+    }
+
+    @Test
+    public void warmUp_handlerHasWarmUpMessages_messagesAreSentEveryIteration() {
+        final TestMessage message = new TestMessage();
+        when(messageHandler.getWarmUpMessages()).thenReturn(Collections.singletonList(message));
+        when(messageHandler.handleMessage(message)).thenAnswer(invocation -> {
+            assertNotNull(ContextHolder.getContext());
+            return "hello";
+        });
+
+        messageBrokerWarmer.setIterations(5).warmUp();
+
+        verify(messageHandler, times(5)).handleMessage(message);
+        assertFalse(ContextHolder.getOptionalContext().isPresent());
+    }
+
+    @Test
+    public void warmUp_callerHasContext_contextOfCallerIsRestored() {
+        final TestMessage message = new TestMessage();
+        final Context context = new Context().setAttribute("user", "joe");
+        when(messageHandler.getWarmUpMessages()).thenReturn(Collections.singletonList(message));
+        when(messageHandler.handleMessage(message)).thenAnswer(invocation -> {
+            assertNotSame(context, ContextHolder.getContext());
+            return "hello";
+        });
+        ContextHolder.setContext(context);
+
+        messageBrokerWarmer.setIterations(1).warmUp();
+
+        verify(messageHandler).handleMessage(message);
+        assertSame(context, ContextHolder.getContext());
+    }
+
+    @Test
+    public void start_warmUpMessageFails_warmUpIsCompleted() {
+        final TestMessage message = new TestMessage();
+        when(messageHandler.getWarmUpMessages()).thenReturn(Collections.singletonList(message));
+        when(messageHandler.handleMessage(message)).thenThrow(new IllegalStateException("failure"));
+        assertFalse(messageBrokerWarmer.isWarmedUp());
+
+        messageBrokerWarmer.setIterations(3).start();
+
+        assertTrue(messageBrokerWarmer.isRunning());
+        assertTrue(messageBrokerWarmer.isWarmedUp());
+        assertTrue(messageBrokerWarmer.getWarmUpDuration().isPresent());
+        verify(messageHandler, times(3)).handleMessage(message);
+    }
+
+    @Test
+    public void warmUp_warmUpMessagesFail_circuitBreakerAndFlightRecorderAreNotAffected() {
+        final TestMessage message = new TestMessage();
+        when(messageHandler.getWarmUpMessages()).thenReturn(Collections.singletonList(message));
+        when(messageHandler.handleMessage(message)).thenThrow(new IllegalStateException("failure"));
+        final CircuitBreakerRegistry circuitBreakerRegistry = new CircuitBreakerRegistry(
+            new CircuitBreakerConfig().setMinimumNumberOfCalls(2), CircuitBreakerRegistry.Scope.MESSAGE_TYPE);
+        final FlightRecorder flightRecorder = new FlightRecorder(16);
+        localMessageBroker.setCircuitBreakerRegistry(circuitBreakerRegistry);
+        localMessageBroker.setFlightRecorder(flightRecorder);
+
+        messageBrokerWarmer.setIterations(5).warmUp();
+
+        verify(messageHandler, times(5)).handleMessage(message);
+        assertEquals(CircuitBreaker.State.CLOSED,
+            circuitBreakerRegistry.getCircuitBreaker(message, messageHandler).getState());
+        assertEquals(0, flightRecorder.getRecordCount());
+        try {
+            localMessageBroker.send(message);
+            fail("No exception thrown");
+        } catch (IllegalStateException ex) {
+            assertEquals("failure", ex.getMessage());
+        }
+        assertEquals(1, flightRecorder.getRecordCount());
+    }
+}
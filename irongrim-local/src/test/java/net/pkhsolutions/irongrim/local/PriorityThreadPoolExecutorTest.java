@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.pkhsolutions.irongrim.api.Priority;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link PriorityThreadPoolExecutor}.
+ */
+public class PriorityThreadPoolExecutorTest {
+
+    private PriorityThreadPoolExecutor executor;
+    private CountDownLatch blocker;
+    private List<String> executionOrder;
+
+    @Before
+    public void setUp() {
+        executionOrder = new CopyOnWriteArrayList<>();
+        blocker = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private void blockWorker() {
+        executor.execute(Priority.HIGH, () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    private void awaitTermination() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void execute_tasksWithDifferentPriorities_tasksAreRunInPriorityOrder() throws Exception {
+        executor = new PriorityThreadPoolExecutor(1, 1, TimeUnit.HOURS);
+        blockWorker();
+        executor.execute(Priority.LOW, () -> executionOrder.add("low"));
+        executor.execute(() -> executionOrder.add("normal"));
+        executor.execute(Priority.HIGH, () -> executionOrder.add("high"));
+        blocker.countDown();
+        awaitTermination();
+
+        assertEquals(Arrays.asList("high", "normal", "low"), executionOrder);
+    }
+
+    @Test
+    public void submit_prioritizedRunnables_tasksAreRunInPriorityOrder() throws Exception {
+        executor = new PriorityThreadPoolExecutor(1, 1, TimeUnit.HOURS);
+        blockWorker();
+        final Future<?> low = executor.submit(new PrioritizedRunnable(Priority.LOW, () -> executionOrder.add("low")));
+        final Future<String> normal = executor.submit(() -> executionOrder.add("normal"), "normal");
+        final Future<?> high = executor.submit(new PrioritizedRunnable(Priority.HIGH,
+            () -> executionOrder.add("high")));
+        assertEquals(1, executor.getQueueSize(Priority.HIGH));
+        blocker.countDown();
+        awaitTermination();
+
+        assertEquals(Arrays.asList("high", "normal", "low"), executionOrder);
+        assertTrue(low.isDone() && high.isDone());
+        assertEquals("normal", normal.get());
+    }
+
+    @Test
+    public void execute_lowPriorityTaskHasWaitedForTwoAgingIntervals_lowPriorityTaskIsRunFirst() throws Exception {
+        executor = new PriorityThreadPoolExecutor(1, 10, TimeUnit.MILLISECONDS);
+        blockWorker();
+        executor.execute(Priority.LOW, () -> executionOrder.add("low"));
+        Thread.sleep(50);
+        executor.execute(Priority.HIGH, () -> executionOrder.add("high"));
+        blocker.countDown();
+        awaitTermination();
+
+        assertEquals(Arrays.asList("low", "high"), executionOrder);
+    }
+
+    @Test
+    public void getQueueWaitStatistics_tasksHaveBeenRun_waitTimesAreRecordedPerPriority() throws Exception {
+        executor = new PriorityThreadPoolExecutor(1, 1, TimeUnit.HOURS);
+        blockWorker();
+        executor.execute(Priority.LOW, () -> executionOrder.add("low"));
+        executor.execute(Priority.LOW, () -> executionOrder.add("low"));
+        assertEquals(2, executor.getQueueSize(Priority.LOW));
+        Thread.sleep(20);
+        blocker.countDown();
+        awaitTermination();
+
+        assertEquals(1, executor.getQueueWaitStatistics(Priority.HIGH).getCount());
+        assertEquals(0, executor.getQueueWaitStatistics(Priority.NORMAL).getCount());
+        assertEquals(2, executor.getQueueWaitStatistics(Priority.LOW).getCount());
+        assertTrue(executor.getQueueWaitStatistics(Priority.LOW).getMaxWaitTime(TimeUnit.MILLISECONDS) >= 20);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+
+import net.pkhsolutions.irongrim.api.DeadlineExceededException;
+import net.pkhsolutions.irongrim.api.Message;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link RetryPolicy}.
+ */
+public class RetryPolicyTest {
+
+    @Test
+    public void getBackoff_noJitter_backoffGrowsExponentiallyUpToMaximum() {
+        final RetryPolicy policy = new RetryPolicy().setInitialBackoff(Duration.ofMillis(100))
+            .setMaxBackoff(Duration.ofMillis(500)).setBackoffMultiplier(2.0).setJitter(0.0);
+
+        assertEquals(Duration.ofMillis(100), policy.getBackoff(2));
+        assertEquals(Duration.ofMillis(200), policy.getBackoff(3));
+        assertEquals(Duration.ofMillis(400), policy.getBackoff(4));
+        assertEquals(Duration.ofMillis(500), policy.getBackoff(5));
+    }
+
+    @Test
+    public void getBackoff_withJitter_backoffIsWithinJitterRange() {
+        final RetryPolicy policy = new RetryPolicy().setInitialBackoff(Duration.ofMillis(100)).setJitter(0.5);
+
+        for (int i = 0; i < 1000; ++i) {
+            final long backoffMillis = policy.getBackoff(2).toMillis();
+            assertTrue(backoffMillis >= 50 && backoffMillis <= 100);
+        }
+    }
+
+    @Test
+    public void isRetryable_retryableExceptionsSet_onlyMatchingExceptionsAreRetryable() {
+        final RetryPolicy policy = new RetryPolicy().setRetryableExceptions(UncheckedIOException.class);
+
+        assertTrue(policy.isRetryable(new UncheckedIOException(new IOException())));
+        assertFalse(policy.isRetryable(new IllegalStateException()));
+        assertTrue(new RetryPolicy().isRetryable(new IllegalStateException()));
+        assertFalse(new RetryPolicy().isRetryable(new DeadlineExceededException(Message.class)));
+    }
+}
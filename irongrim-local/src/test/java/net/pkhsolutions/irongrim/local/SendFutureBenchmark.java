@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import net.pkhsolutions.irongrim.api.Message;
+import net.pkhsolutions.irongrim.api.MessageHandler;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.context.support.StaticApplicationContext;
+
+/**
+ * Micro benchmark that compares the allocation rate and latency of {@link LocalAsyncMessageBroker#sendFuture(Message)}
+ * to {@link LocalAsyncMessageBroker#sendAsync(Message)}. This is not a unit test and is not run by the build, run the
+ * {@link #main(String[])} method manually instead. The number of measured round trips can be passed as the first
+ * argument.
+ */
+public class SendFutureBenchmark {
+
+    private static final int WARM_UP_ITERATIONS = 200_000;
+
+    private final LocalAsyncMessageBroker broker;
+    private final com.sun.management.ThreadMXBean threadMXBean;
+
+    private SendFutureBenchmark(LocalAsyncMessageBroker broker) {
+        this.broker = broker;
+        this.threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        final StaticApplicationContext applicationContext = new StaticApplicationContext();
+        applicationContext.getBeanFactory().registerSingleton("echoHandler", new EchoHandler());
+        applicationContext.refresh();
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            final SendFutureBenchmark benchmark = new SendFutureBenchmark(
+                new LocalAsyncMessageBroker(applicationContext, executorService));
+            benchmark.run("sendAsync", WARM_UP_ITERATIONS, benchmark::sendAsync);
+            benchmark.run("sendFuture", WARM_UP_ITERATIONS, benchmark::sendFuture);
+            System.out.printf("%-12s %15s %15s%n", "", "ns/op", "bytes/op");
+            benchmark.report("sendAsync", iterations, benchmark::sendAsync);
+            benchmark.report("sendFuture", iterations, benchmark::sendFuture);
+        } finally {
+            executorService.shutdown();
+            applicationContext.close();
+        }
+    }
+
+    private void sendAsync(CountDownLatch latch) {
+        broker.sendAsync(new TestMessage()).subscribe(reply -> latch.countDown());
+    }
+
+    private void sendFuture(CountDownLatch latch) {
+        broker.sendFuture(new TestMessage()).thenAccept(reply -> latch.countDown());
+    }
+
+    private void report(String name, int iterations, Consumer<CountDownLatch> roundTrip) throws Exception {
+        final long[] result = run(name, iterations, roundTrip);
+        System.out.printf("%-12s %15.1f %15.1f%n", name, (double) result[0] / iterations,
+            (double) result[1] / iterations);
+    }
+
+    /**
+     * Sends the specified number of messages one at a time, waiting for each reply before sending the next message.
+     *
+     * @return the elapsed time in nanoseconds and the number of bytes allocated by all threads.
+     */
+    private long[] run(String name, int iterations, Consumer<CountDownLatch> roundTrip) throws Exception {
+        final long allocatedBefore = getAllocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            roundTrip.accept(latch);
+            latch.await();
+        }
+        final long elapsed = System.nanoTime() - start;
+        return new long[] { elapsed, getAllocatedBytes() - allocatedBefore };
+    }
+
+    private long getAllocatedBytes() {
+        long total = 0;
+        for (long allocated : threadMXBean.getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    private static class EchoHandler implements MessageHandler<TestMessage, String> {
+
+        @Override
+        public boolean supports(@NotNull Class<? extends Message> messageClass) {
+            return TestMessage.class.equals(messageClass);
+        }
+
+        @Override
+        public String handleMessage(@NotNull TestMessage message) {
+            return "echo";
+        }
+    }
+}
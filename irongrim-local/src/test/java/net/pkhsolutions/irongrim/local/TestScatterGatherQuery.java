@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import net.pkhsolutions.irongrim.api.MessageHandler;
+import net.pkhsolutions.irongrim.api.ReplyReducer;
+import net.pkhsolutions.irongrim.api.ScatterGatherQuery;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.TestOnly;
+import org.mockito.stubbing.Answer;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * Implementation of {@link ScatterGatherQuery} that is used for tests only. The replies are summed up and the query
+ * is considered complete once the sum reaches the configured threshold.
+ */
+@TestOnly
+class TestScatterGatherQuery implements ScatterGatherQuery<Integer> {
+
+    private final int threshold;
+    private final boolean partialResultAllowed;
+    private final Duration shardTimeout;
+
+    TestScatterGatherQuery(int threshold, boolean partialResultAllowed, Duration shardTimeout) {
+        this.threshold = threshold;
+        this.partialResultAllowed = partialResultAllowed;
+        this.shardTimeout = shardTimeout;
+    }
+
+    @Override
+    public @NotNull ReplyReducer<Integer> getReplyReducer() {
+        return new ReplyReducer<Integer>() {
+            @Override
+            public @NotNull Integer reduce(@NotNull Integer accumulated, @NotNull Integer partial) {
+                return accumulated + partial;
+            }
+
+            @Override
+            public boolean isComplete(@NotNull Integer accumulated) {
+                return accumulated >= threshold;
+            }
+        };
+    }
+
+    @Override
+    public Optional<Duration> getShardTimeout() {
+        return Optional.ofNullable(shardTimeout);
+    }
+
+    @Override
+    public boolean isPartialResultAllowed() {
+        return partialResultAllowed;
+    }
+
+    /**
+     * Mocks one handler of the query for each answer and makes them the message handlers of the application context,
+     * in the same order as the answers.
+     *
+     * @return the mocked handlers.
+     */
+    @SafeVarargs
+    @SuppressWarnings("unchecked")
+    static List<MessageHandler<TestScatterGatherQuery, Integer>> givenShards(ApplicationContext applicationContext,
+        TestScatterGatherQuery query, Answer<Integer>... answers) {
+        final List<MessageHandler<TestScatterGatherQuery, Integer>> shards = new ArrayList<>();
+        final Map<String, MessageHandler> beans = new LinkedHashMap<>();
+        for (int i = 0; i < answers.length; ++i) {
+            final MessageHandler<TestScatterGatherQuery, Integer> shard = mock(MessageHandler.class);
+            when(shard.supports(TestScatterGatherQuery.class)).thenReturn(true);
+            when(shard.handleMessage(query)).thenAnswer(answers[i]);
+            shards.add(shard);
+            beans.put("shard" + i, shard);
+        }
+        when(applicationContext.getBeansOfType(MessageHandler.class)).thenReturn(beans);
+        return shards;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.local;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link TimingWheel}.
+ */
+public class TimingWheelTest {
+
+    private TimingWheel timingWheel;
+
+    @Before
+    public void setUp() {
+        timingWheel = new TimingWheel(Duration.ofMillis(1), 8, Executors.defaultThreadFactory());
+    }
+
+    @After
+    public void tearDown() {
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void schedule_tasksWithDifferentDelays_tasksAreRunInOrderOfDeadline() throws Exception {
+        final ConcurrentLinkedQueue<Integer> runOrder = new ConcurrentLinkedQueue<>();
+        final CountDownLatch done = new CountDownLatch(3);
+        // The longest delay spans several revolutions of the wheel
+        for (int delay : new int[] { 60, 5, 25 }) {
+            timingWheel.schedule(() -> {
+                runOrder.add(delay);
+                done.countDown();
+            }, Duration.ofMillis(delay));
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new Integer[] { 5, 25, 60 }, runOrder.toArray(new Integer[0]));
+        assertEquals(0, timingWheel.getPendingCount());
+    }
+
+    @Test
+    public void schedule_delayHasNotElapsed_taskIsNotRun() throws Exception {
+        final long start = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(1);
+        timingWheel.schedule(done::countDown, Duration.ofMillis(50));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void cancel_taskIsPending_taskIsNotRun() throws Exception {
+        final CountDownLatch cancelledRun = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final TimingWheel.Timeout timeout = timingWheel.schedule(cancelledRun::countDown, Duration.ofMillis(10));
+        timingWheel.schedule(done::countDown, Duration.ofMillis(30));
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, cancelledRun.getCount());
+        assertTrue(timeout.isCancelled());
+        assertFalse(timeout.isExpired());
+    }
+
+    @Test
+    public void shutdown_tasksArePending_pendingTasksAreReturnedAndNewTasksAreRejected() {
+        final Runnable task = () -> fail("Task should not run");
+        for (int i = 0; i < 100_000; ++i) {
+            timingWheel.schedule(task, Duration.ofHours(1));
+        }
+        assertEquals(100_000, timingWheel.getPendingCount());
+
+        final List<TimingWheel.Timeout> unprocessed = timingWheel.shutdown();
+
+        assertEquals(100_000, unprocessed.size());
+        assertSame(task, unprocessed.get(0).getTask());
+        assertEquals(0, timingWheel.getPendingCount());
+        try {
+            timingWheel.schedule(task, Duration.ZERO);
+            fail("No exception thrown");
+        } catch (IllegalStateException expected) {
+            // OK
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Exception thrown when a message or its reply could not be transported between the client and the server, e.g.
+ * because the server did not reply in time or the message could not be serialized. When this exception is thrown, it
+ * is unknown whether the message was handled or not.
+ */
+public class MessageTransportException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new {@code MessageTransportException}.
+     *
+     * @param message the detail message (never {@code null}).
+     */
+    public MessageTransportException(@NotNull String message) {
+        super(message);
+    }
+
+    /**
+     * Creates a new {@code MessageTransportException}.
+     *
+     * @param message the detail message (never {@code null}).
+     * @param cause the cause of the exception.
+     */
+    public MessageTransportException(@NotNull String message, Throwable cause) {
+        super(message, cause);
+    }
+}
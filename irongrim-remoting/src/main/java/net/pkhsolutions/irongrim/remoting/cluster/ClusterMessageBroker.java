@@ -0,0 +1,261 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.cluster;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+import net.pkhsolutions.irongrim.api.*;
+import net.pkhsolutions.irongrim.remoting.MessageTransportException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client-side {@link MessageBroker} that spreads messages over the nodes of a cluster, each of which is reached
+ * through a broker of its own (e.g. a {@link net.pkhsolutions.irongrim.remoting.shm.SharedMemoryMessageBroker}).
+ * Messages with the same routing key are always sent to the same node, so that the caches of the nodes stay hot. The
+ * routing key is taken from the {@link Message#getRoutingKey() message}, or if the message has none, from the
+ * {@value #ROUTING_KEY_ATTRIBUTE} attribute of the current {@link Context}. Messages without a routing key are spread
+ * randomly over the nodes.
+ * <p>
+ * Keys are mapped to nodes using consistent hashing with virtual nodes, so adding or removing a node only remaps the
+ * keys that the node gains or loses. The nodes can be changed at any time; messages that are being sent while the
+ * nodes change are routed using either the old or the new nodes.
+ * </p>
+ * <p>
+ * If a message fails to reach its node with a {@link MessageTransportException}, it is sent to the next node on the
+ * hash ring instead, up to the {@link #setMaxFailovers(int) maximum number of failovers}. Nodes that fail too many
+ * times in a row are considered unavailable for a while, see {@link ClusterNode}, and their keys are taken over by
+ * the next nodes on the ring. Since it is unknown whether a message whose transport failed was handled or not, a
+ * message may be handled twice when it fails over, so failover should be disabled if the messages are not idempotent.
+ * Exceptions thrown by the handlers never cause failover.
+ * </p>
+ */
+@SuppressWarnings("unused")
+public class ClusterMessageBroker implements MessageBroker {
+
+    /**
+     * The name of the {@link Context} attribute that contains the routing key of messages that have no routing key of
+     * their own.
+     */
+    public static final String ROUTING_KEY_ATTRIBUTE = "irongrim.routingKey";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterMessageBroker.class);
+
+    private final int virtualNodesPerNode;
+    private volatile ConsistentHashRing ring;
+    private volatile int failureThreshold = 3;
+    private volatile Duration retryInterval = Duration.ofSeconds(5);
+    private volatile int maxFailovers = 2;
+
+    /**
+     * Creates a new {@code ClusterMessageBroker} without any nodes, which places each node at 160 points on the hash
+     * ring.
+     */
+    public ClusterMessageBroker() {
+        this(160);
+    }
+
+    /**
+     * Creates a new {@code ClusterMessageBroker} without any nodes.
+     *
+     * @param virtualNodesPerNode the number of points at which each node is placed on the hash ring. More points
+     *        spread the keys more evenly, at the cost of memory and a slower lookup.
+     */
+    public ClusterMessageBroker(int virtualNodesPerNode) {
+        this.virtualNodesPerNode = virtualNodesPerNode;
+        this.ring = new ConsistentHashRing(Collections.emptyList(), virtualNodesPerNode);
+    }
+
+    /**
+     * Adds a node to the cluster.
+     *
+     * @param nodeId the ID of the node, which determines its position on the hash ring and must therefore be the same
+     *        in all clients (never {@code null}).
+     * @param broker the broker that sends messages to the node (never {@code null}).
+     * @throws IllegalArgumentException if there already is a node with the same ID.
+     */
+    public synchronized void addNode(@NotNull String nodeId, @NotNull MessageBroker broker) {
+        Objects.requireNonNull(nodeId);
+        Objects.requireNonNull(broker);
+        if (findNode(nodeId) != null) {
+            throw new IllegalArgumentException("The cluster already contains a node with ID " + nodeId);
+        }
+        final List<ClusterNode> nodes = new ArrayList<>(ring.getNodes());
+        nodes.add(new ClusterNode(nodeId, broker));
+        ring = new ConsistentHashRing(nodes, virtualNodesPerNode);
+        LOGGER.info("Added node {} to the cluster", nodeId);
+    }
+
+    /**
+     * Removes a node from the cluster.
+     *
+     * @param nodeId the ID of the node to remove (never {@code null}).
+     * @return true if the node was removed, false if there was no such node.
+     */
+    public synchronized boolean removeNode(@NotNull String nodeId) {
+        final ClusterNode node = findNode(Objects.requireNonNull(nodeId));
+        if (node == null) {
+            return false;
+        }
+        final List<ClusterNode> nodes = new ArrayList<>(ring.getNodes());
+        nodes.remove(node);
+        ring = new ConsistentHashRing(nodes, virtualNodesPerNode);
+        LOGGER.info("Removed node {} from the cluster", nodeId);
+        return true;
+    }
+
+    /**
+     * Replaces all nodes of the cluster, e.g. when the membership has been read from a service registry. Nodes that
+     * keep their ID and broker also keep their health.
+     *
+     * @param brokers the brokers of the nodes, keyed by node ID (never {@code null}).
+     */
+    public synchronized void setNodes(@NotNull Map<String, ? extends MessageBroker> brokers) {
+        final List<ClusterNode> nodes = new ArrayList<>(brokers.size());
+        brokers.forEach((nodeId, broker) -> {
+            final ClusterNode existing = findNode(nodeId);
+            nodes.add(existing != null && existing.getBroker() == broker ? existing : new ClusterNode(nodeId, broker));
+        });
+        ring = new ConsistentHashRing(nodes, virtualNodesPerNode);
+        LOGGER.info("Set the nodes of the cluster to {}", brokers.keySet());
+    }
+
+    /**
+     * Gets the nodes of the cluster.
+     *
+     * @return an unmodifiable list of nodes (never {@code null}).
+     */
+    @NotNull
+    public List<ClusterNode> getNodes() {
+        return ring.getNodes();
+    }
+
+    /**
+     * Gets the node that owns the specified routing key, regardless of whether it is available or not.
+     *
+     * @param routingKey the routing key (never {@code null}).
+     * @return the node, or an empty {@code Optional} if the cluster has no nodes.
+     */
+    @NotNull
+    public Optional<ClusterNode> getNode(@NotNull String routingKey) {
+        final Iterator<ClusterNode> nodes = ring.walk(ConsistentHashRing.hash(Objects.requireNonNull(routingKey)));
+        return nodes.hasNext() ? Optional.of(nodes.next()) : Optional.empty();
+    }
+
+    /**
+     * Sets the number of consecutive transport failures after which a node is considered unavailable. Default is 3.
+     *
+     * @param failureThreshold the threshold, must be positive.
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("The failure threshold must be positive");
+        }
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Sets how long an unavailable node is skipped before messages are routed to it again. Default is 5 seconds.
+     *
+     * @param retryInterval the retry interval (never {@code null}).
+     */
+    public void setRetryInterval(@NotNull Duration retryInterval) {
+        this.retryInterval = Objects.requireNonNull(retryInterval);
+    }
+
+    /**
+     * Sets how many other nodes a message is sent to if it fails to reach its node. Default is 2. Use 0 to disable
+     * failover.
+     *
+     * @param maxFailovers the maximum number of failovers, must not be negative.
+     */
+    public void setMaxFailovers(int maxFailovers) {
+        if (maxFailovers < 0) {
+            throw new IllegalArgumentException("The maximum number of failovers must not be negative");
+        }
+        this.maxFailovers = maxFailovers;
+    }
+
+    @Override
+    public <MESSAGE extends Message<REPLY>, REPLY> REPLY send(@NotNull MESSAGE message) {
+        Objects.requireNonNull(message);
+        final ConsistentHashRing currentRing = ring;
+        if (currentRing.isEmpty()) {
+            throw new MessageTransportException("The cluster has no nodes");
+        }
+        final Context context = ContextHolder.getOptionalContext().orElse(null);
+        final String routingKey = getRoutingKey(message, context);
+        final long hash = routingKey != null ? ConsistentHashRing.hash(routingKey)
+            : ThreadLocalRandom.current().nextLong();
+        final long now = System.nanoTime();
+        final long retryIntervalNanos = retryInterval.toNanos();
+        MessageTransportException lastFailure = null;
+        int attempts = 0;
+        for (Iterator<ClusterNode> nodes = currentRing.walk(hash); nodes.hasNext() && attempts <= maxFailovers;) {
+            final ClusterNode node = nodes.next();
+            if (!node.tryRoute(now, retryIntervalNanos)) {
+                LOGGER.trace("Skipping unavailable node {}", node);
+                continue;
+            }
+            if (attempts++ > 0 && context != null && context.isExpired()) {
+                throw new DeadlineExceededException(message.getClass());
+            }
+            try {
+                final REPLY reply = node.getBroker().send(message);
+                node.recordSuccess();
+                return reply;
+            } catch (MessageTransportException ex) {
+                lastFailure = ex;
+                LOGGER.warn("Could not send {} to node {}", message, node.getId(), ex);
+                if (node.recordFailure(System.nanoTime(), failureThreshold, retryIntervalNanos)) {
+                    LOGGER.warn("Node {} is unavailable for the next {} ms", node.getId(), retryInterval.toMillis());
+                }
+            }
+        }
+        if (lastFailure == null) {
+            throw new MessageTransportException("No node in the cluster is available");
+        }
+        throw new MessageTransportException("Could not send " + message + " to any node", lastFailure);
+    }
+
+    @Nullable
+    private static String getRoutingKey(@NotNull Message<?> message, @Nullable Context context) {
+        final Optional<String> routingKey = message.getRoutingKey();
+        if (routingKey.isPresent()) {
+            return routingKey.get();
+        }
+        if (context != null) {
+            final Object attribute = context.getAttribute(ROUTING_KEY_ATTRIBUTE);
+            return attribute == null ? null : attribute.toString();
+        }
+        return null;
+    }
+
+    @Nullable
+    private ClusterNode findNode(@NotNull String nodeId) {
+        for (ClusterNode node : ring.getNodes()) {
+            if (node.getId().equals(nodeId)) {
+                return node;
+            }
+        }
+        return null;
+    }
+}
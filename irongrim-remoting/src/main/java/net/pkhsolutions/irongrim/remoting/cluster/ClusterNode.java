@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.cluster;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.pkhsolutions.irongrim.api.MessageBroker;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Node of a cluster that a {@link ClusterMessageBroker} routes messages to, together with its health. A node becomes
+ * unavailable when a number of consecutive messages have failed to reach it, and stays unavailable for the retry
+ * interval of the broker. After that, a single message is routed to it as a probe while the node stays unavailable to
+ * all other messages: a success makes the node healthy again, while a failure makes it unavailable for another retry
+ * interval. If the probe neither succeeds nor fails within the retry interval, another probe is let through.
+ */
+public final class ClusterNode {
+
+    private final String id;
+    private final MessageBroker broker;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong unavailableUntilNanos;
+    private volatile boolean probing;
+
+    ClusterNode(@NotNull String id, @NotNull MessageBroker broker) {
+        this.id = Objects.requireNonNull(id);
+        this.broker = Objects.requireNonNull(broker);
+        this.unavailableUntilNanos = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Gets the ID of the node, which determines the position of the node on the hash ring.
+     */
+    @NotNull
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the broker that sends messages to the node.
+     */
+    @NotNull
+    public MessageBroker getBroker() {
+        return broker;
+    }
+
+    /**
+     * Gets the number of messages in a row that have failed to reach the node.
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * Returns whether messages are currently routed to the node.
+     */
+    public boolean isAvailable() {
+        return isAvailable(System.nanoTime());
+    }
+
+    boolean isAvailable(long now) {
+        return now - unavailableUntilNanos.get() >= 0;
+    }
+
+    /**
+     * Returns whether a message may be sent to the node. When the retry interval of an unavailable node has passed,
+     * only the caller that manages to move the end of the interval forward gets to send a probe, so that concurrent
+     * senders do not all pile onto a node that is probably still down.
+     */
+    boolean tryRoute(long now, long retryIntervalNanos) {
+        final long until = unavailableUntilNanos.get();
+        if (now - until < 0) {
+            return false;
+        }
+        return !probing || unavailableUntilNanos.compareAndSet(until, now + retryIntervalNanos);
+    }
+
+    void recordSuccess() {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        if (probing) {
+            probing = false;
+            unavailableUntilNanos.set(System.nanoTime());
+        }
+    }
+
+    /**
+     * Records a failure, making the node unavailable for the specified time if the number of consecutive failures has
+     * reached the threshold.
+     *
+     * @return true if the node became unavailable.
+     */
+    boolean recordFailure(long now, int failureThreshold, long retryIntervalNanos) {
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            probing = true;
+            unavailableUntilNanos.set(now + retryIntervalNanos);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[id=%s, consecutiveFailures=%d]", getClass().getSimpleName(), id,
+            consecutiveFailures.get());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable consistent hash ring. Every node is placed on the ring at a number of pseudo-random points (virtual nodes)
+ * derived from its ID, and a key belongs to the node of the first point at or after the hash of the key. When a node
+ * joins or leaves, only the keys of the points it gains or loses are remapped, i.e. roughly 1/N of all keys. The
+ * virtual nodes spread the keys evenly and make sure the keys of a leaving node are taken over by all remaining nodes
+ * instead of just its neighbour.
+ * <p>
+ * Hashes are computed from the UTF-8 bytes of the IDs and keys, so all clients agree on the mapping regardless of
+ * which VM they run in.
+ * </p>
+ */
+final class ConsistentHashRing {
+
+    private final List<ClusterNode> nodes;
+    private final long[] points;
+    private final ClusterNode[] owners;
+
+    ConsistentHashRing(@NotNull Collection<ClusterNode> nodes, int virtualNodesPerNode) {
+        if (virtualNodesPerNode < 1) {
+            throw new IllegalArgumentException("The number of virtual nodes must be positive");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        final List<Map.Entry<Long, ClusterNode>> entries = new ArrayList<>(nodes.size() * virtualNodesPerNode);
+        for (ClusterNode node : nodes) {
+            for (int i = 0; i < virtualNodesPerNode; ++i) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(hash(node.getId() + "#" + i), node));
+            }
+        }
+        // Ties are broken by the node IDs, so that all clients build the same ring regardless of the node order
+        entries.sort(Comparator.<Map.Entry<Long, ClusterNode>> comparingLong(Map.Entry::getKey)
+            .thenComparing(entry -> entry.getValue().getId()));
+        points = new long[entries.size()];
+        owners = new ClusterNode[entries.size()];
+        for (int i = 0; i < entries.size(); ++i) {
+            points[i] = entries.get(i).getKey();
+            owners[i] = entries.get(i).getValue();
+        }
+    }
+
+    /**
+     * Returns the nodes on the ring, in the order they were given.
+     */
+    @NotNull
+    List<ClusterNode> getNodes() {
+        return nodes;
+    }
+
+    boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * Returns the distinct nodes in the order they are encountered when walking clockwise from the specified hash. The
+     * first node is the owner of the hash and the following nodes are the ones that take over if the owner is gone.
+     * The iterator visits the ring lazily, so it is cheap to only look at the first few nodes.
+     */
+    @NotNull
+    Iterator<ClusterNode> walk(long hash) {
+        final int start = points.length == 0 ? 0 : indexOf(hash);
+        return new Iterator<ClusterNode>() {
+
+            private final Set<ClusterNode> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            private int steps;
+            private ClusterNode next = advance();
+
+            private ClusterNode advance() {
+                while (steps < points.length && visited.size() < nodes.size()) {
+                    final ClusterNode candidate = owners[(start + steps++) % points.length];
+                    if (visited.add(candidate)) {
+                        return candidate;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public ClusterNode next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final ClusterNode result = next;
+                next = advance();
+                return result;
+            }
+        };
+    }
+
+    private int indexOf(long hash) {
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index == points.length ? 0 : index;
+    }
+
+    /**
+     * Computes a 64-bit hash of the UTF-8 bytes of the specified string, using FNV-1a followed by the finalizer of
+     * MurmurHash3 to spread similar strings (such as consecutive IDs) over the whole ring.
+     */
+    static long hash(@NotNull String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.shm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import net.pkhsolutions.irongrim.api.Attachment;
+import net.pkhsolutions.irongrim.remoting.MessageTransportException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streaming of buffer-backed {@link Attachment}s through the ring buffers of the shared-memory transport. The sender
+ * writes the payload of each attachment as a series of chunk records before it writes the envelope that refers to the
+ * attachments, and the receiver copies the chunks straight from the ring into a memory-mapped temporary file. Neither
+ * side ever holds the entire payload on the heap.
+ * <p>
+ * Every chunk record starts with a header identifying the sender, the correlation ID of the envelope, the index of the
+ * attachment within the envelope, the total size of the attachment and the offset of the chunk.
+ * </p>
+ */
+final class AttachmentChunks {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AttachmentChunks.class);
+
+    private AttachmentChunks() {
+    }
+
+    /**
+     * Writes the payloads of the specified attachments to the ring buffer, waiting for space if the ring buffer is
+     * full.
+     *
+     * @param expired tells whether the sender has run out of time waiting for space.
+     * @throws MessageTransportException if the sender runs out of time, or if the payload cannot be accessed.
+     */
+    static void write(MappedRingBuffer ring, String senderId, long correlationId, List<Attachment> attachments,
+        BooleanSupplier expired) {
+        final BackoffIdleStrategy idleStrategy = BackoffIdleStrategy.createDefault();
+        for (int index = 0; index < attachments.size(); ++index) {
+            final Attachment attachment = attachments.get(index);
+            final ByteBuffer content;
+            try {
+                content = attachment.getContent();
+            } catch (IOException ex) {
+                throw new MessageTransportException("Could not read " + attachment, ex);
+            }
+            final long size = content.remaining();
+            long offset = 0;
+            do {
+                final byte[] header = encodeHeader(senderId, correlationId, index, size, offset);
+                final int length = Math.min(ring.getMaxRecordLength() - header.length, content.remaining());
+                final ByteBuffer chunk = content.duplicate();
+                chunk.limit(chunk.position() + length);
+                while (!ring.write(Envelopes.ATTACHMENT_CHUNK_TYPE, header, chunk)) {
+                    if (expired.getAsBoolean()) {
+                        throw new MessageTransportException("The ring buffer is full");
+                    }
+                    idleStrategy.idle();
+                }
+                content.position(content.position() + length);
+                offset += length;
+            } while (content.hasRemaining());
+        }
+    }
+
+    static byte[] encodeHeader(String senderId, long correlationId, int index, long size, long offset) {
+        final byte[] senderIdBytes = senderId.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer header = ByteBuffer.allocate(30 + senderIdBytes.length);
+        header.putLong(correlationId).putInt(index).putLong(size).putLong(offset).putShort(
+            (short) senderIdBytes.length).put(senderIdBytes);
+        return header.array();
+    }
+
+    /**
+     * Assembles attachments from the chunk records read from a ring buffer. Since a ring buffer only has one reader, an
+     * assembler is only accessed by one thread and is therefore not thread-safe.
+     */
+    static final class Assembler {
+
+        /**
+         * Attachments whose envelope has not arrived within this time are assumed to belong to senders that have died
+         * in the middle of sending, and are discarded.
+         */
+        private static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(5);
+
+        private final Path directory;
+        private final long maxAgeNanos;
+        private final Map<String, IncomingAttachment> incomingAttachments = new HashMap<>();
+
+        /**
+         * Creates a new assembler that stores the incoming attachments in temporary files in the specified
+         * directory, which should preferably be on a RAM backed file system.
+         */
+        Assembler(Path directory) {
+            this(directory, DEFAULT_MAX_AGE);
+        }
+
+        /**
+         * Creates a new assembler that discards incomplete attachments that are older than the specified age.
+         */
+        Assembler(Path directory, Duration maxAge) {
+            this.directory = directory;
+            this.maxAgeNanos = maxAge.toNanos();
+        }
+
+        /**
+         * Copies the chunk in the specified payload into its attachment.
+         */
+        void onChunk(ByteBuffer payload) {
+            final long correlationId = payload.getLong();
+            final int index = payload.getInt();
+            final long size = payload.getLong();
+            final long offset = payload.getLong();
+            final byte[] senderIdBytes = new byte[payload.getShort()];
+            payload.get(senderIdBytes);
+            final String key = getKey(new String(senderIdBytes, StandardCharsets.UTF_8), correlationId, index);
+            IncomingAttachment incomingAttachment = incomingAttachments.get(key);
+            if (incomingAttachment == null) {
+                try {
+                    incomingAttachment = new IncomingAttachment(directory, size);
+                } catch (IOException | IllegalArgumentException ex) {
+                    LOGGER.error("Could not allocate space for attachment {} of size {}", key, size, ex);
+                    return;
+                }
+                incomingAttachments.put(key, incomingAttachment);
+            }
+            incomingAttachment.write(offset, payload);
+        }
+
+        /**
+         * Removes the specified attachment from the assembler.
+         *
+         * @return the attachment (never {@code null}).
+         * @throws MessageTransportException if the attachment has not been received completely.
+         */
+        Attachment take(String senderId, long correlationId, int index) {
+            final String key = getKey(senderId, correlationId, index);
+            final IncomingAttachment incomingAttachment = incomingAttachments.remove(key);
+            if (incomingAttachment == null || !incomingAttachment.isComplete()) {
+                throw new MessageTransportException("Attachment " + key + " was not received completely");
+            }
+            return Attachment.of(incomingAttachment.content);
+        }
+
+        /**
+         * Returns the number of attachments that are being assembled.
+         */
+        int getIncomingCount() {
+            return incomingAttachments.size();
+        }
+
+        /**
+         * Discards the attachments whose envelope has not arrived within the maximum age. This must be called
+         * regularly by the thread that reads the ring buffer, so that the memory of attachments from senders that have
+         * died is released even if no more attachments arrive.
+         */
+        void discardStaleAttachments(long now) {
+            if (incomingAttachments.isEmpty()) {
+                return;
+            }
+            incomingAttachments.entrySet().removeIf(entry -> {
+                if (now - entry.getValue().createdNanos > maxAgeNanos) {
+                    LOGGER.warn("Discarding attachment {} since its message never arrived", entry.getKey());
+                    return true;
+                }
+                return false;
+            });
+        }
+
+        private static String getKey(String senderId, long correlationId, int index) {
+            return senderId + "/" + correlationId + "/" + index;
+        }
+    }
+
+    private static final class IncomingAttachment {
+
+        final MappedByteBuffer content;
+        final long createdNanos = System.nanoTime();
+        long received;
+
+        IncomingAttachment(Path directory, long size) throws IOException {
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid attachment size " + size);
+            }
+            final Path file = Files.createTempFile(directory, "attachment-", ".tmp");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // The mapping stays valid after the channel has been closed and the file has been deleted
+                content = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                try {
+                    Files.delete(file);
+                } catch (IOException ex) {
+                    LOGGER.warn("Could not delete temporary attachment file {}", file, ex);
+                }
+            }
+        }
+
+        void write(long offset, ByteBuffer chunk) {
+            final int length = chunk.remaining();
+            if (offset < 0 || offset + length > content.capacity()) {
+                LOGGER.error("Ignoring attachment chunk at offset {} with length {} that is out of bounds", offset,
+                    length);
+                return;
+            }
+            final ByteBuffer target = content.duplicate();
+            target.position((int) offset);
+            target.put(chunk);
+            received += length;
+        }
+
+        boolean isComplete() {
+            return received == content.capacity();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.shm;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Strategy for threads that are polling a ring buffer and have nothing to do. The thread first busy-spins, which gives
+ * the lowest latency, then yields and finally parks for exponentially increasing periods, which saves CPU when the
+ * ring buffer stays idle. Instances are not thread safe, every polling thread needs its own.
+ */
+final class BackoffIdleStrategy {
+
+    private final int maxSpins;
+    private final int maxYields;
+    private final long minParkNanos;
+    private final long maxParkNanos;
+    private int spins;
+    private int yields;
+    private long parkNanos;
+
+    BackoffIdleStrategy(int maxSpins, int maxYields, long minParkNanos, long maxParkNanos) {
+        this.maxSpins = maxSpins;
+        this.maxYields = maxYields;
+        this.minParkNanos = minParkNanos;
+        this.maxParkNanos = maxParkNanos;
+        reset();
+    }
+
+    /**
+     * Creates a strategy with default settings suitable for latency sensitive threads.
+     */
+    static BackoffIdleStrategy createDefault() {
+        return new BackoffIdleStrategy(10_000, 100, 1_000, 1_000_000);
+    }
+
+    /**
+     * Idles if no work was done, or resets the backoff otherwise.
+     *
+     * @param workCount the amount of work done since the previous invocation.
+     */
+    void idle(int workCount) {
+        if (workCount > 0) {
+            reset();
+        } else {
+            idle();
+        }
+    }
+
+    /**
+     * Idles once, backing off further every time this method is invoked without a {@link #reset()} in between.
+     */
+    void idle() {
+        if (spins < maxSpins) {
+            ++spins;
+        } else if (yields < maxYields) {
+            ++yields;
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos * 2, maxParkNanos);
+        }
+    }
+
+    /**
+     * Resets the backoff, so that the next idle starts by spinning again.
+     */
+    void reset() {
+        spins = 0;
+        yields = 0;
+        parkNanos = minParkNanos;
+    }
+}
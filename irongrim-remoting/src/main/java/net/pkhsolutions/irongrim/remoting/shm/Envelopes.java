@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.shm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import net.pkhsolutions.irongrim.api.Attachment;
+import net.pkhsolutions.irongrim.api.Context;
+import net.pkhsolutions.irongrim.api.Message;
+import net.pkhsolutions.irongrim.remoting.MessageTransportException;
+
+/**
+ * Envelopes that are written to the ring buffers of the shared-memory transport, and their serialization. Envelopes
+ * are serialized using Java serialization, since both messages and the {@link Context} are already
+ * {@link Serializable}.
+ * <p>
+ * Buffer-backed {@link Attachment}s are replaced by placeholders when an envelope is serialized, and their payloads are
+ * streamed separately by {@link AttachmentChunks}. File-backed attachments are serialized as references to the file,
+ * which the receiver can map directly since it is on the same host.
+ * </p>
+ */
+final class Envelopes {
+
+    static final int REQUEST_TYPE = 1;
+    static final int REPLY_TYPE = 2;
+    static final int ATTACHMENT_CHUNK_TYPE = 3;
+
+    private Envelopes() {
+    }
+
+    static byte[] serialize(Serializable envelope) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(envelope);
+        } catch (IOException ex) {
+            throw new MessageTransportException("Could not serialize " + envelope, ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Serializes the specified envelope, replacing all buffer-backed attachments with placeholders.
+     *
+     * @param streamedAttachments the list to add the replaced attachments to, in the order of their indexes.
+     */
+    static byte[] serialize(Serializable envelope, String senderId, long correlationId,
+        List<Attachment> streamedAttachments) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new AttachmentReplacingOutputStream(bytes, senderId, correlationId,
+            streamedAttachments)) {
+            out.writeObject(envelope);
+        } catch (IOException ex) {
+            throw new MessageTransportException("Could not serialize " + envelope, ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes an envelope, replacing all attachment placeholders with the attachments assembled by the
+     * specified assembler.
+     */
+    static Object deserialize(ByteBuffer payload, AttachmentChunks.Assembler assembler) {
+        try (ObjectInputStream in = new AttachmentResolvingInputStream(new ByteBufferInputStream(payload),
+            assembler)) {
+            return in.readObject();
+        } catch (IOException | ClassNotFoundException ex) {
+            throw new MessageTransportException("Could not deserialize envelope", ex);
+        }
+    }
+
+    /**
+     * Envelope of a message sent from a client to the server.
+     */
+    static final class Request implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final long correlationId;
+        final String clientId;
+        final Message<?> message;
+        final Context context;
+
+        Request(long correlationId, String clientId, Message<?> message, Context context) {
+            this.correlationId = correlationId;
+            this.clientId = clientId;
+            this.message = message;
+            this.context = context;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Request[correlationId=%d, clientId=%s, message=%s]", correlationId, clientId,
+                message);
+        }
+    }
+
+    /**
+     * Envelope of a reply (or an exception) sent from the server to a client.
+     */
+    static final class Reply implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final long correlationId;
+        final Object reply;
+        final Throwable error;
+
+        Reply(long correlationId, Object reply, Throwable error) {
+            this.correlationId = correlationId;
+            this.reply = reply;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Reply[correlationId=%d, error=%s]", correlationId, error);
+        }
+    }
+
+    /**
+     * Placeholder of an attachment whose payload is streamed separately from the envelope.
+     */
+    private static final class AttachmentPlaceholder implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final String senderId;
+        final long correlationId;
+        final int index;
+
+        AttachmentPlaceholder(String senderId, long correlationId, int index) {
+            this.senderId = senderId;
+            this.correlationId = correlationId;
+            this.index = index;
+        }
+    }
+
+    private static final class AttachmentReplacingOutputStream extends ObjectOutputStream {
+
+        private final String senderId;
+        private final long correlationId;
+        private final List<Attachment> streamedAttachments;
+
+        AttachmentReplacingOutputStream(OutputStream out, String senderId, long correlationId,
+            List<Attachment> streamedAttachments) throws IOException {
+            super(out);
+            this.senderId = senderId;
+            this.correlationId = correlationId;
+            this.streamedAttachments = streamedAttachments;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+            if (obj instanceof Attachment && !((Attachment) obj).getFile().isPresent()) {
+                streamedAttachments.add((Attachment) obj);
+                return new AttachmentPlaceholder(senderId, correlationId, streamedAttachments.size() - 1);
+            }
+            return obj;
+        }
+    }
+
+    private static final class AttachmentResolvingInputStream extends ObjectInputStream {
+
+        private final AttachmentChunks.Assembler assembler;
+
+        AttachmentResolvingInputStream(InputStream in, AttachmentChunks.Assembler assembler) throws IOException {
+            super(in);
+            this.assembler = assembler;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+            if (obj instanceof AttachmentPlaceholder) {
+                final AttachmentPlaceholder placeholder = (AttachmentPlaceholder) obj;
+                return assembler.take(placeholder.senderId, placeholder.correlationId, placeholder.index);
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * Input stream that reads the remaining bytes of a buffer without copying them first.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
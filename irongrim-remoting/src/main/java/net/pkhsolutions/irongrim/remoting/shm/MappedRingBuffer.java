@@ -0,0 +1,439 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.shm;
+
+import static net.pkhsolutions.irongrim.remoting.shm.UnsafeAccess.BYTE_ARRAY_OFFSET;
+import static net.pkhsolutions.irongrim.remoting.shm.UnsafeAccess.UNSAFE;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Objects;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Ring buffer of variable length records stored in a memory-mapped file, so that it can be shared between processes
+ * on the same host. Any number of threads in any number of processes can write records concurrently, but only one
+ * thread may read from the ring buffer (many-to-one). Producers and the consumer coordinate without locks: producers
+ * claim space by atomically advancing the tail with a compare-and-swap and commit a record by publishing its header
+ * with an ordered write, and the consumer releases space by zeroing consumed records and advancing the head.
+ * <p>
+ * The file consists of a header of {@value #HEADER_LENGTH} bytes, followed by the data area whose capacity is a power
+ * of two. The tail and the head are stored on separate cache lines to prevent false sharing between producers and
+ * the consumer. Every record starts with a 64-bit header word followed by its type, and is aligned to 16 bytes so
+ * that even the shortest padding record has room for a record header. The header word contains the length of the
+ * record (including the record header) and a stamp made up of the lap of the record's position and the state of the
+ * record. A record that would not fit before the end of the data area is preceded by a padding record that fills up
+ * the rest of the data area, so that records are always contiguous in memory.
+ * </p>
+ * <p>
+ * A producer that claims space marks the record as claimed. Before copying its payload, the producer changes the
+ * state from claimed to writing with a compare-and-swap of the whole header word, and once the payload is in place it
+ * commits the record. If a producer dies after claiming, e.g. because its process was killed, the consumer would wait
+ * for the record forever and every other producer would be blocked as well. The consumer therefore zeroes a record
+ * that has stayed claimed for longer than the {@link #setClaimTimeout(Duration) claim timeout} with a compare-and-swap
+ * and skips it. A producer that is merely very slow then fails to start writing, and {@code write} returns false as
+ * if the ring buffer had been full. Because the stamp contains the lap, the producer cannot mistake a claim made at
+ * the same address in a later lap for its own. A record that is being written belongs to its producer until it is
+ * committed, so the consumer never releases memory that a producer may still write to. A producer that dies in the
+ * few instructions between advancing the tail and marking its record as claimed, or while copying its payload, still
+ * blocks the ring buffer until it is recreated.
+ * </p>
+ * <p>
+ * Java 8 has no public API for unmapping files, so the mapping is released when the ring buffer has been garbage
+ * collected.
+ * </p>
+ */
+@SuppressWarnings("unused")
+public class MappedRingBuffer {
+
+    /**
+     * The length of the file header in bytes.
+     */
+    public static final int HEADER_LENGTH = 256;
+
+    private static final int MAGIC = 0x49475242;
+    private static final int VERSION = 2;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int TAIL_OFFSET = 64;
+    private static final int HEAD_OFFSET = 192;
+    private static final int RECORD_HEADER_LENGTH = 16;
+    private static final int TYPE_OFFSET = 8;
+    private static final int ALIGNMENT = RECORD_HEADER_LENGTH;
+    private static final int PADDING_TYPE = -1;
+    private static final int CLAIMED = 1;
+    private static final int WRITING = 2;
+    private static final int COMMITTED = 3;
+    private static final int STATE_BITS = 2;
+    private static final int STATE_MASK = (1 << STATE_BITS) - 1;
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final ByteBuffer readView;
+    private final long headerAddress;
+    private final long dataAddress;
+    private final int capacity;
+    private final int lapShift;
+    private final int maxRecordLength;
+    private volatile long claimTimeoutNanos = Duration.ofSeconds(10).toNanos();
+    private long stalledPosition = -1;
+    private long stalledSince;
+
+    private MappedRingBuffer(Path file, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.readView = buffer.duplicate();
+        this.headerAddress = UnsafeAccess.addressOf(buffer);
+        this.dataAddress = headerAddress + HEADER_LENGTH;
+        this.capacity = capacity;
+        this.lapShift = Integer.numberOfTrailingZeros(capacity);
+        this.maxRecordLength = capacity / 8 - RECORD_HEADER_LENGTH;
+    }
+
+    /**
+     * Creates a new ring buffer in the specified file. If the file already exists, it is overwritten. Since producers
+     * in other processes may still have the old file mapped, a ring buffer should only be recreated when all of them
+     * are known to be gone.
+     *
+     * @param file the file to create (never {@code null}).
+     * @param capacity the capacity of the data area in bytes, must be a power of two and at least 1024.
+     * @return the ring buffer (never {@code null}).
+     * @throws IOException if the file could not be created or mapped.
+     */
+    @NotNull
+    public static MappedRingBuffer create(@NotNull Path file, int capacity) throws IOException {
+        Objects.requireNonNull(file);
+        if (capacity < 1024 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity must be a power of two and at least 1024");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(0);
+            raf.setLength(HEADER_LENGTH + capacity);
+            final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_LENGTH + capacity);
+            final MappedRingBuffer ringBuffer = new MappedRingBuffer(file, buffer, capacity);
+            UNSAFE.putInt(ringBuffer.headerAddress + VERSION_OFFSET, VERSION);
+            UNSAFE.putInt(ringBuffer.headerAddress + CAPACITY_OFFSET, capacity);
+            // The magic number is written last, so that a process opening the file knows it has been initialized
+            UNSAFE.putIntVolatile(null, ringBuffer.headerAddress + MAGIC_OFFSET, MAGIC);
+            return ringBuffer;
+        }
+    }
+
+    /**
+     * Opens an existing ring buffer that has been created by another process (or by this process).
+     *
+     * @param file the file to open (never {@code null}).
+     * @return the ring buffer (never {@code null}).
+     * @throws java.nio.file.NoSuchFileException if the file does not exist.
+     * @throws IOException if the file could not be mapped or does not contain an initialized ring buffer.
+     */
+    @NotNull
+    public static MappedRingBuffer open(@NotNull Path file) throws IOException {
+        Objects.requireNonNull(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long length = channel.size();
+            if (length < HEADER_LENGTH) {
+                throw new IOException("The file " + file + " is not a ring buffer");
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            final long address = UnsafeAccess.addressOf(buffer);
+            if (UNSAFE.getIntVolatile(null, address + MAGIC_OFFSET) != MAGIC) {
+                throw new IOException("The file " + file + " is not an initialized ring buffer");
+            }
+            if (UNSAFE.getInt(address + VERSION_OFFSET) != VERSION) {
+                throw new IOException("The ring buffer " + file + " has an unsupported version");
+            }
+            final int capacity = UNSAFE.getInt(address + CAPACITY_OFFSET);
+            if (capacity + (long) HEADER_LENGTH != length) {
+                throw new IOException("The ring buffer " + file + " has an invalid capacity");
+            }
+            return new MappedRingBuffer(file, buffer, capacity);
+        }
+    }
+
+    /**
+     * Gets the file the ring buffer is stored in.
+     */
+    @NotNull
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the capacity of the data area in bytes.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the maximum length of a single record payload in bytes, which is an eighth of the capacity minus the record
+     * header.
+     */
+    public int getMaxRecordLength() {
+        return maxRecordLength;
+    }
+
+    /**
+     * Sets how long a record may stay claimed but not committed before the consumer gives up on it and skips it.
+     * Default is 10 seconds. This setting only affects the process that reads from the ring buffer.
+     *
+     * @param claimTimeout the timeout (never {@code null}).
+     */
+    public void setClaimTimeout(@NotNull Duration claimTimeout) {
+        this.claimTimeoutNanos = claimTimeout.toNanos();
+    }
+
+    /**
+     * Gets the number of bytes that have been written but not yet consumed, including record headers and padding.
+     */
+    public int getSize() {
+        final long head = UNSAFE.getLongVolatile(null, headerAddress + HEAD_OFFSET);
+        final long tail = UNSAFE.getLongVolatile(null, headerAddress + TAIL_OFFSET);
+        return (int) (tail - head);
+    }
+
+    /**
+     * Writes a record to the ring buffer. This method can be invoked concurrently by any number of threads and
+     * processes.
+     *
+     * @param type the type of the record, must not be negative.
+     * @param source the array containing the payload (never {@code null}).
+     * @param offset the offset of the payload in the array.
+     * @param length the length of the payload.
+     * @return true if the record was written, false if the ring buffer is full or the consumer gave up waiting for the
+     *         record to be written.
+     * @throws IllegalArgumentException if the payload is longer than {@link #getMaxRecordLength()}.
+     */
+    public boolean write(int type, @NotNull byte[] source, int offset, int length) {
+        if (offset < 0 || offset + length > source.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        final long position = claim(type, length);
+        if (position < 0) {
+            return false;
+        }
+        final long recordAddress = startWriting(position, length);
+        if (recordAddress == 0) {
+            return false;
+        }
+        UNSAFE.copyMemory(source, BYTE_ARRAY_OFFSET + offset, null, recordAddress + RECORD_HEADER_LENGTH, length);
+        commit(position, length);
+        return true;
+    }
+
+    /**
+     * Writes a record consisting of a header and the remaining content of a buffer to the ring buffer, without copying
+     * the buffer to the heap first. The position of the buffer is not changed. This method can be invoked concurrently
+     * by any number of threads and processes.
+     *
+     * @param type the type of the record, must not be negative.
+     * @param header the array containing the first part of the payload (never {@code null}).
+     * @param source the buffer containing the rest of the payload (never {@code null}).
+     * @return true if the record was written, false if the ring buffer is full or the consumer gave up waiting for the
+     *         record to be written.
+     * @throws IllegalArgumentException if the payload is longer than {@link #getMaxRecordLength()}.
+     */
+    public boolean write(int type, @NotNull byte[] header, @NotNull ByteBuffer source) {
+        final int length = header.length + source.remaining();
+        final long position = claim(type, length);
+        if (position < 0) {
+            return false;
+        }
+        final long recordAddress = startWriting(position, length);
+        if (recordAddress == 0) {
+            return false;
+        }
+        UNSAFE.copyMemory(header, BYTE_ARRAY_OFFSET, null, recordAddress + RECORD_HEADER_LENGTH, header.length);
+        final ByteBuffer target = buffer.duplicate();
+        final int targetPosition = (int) (recordAddress - headerAddress) + RECORD_HEADER_LENGTH + header.length;
+        target.limit(targetPosition + source.remaining()).position(targetPosition);
+        target.put(source.duplicate());
+        commit(position, length);
+        return true;
+    }
+
+    /**
+     * Claims space for a record of the specified payload length, writes its type and marks it as claimed, inserting a
+     * padding record first if needed.
+     *
+     * @return the position of the record, or -1 if the ring buffer is full.
+     */
+    long claim(int type, int length) {
+        if (type < 0) {
+            throw new IllegalArgumentException("The type must not be negative");
+        }
+        if (length > maxRecordLength) {
+            throw new IllegalArgumentException("The record is " + length + " bytes long, the maximum is "
+                + maxRecordLength);
+        }
+        final int alignedLength = align(RECORD_HEADER_LENGTH + length);
+        final int mask = capacity - 1;
+        long tail;
+        int padding;
+        do {
+            final long head = UNSAFE.getLongVolatile(null, headerAddress + HEAD_OFFSET);
+            tail = UNSAFE.getLongVolatile(null, headerAddress + TAIL_OFFSET);
+            final int toEnd = capacity - (int) (tail & mask);
+            padding = alignedLength > toEnd ? toEnd : 0;
+            if (tail + padding + alignedLength - head > capacity) {
+                return -1;
+            }
+        } while (!UNSAFE.compareAndSwapLong(null, headerAddress + TAIL_OFFSET, tail, tail + padding + alignedLength));
+
+        if (padding != 0) {
+            final long paddingAddress = dataAddress + (tail & mask);
+            UNSAFE.putInt(paddingAddress + TYPE_OFFSET, PADDING_TYPE);
+            UNSAFE.putOrderedLong(null, paddingAddress, recordHeader(tail, COMMITTED, padding));
+        }
+        final long position = tail + padding;
+        final long recordAddress = dataAddress + (position & mask);
+        UNSAFE.putInt(recordAddress + TYPE_OFFSET, type);
+        UNSAFE.putOrderedLong(null, recordAddress, recordHeader(position, CLAIMED, RECORD_HEADER_LENGTH + length));
+        return position;
+    }
+
+    /**
+     * Changes a claimed record into a record that is being written. After this, the consumer waits for the record to
+     * be committed no matter how long it takes, so the payload may only be copied if this method succeeds.
+     *
+     * @return the address of the record, or 0 if the consumer has given up on the claim.
+     */
+    long startWriting(long position, int length) {
+        final long recordAddress = dataAddress + (position & (capacity - 1));
+        final int recordLength = RECORD_HEADER_LENGTH + length;
+        return UNSAFE.compareAndSwapLong(null, recordAddress, recordHeader(position, CLAIMED, recordLength),
+            recordHeader(position, WRITING, recordLength)) ? recordAddress : 0;
+    }
+
+    /**
+     * Commits a record that is being written. The consumer never looks past a record that has not been committed.
+     */
+    void commit(long position, int length) {
+        final long recordAddress = dataAddress + (position & (capacity - 1));
+        UNSAFE.putOrderedLong(null, recordAddress, recordHeader(position, COMMITTED, RECORD_HEADER_LENGTH + length));
+    }
+
+    /**
+     * Creates the header word of a record at the specified position: the length in the lower half and the stamp in
+     * the upper half. The lap is truncated to the bits that fit in the stamp, which means that it takes billions of
+     * laps before the same stamp and address come around again.
+     */
+    private long recordHeader(long position, int state, int recordLength) {
+        final long stamp = ((position >>> lapShift) << STATE_BITS) | state;
+        return (stamp << 32) | recordLength;
+    }
+
+    private static int state(long recordHeader) {
+        return (int) (recordHeader >>> 32) & STATE_MASK;
+    }
+
+    /**
+     * Reads committed records from the ring buffer and passes them to the specified handler. Only one thread may read
+     * from a ring buffer at a time.
+     *
+     * @param handler the handler to pass the records to (never {@code null}).
+     * @param maxRecords the maximum number of records to read.
+     * @return the number of records read, not counting padding records.
+     */
+    public int read(@NotNull RecordHandler handler, int maxRecords) {
+        final long head = UNSAFE.getLong(headerAddress + HEAD_OFFSET);
+        final int headIndex = (int) (head & (capacity - 1));
+        final int contiguous = capacity - headIndex;
+        int bytesRead = 0;
+        int recordsRead = 0;
+        try {
+            while (bytesRead < contiguous && recordsRead < maxRecords) {
+                final long recordAddress = dataAddress + headIndex + bytesRead;
+                final long recordHeader = UNSAFE.getLongVolatile(null, recordAddress);
+                final int recordLength = (int) recordHeader;
+                final int state = state(recordHeader);
+                if (state == CLAIMED) {
+                    if (!isClaimTimedOut(head + bytesRead)
+                        || !UNSAFE.compareAndSwapLong(null, recordAddress, recordHeader, 0)) {
+                        break;
+                    }
+                    // The producer has died or stalled before writing anything, skip the record as if it was padding
+                    bytesRead += align(recordLength);
+                    continue;
+                }
+                if (state != COMMITTED) {
+                    break;
+                }
+                final int recordIndex = headIndex + bytesRead;
+                bytesRead += align(recordLength);
+                final int type = UNSAFE.getInt(recordAddress + TYPE_OFFSET);
+                if (type == PADDING_TYPE) {
+                    continue;
+                }
+                ++recordsRead;
+                final int payloadPosition = HEADER_LENGTH + recordIndex + RECORD_HEADER_LENGTH;
+                readView.limit(payloadPosition + recordLength - RECORD_HEADER_LENGTH).position(payloadPosition);
+                handler.onRecord(type, readView);
+            }
+        } finally {
+            if (bytesRead > 0) {
+                UNSAFE.setMemory(dataAddress + headIndex, bytesRead, (byte) 0);
+                UNSAFE.putOrderedLong(null, headerAddress + HEAD_OFFSET, head + bytesRead);
+            }
+        }
+        return recordsRead;
+    }
+
+    /**
+     * Checks whether the record at the specified position has been claimed but not committed for longer than the claim
+     * timeout. The first time a position is checked, the clock starts.
+     */
+    private boolean isClaimTimedOut(long position) {
+        final long now = System.nanoTime();
+        if (position != stalledPosition) {
+            stalledPosition = position;
+            stalledSince = now;
+            return false;
+        }
+        return now - stalledSince >= claimTimeoutNanos;
+    }
+
+    private static int align(int length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    /**
+     * Handler of records read from a {@link MappedRingBuffer}.
+     */
+    @FunctionalInterface
+    public interface RecordHandler {
+
+        /**
+         * Handles a record. The payload is a view of the shared memory that is only valid during this invocation,
+         * so any data that is needed afterwards must be copied.
+         *
+         * @param type the type of the record.
+         * @param payload the payload of the record, between the position and the limit of the buffer (never
+         *        {@code null}).
+         */
+        void onRecord(int type, @NotNull ByteBuffer payload);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.shm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.pkhsolutions.irongrim.api.*;
+import net.pkhsolutions.irongrim.remoting.MessageTransportException;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client side of the shared-memory transport, see {@link SharedMemoryMessageServer}. The broker writes its messages
+ * to the request ring of the server and creates a reply ring of its own, which is polled by a dedicated thread. Both
+ * rings are memory-mapped files, so a round trip does not involve any system calls as long as the polling threads are
+ * spinning, which makes round trips of a few microseconds possible.
+ * <p>
+ * The current {@link Context} is sent along with every message. If the context has a deadline, the broker waits for
+ * the reply until the deadline and then throws a {@link DeadlineExceededException}. Otherwise, it waits for the
+ * {@link #setTimeout(Duration) timeout} and then throws a {@link MessageTransportException}. Exceptions thrown on the
+ * server side are rethrown as they are.
+ * </p>
+ * <p>
+ * {@link #send(Message)} busy-spins while waiting for the reply before it starts to yield and park, trading CPU time
+ * for latency. Use {@link #sendFuture(Message)} to avoid this.
+ * </p>
+ * <p>
+ * Buffer-backed {@link Attachment}s of the message are streamed to the server in chunks before the message itself, so
+ * attachments may be much larger than the rings. File-backed attachments are passed as references to their files.
+ * </p>
+ */
+@SuppressWarnings("unused")
+public class SharedMemoryMessageBroker implements FutureMessageBroker, AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedMemoryMessageBroker.class);
+    private static final long EXPIRY_CHECK_INTERVAL_NANOS = 1_000_000;
+
+    private final String clientId;
+    private final MappedRingBuffer requestRing;
+    private final MappedRingBuffer replyRing;
+    private final Map<Long, PendingReply> pendingReplies = new ConcurrentHashMap<>();
+    private final AttachmentChunks.Assembler attachmentAssembler;
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+    private final Thread replyReaderThread;
+    private volatile Duration timeout = Duration.ofSeconds(30);
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new {@code SharedMemoryMessageBroker} with a reply ring of 1 MiB.
+     *
+     * @param directory the directory in which the server has created its request ring (never {@code null}).
+     * @throws IOException if the request ring could not be opened or the reply ring could not be created.
+     */
+    public SharedMemoryMessageBroker(@NotNull Path directory) throws IOException {
+        this(directory, 1 << 20);
+    }
+
+    /**
+     * Creates a new {@code SharedMemoryMessageBroker}.
+     *
+     * @param directory the directory in which the server has created its request ring (never {@code null}).
+     * @param replyRingCapacity the capacity of the reply ring in bytes, must be a power of two.
+     * @throws IOException if the request ring could not be opened or the reply ring could not be created.
+     */
+    public SharedMemoryMessageBroker(@NotNull Path directory, int replyRingCapacity) throws IOException {
+        Objects.requireNonNull(directory);
+        clientId = UUID.randomUUID().toString();
+        requestRing = MappedRingBuffer.open(directory.resolve(SharedMemoryMessageServer.REQUEST_RING_FILE_NAME));
+        replyRing = MappedRingBuffer.create(SharedMemoryMessageServer.getReplyRingFile(directory, clientId),
+            replyRingCapacity);
+        attachmentAssembler = new AttachmentChunks.Assembler(directory);
+        replyReaderThread = new Thread(this::readReplies, "irongrim-shm-client-" + clientId);
+        replyReaderThread.setDaemon(true);
+        replyReaderThread.start();
+    }
+
+    /**
+     * Gets the ID of this client, which is also part of the name of its reply ring file.
+     */
+    @NotNull
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Sets how long to wait for replies to messages whose context has no deadline. Default is 30 seconds.
+     *
+     * @param timeout the timeout (never {@code null}).
+     */
+    public void setTimeout(@NotNull Duration timeout) {
+        this.timeout = Objects.requireNonNull(timeout);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <MESSAGE extends Message<REPLY>, REPLY> REPLY send(@NotNull MESSAGE message) {
+        final CompletableFuture<REPLY> future = sendFuture(message);
+        final BackoffIdleStrategy idleStrategy = BackoffIdleStrategy.createDefault();
+        while (!future.isDone()) {
+            idleStrategy.idle();
+        }
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            } else if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw new MessageTransportException("The server failed to handle " + message, ex.getCause());
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public @NotNull <MESSAGE extends Message<REPLY>, REPLY> CompletableFuture<REPLY> sendFuture(
+        @NotNull MESSAGE message) {
+        Objects.requireNonNull(message);
+        if (!running) {
+            throw new IllegalStateException("The broker has been closed");
+        }
+        final Context context = ContextHolder.getOptionalContext().orElse(null);
+        final Duration remainingTime = context == null ? null : context.getRemainingTime().orElse(null);
+        final long correlationId = nextCorrelationId.incrementAndGet();
+        final List<Attachment> attachments = new ArrayList<>();
+        final byte[] bytes = Envelopes.serialize(new Envelopes.Request(correlationId, clientId, message, context),
+            clientId, correlationId, attachments);
+        if (bytes.length > requestRing.getMaxRecordLength()) {
+            throw new MessageTransportException("The message is " + bytes.length + " bytes long, the maximum is "
+                + requestRing.getMaxRecordLength());
+        }
+        final PendingReply pendingReply = new PendingReply(message.getClass(), remainingTime != null,
+            System.nanoTime() + (remainingTime != null ? remainingTime : timeout).toNanos());
+        pendingReplies.put(correlationId, pendingReply);
+        try {
+            AttachmentChunks.write(requestRing, clientId, correlationId, attachments,
+                () -> pendingReply.isExpired(System.nanoTime()));
+        } catch (MessageTransportException ex) {
+            pendingReplies.remove(correlationId);
+            throw ex;
+        }
+        final BackoffIdleStrategy idleStrategy = BackoffIdleStrategy.createDefault();
+        while (!requestRing.write(Envelopes.REQUEST_TYPE, bytes, 0, bytes.length)) {
+            if (pendingReply.isExpired(System.nanoTime())) {
+                pendingReplies.remove(correlationId);
+                throw new MessageTransportException("The request ring is full");
+            }
+            idleStrategy.idle();
+        }
+        return (CompletableFuture<REPLY>) pendingReply.future;
+    }
+
+    /**
+     * Stops reading replies and deletes the reply ring. Messages that are still waiting for replies fail with a
+     * {@link MessageTransportException}.
+     */
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            replyReaderThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        pendingReplies.values().forEach(pendingReply -> pendingReply.future
+            .completeExceptionally(new MessageTransportException("The broker was closed")));
+        pendingReplies.clear();
+        try {
+            Files.deleteIfExists(replyRing.getFile());
+        } catch (IOException ex) {
+            LOGGER.warn("Could not delete reply ring {}", replyRing.getFile(), ex);
+        }
+    }
+
+    private void readReplies() {
+        final BackoffIdleStrategy idleStrategy = BackoffIdleStrategy.createDefault();
+        long nextExpiryCheck = System.nanoTime();
+        while (running) {
+            final int replies = replyRing.read(this::onRecord, 64);
+            final long now = System.nanoTime();
+            if (now - nextExpiryCheck >= 0) {
+                expirePendingReplies(now);
+                attachmentAssembler.discardStaleAttachments(now);
+                nextExpiryCheck = now + EXPIRY_CHECK_INTERVAL_NANOS;
+            }
+            idleStrategy.idle(replies);
+        }
+    }
+
+    private void onRecord(int type, ByteBuffer payload) {
+        if (type == Envelopes.ATTACHMENT_CHUNK_TYPE) {
+            attachmentAssembler.onChunk(payload);
+            return;
+        }
+        if (type != Envelopes.REPLY_TYPE) {
+            LOGGER.warn("Ignoring record of unknown type {} in the reply ring", type);
+            return;
+        }
+        final Envelopes.Reply reply;
+        try {
+            reply = (Envelopes.Reply) Envelopes.deserialize(payload, attachmentAssembler);
+        } catch (MessageTransportException | ClassCastException ex) {
+            LOGGER.error("Ignoring reply that could not be deserialized", ex);
+            return;
+        }
+        final PendingReply pendingReply = pendingReplies.remove(reply.correlationId);
+        if (pendingReply == null) {
+            LOGGER.debug("Ignoring {}, nobody is waiting for it anymore", reply);
+        } else if (reply.error != null) {
+            pendingReply.future.completeExceptionally(reply.error);
+        } else {
+            pendingReply.future.complete(reply.reply);
+        }
+    }
+
+    private void expirePendingReplies(long now) {
+        for (Iterator<PendingReply> it = pendingReplies.values().iterator(); it.hasNext();) {
+            final PendingReply pendingReply = it.next();
+            if (pendingReply.isExpired(now)) {
+                it.remove();
+                pendingReply.future.completeExceptionally(pendingReply.hasDeadline
+                    ? new DeadlineExceededException(pendingReply.messageClass)
+                    : new MessageTransportException("No reply received within " + timeout));
+            }
+        }
+    }
+
+    private static final class PendingReply {
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        final Class<? extends Message> messageClass;
+        final boolean hasDeadline;
+        final long deadlineNanos;
+
+        PendingReply(Class<? extends Message> messageClass, boolean hasDeadline, long deadlineNanos) {
+            this.messageClass = messageClass;
+            this.hasDeadline = hasDeadline;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        boolean isExpired(long now) {
+            return now - deadlineNanos >= 0;
+        }
+    }
+}
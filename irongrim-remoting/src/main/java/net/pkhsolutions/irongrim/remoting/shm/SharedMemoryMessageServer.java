@@ -0,0 +1,344 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.shm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
+
+import net.pkhsolutions.irongrim.api.Attachment;
+import net.pkhsolutions.irongrim.api.ContextHolder;
+import net.pkhsolutions.irongrim.api.MessageBroker;
+import net.pkhsolutions.irongrim.remoting.MessageTransportException;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server side of the shared-memory transport, which lets processes on the same host send messages to each other
+ * without going through the network stack. The server creates a request ring ({@link MappedRingBuffer}) in a
+ * directory that all clients can access (preferably on a RAM backed file system such as {@code /dev/shm}), polls it
+ * and hands the messages over to a local {@link MessageBroker}. The replies are written to the reply ring of the
+ * client that sent the message.
+ * <p>
+ * The {@link net.pkhsolutions.irongrim.api.Context Context} of the client is set as the current context while the
+ * message is being handled. Exceptions thrown by the broker are sent back to the client and rethrown there.
+ * </p>
+ * <p>
+ * {@link net.pkhsolutions.irongrim.api.Attachment Attachments} of messages and replies are streamed through the rings
+ * in chunks, and incoming attachments are stored in memory-mapped temporary files in the same directory as the rings.
+ * File-backed attachments are passed as references to their files.
+ * </p>
+ * <p>
+ * The reply rings of the clients are opened on demand and kept open while they are in use. A reply ring is closed
+ * when it has not been used for the {@link #setReplyRingIdleTimeout(Duration) idle timeout} or when its file has been
+ * deleted, which is what a client does when it is closed. Otherwise, the mapping would keep the memory of the deleted
+ * file alive for as long as the server runs.
+ * </p>
+ *
+ * @see SharedMemoryMessageBroker
+ */
+@SuppressWarnings("unused")
+public class SharedMemoryMessageServer implements AutoCloseable {
+
+    static final String REQUEST_RING_FILE_NAME = "requests.ring";
+    static final String SERVER_SENDER_ID = "server";
+    private static final Pattern CLIENT_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedMemoryMessageServer.class);
+    private static final long REPLY_RING_SWEEP_INTERVAL_NANOS = Duration.ofSeconds(1).toNanos();
+
+    private final Path directory;
+    private final MessageBroker messageBroker;
+    private final Executor executor;
+    private final Map<String, ReplyRing> replyRings = new ConcurrentHashMap<>();
+    private final AttachmentChunks.Assembler attachmentAssembler;
+    private int requestRingCapacity = 1 << 22;
+    private Duration replyTimeout = Duration.ofSeconds(5);
+    private volatile long replyRingIdleTimeoutNanos = Duration.ofSeconds(60).toNanos();
+    private volatile boolean running;
+    private Thread pollerThread;
+    private MappedRingBuffer requestRing;
+
+    /**
+     * Creates a new {@code SharedMemoryMessageServer} that handles the messages in the thread that polls the request
+     * ring. This gives the lowest latency, but only one message is handled at a time.
+     *
+     * @param directory the directory to create the request ring in (never {@code null}).
+     * @param messageBroker the broker to hand the messages over to (never {@code null}).
+     */
+    public SharedMemoryMessageServer(@NotNull Path directory, @NotNull MessageBroker messageBroker) {
+        this(directory, messageBroker, Runnable::run);
+    }
+
+    /**
+     * Creates a new {@code SharedMemoryMessageServer}.
+     *
+     * @param directory the directory to create the request ring in (never {@code null}).
+     * @param messageBroker the broker to hand the messages over to (never {@code null}).
+     * @param executor the executor to handle the messages with (never {@code null}).
+     */
+    public SharedMemoryMessageServer(@NotNull Path directory, @NotNull MessageBroker messageBroker,
+        @NotNull Executor executor) {
+        this.directory = Objects.requireNonNull(directory);
+        this.messageBroker = Objects.requireNonNull(messageBroker);
+        this.executor = Objects.requireNonNull(executor);
+        this.attachmentAssembler = new AttachmentChunks.Assembler(directory);
+    }
+
+    /**
+     * Sets the capacity of the request ring in bytes. This must be a power of two and cannot be changed once the server
+     * has been started. Default is 4 MiB.
+     *
+     * @param requestRingCapacity the capacity.
+     * @return this server, to allow for method chaining.
+     */
+    @NotNull
+    public synchronized SharedMemoryMessageServer setRequestRingCapacity(int requestRingCapacity) {
+        if (running) {
+            throw new IllegalStateException("The server has already been started");
+        }
+        this.requestRingCapacity = requestRingCapacity;
+        return this;
+    }
+
+    /**
+     * Sets how long to wait for space in the reply ring of a client before the reply is dropped. Default is 5 seconds.
+     *
+     * @param replyTimeout the timeout (never {@code null}).
+     * @return this server, to allow for method chaining.
+     */
+    @NotNull
+    public SharedMemoryMessageServer setReplyTimeout(@NotNull Duration replyTimeout) {
+        this.replyTimeout = Objects.requireNonNull(replyTimeout);
+        return this;
+    }
+
+    /**
+     * Sets how long the reply ring of a client is kept open after the last reply has been written to it. A reply ring
+     * that has been closed is opened again when the next reply is written. Default is 60 seconds.
+     *
+     * @param replyRingIdleTimeout the timeout (never {@code null}).
+     * @return this server, to allow for method chaining.
+     */
+    @NotNull
+    public SharedMemoryMessageServer setReplyRingIdleTimeout(@NotNull Duration replyRingIdleTimeout) {
+        this.replyRingIdleTimeoutNanos = replyRingIdleTimeout.toNanos();
+        return this;
+    }
+
+    /**
+     * Gets the number of reply rings that are currently open.
+     */
+    public int getOpenReplyRingCount() {
+        return replyRings.size();
+    }
+
+    /**
+     * Creates the request ring and starts polling it.
+     *
+     * @throws IOException if the request ring could not be created.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("The server has already been started");
+        }
+        requestRing = MappedRingBuffer.create(directory.resolve(REQUEST_RING_FILE_NAME), requestRingCapacity);
+        running = true;
+        pollerThread = new Thread(this::poll, "irongrim-shm-server");
+        pollerThread.setDaemon(true);
+        pollerThread.start();
+        LOGGER.info("Shared-memory message server started in {}", directory);
+    }
+
+    /**
+     * Stops polling the request ring and closes all reply rings. Messages that are being handled by the executor will
+     * still get their replies.
+     */
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            pollerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        replyRings.clear();
+        LOGGER.info("Shared-memory message server in {} stopped", directory);
+    }
+
+    private void poll() {
+        final BackoffIdleStrategy idleStrategy = BackoffIdleStrategy.createDefault();
+        long nextSweep = System.nanoTime() + REPLY_RING_SWEEP_INTERVAL_NANOS;
+        while (running) {
+            idleStrategy.idle(requestRing.read(this::onRecord, 64));
+            final long now = System.nanoTime();
+            if (now - nextSweep >= 0) {
+                closeUnusedReplyRings(now);
+                attachmentAssembler.discardStaleAttachments(now);
+                nextSweep = now + REPLY_RING_SWEEP_INTERVAL_NANOS;
+            }
+        }
+    }
+
+    private void closeUnusedReplyRings(long now) {
+        replyRings.forEach((clientId, replyRing) -> {
+            if (now - replyRing.lastUsed >= replyRingIdleTimeoutNanos) {
+                LOGGER.debug("Closing the reply ring of idle client {}", clientId);
+                replyRings.remove(clientId, replyRing);
+            } else if (Files.notExists(replyRing.ring.getFile())) {
+                LOGGER.debug("Closing the reply ring of client {}, which has been deleted", clientId);
+                replyRings.remove(clientId, replyRing);
+            }
+        });
+    }
+
+    private void onRecord(int type, ByteBuffer payload) {
+        if (type == Envelopes.ATTACHMENT_CHUNK_TYPE) {
+            attachmentAssembler.onChunk(payload);
+            return;
+        }
+        if (type != Envelopes.REQUEST_TYPE) {
+            LOGGER.warn("Ignoring record of unknown type {} in the request ring", type);
+            return;
+        }
+        final Envelopes.Request request;
+        try {
+            request = (Envelopes.Request) Envelopes.deserialize(payload, attachmentAssembler);
+        } catch (MessageTransportException | ClassCastException ex) {
+            LOGGER.error("Ignoring request that could not be deserialized", ex);
+            return;
+        }
+        if (!CLIENT_ID_PATTERN.matcher(request.clientId).matches()) {
+            LOGGER.error("Ignoring request with invalid client ID {}", request.clientId);
+            return;
+        }
+        try {
+            executor.execute(() -> handle(request));
+        } catch (RejectedExecutionException ex) {
+            writeReply(request.clientId, new Envelopes.Reply(request.correlationId, null, ex));
+        }
+    }
+
+    private void handle(Envelopes.Request request) {
+        LOGGER.trace("Handling {}", request);
+        Envelopes.Reply reply;
+        ContextHolder.setContext(request.context);
+        try {
+            reply = new Envelopes.Reply(request.correlationId, messageBroker.send(request.message), null);
+        } catch (Throwable ex) {
+            // Errors are sent back as well, since the client would otherwise wait for the reply until it times out
+            reply = new Envelopes.Reply(request.correlationId, null, ex);
+        } finally {
+            ContextHolder.resetContext();
+        }
+        writeReply(request.clientId, reply);
+    }
+
+    private void writeReply(String clientId, Envelopes.Reply reply) {
+        final MappedRingBuffer replyRing;
+        try {
+            replyRing = getReplyRing(clientId);
+        } catch (NoSuchFileException ex) {
+            LOGGER.debug("Client {} has been closed, dropping {}", clientId, reply);
+            return;
+        } catch (IOException ex) {
+            LOGGER.error("Could not open the reply ring of client {}, dropping {}", clientId, reply, ex);
+            return;
+        }
+        final long deadline = System.nanoTime() + replyTimeout.toNanos();
+        byte[] bytes;
+        try {
+            final List<Attachment> attachments = new ArrayList<>();
+            bytes = Envelopes.serialize(reply, SERVER_SENDER_ID, reply.correlationId, attachments);
+            if (bytes.length > replyRing.getMaxRecordLength()) {
+                throw new MessageTransportException("The reply is " + bytes.length + " bytes long, the maximum is "
+                    + replyRing.getMaxRecordLength());
+            }
+            AttachmentChunks.write(replyRing, SERVER_SENDER_ID, reply.correlationId, attachments,
+                () -> System.nanoTime() - deadline > 0);
+        } catch (MessageTransportException ex) {
+            LOGGER.warn("Could not send {} to client {}, sending the error instead", reply, clientId, ex);
+            bytes = Envelopes.serialize(new Envelopes.Reply(reply.correlationId, null,
+                new MessageTransportException("Could not send the reply: " + ex.getMessage())));
+        }
+        final BackoffIdleStrategy idleStrategy = BackoffIdleStrategy.createDefault();
+        while (!replyRing.write(Envelopes.REPLY_TYPE, bytes, 0, bytes.length)) {
+            if (System.nanoTime() - deadline > 0) {
+                if (Files.notExists(replyRing.getFile())) {
+                    LOGGER.debug("Client {} has been closed, dropping {}", clientId, reply);
+                    closeReplyRing(clientId, replyRing);
+                } else {
+                    LOGGER.warn("The reply ring of client {} is full, dropping {}", clientId, reply);
+                }
+                return;
+            }
+            idleStrategy.idle();
+        }
+    }
+
+    private MappedRingBuffer getReplyRing(String clientId) throws IOException {
+        final ReplyRing replyRing = replyRings.get(clientId);
+        if (replyRing != null) {
+            replyRing.lastUsed = System.nanoTime();
+            return replyRing.ring;
+        }
+        // Opening the same ring twice in a race is harmless, both mappings refer to the same file
+        final ReplyRing newReplyRing = new ReplyRing(MappedRingBuffer.open(getReplyRingFile(directory, clientId)));
+        if (!running) {
+            // Replies of messages that were still being handled when the server was closed are not cached
+            return newReplyRing.ring;
+        }
+        final ReplyRing existing = replyRings.putIfAbsent(clientId, newReplyRing);
+        return existing != null ? existing.ring : newReplyRing.ring;
+    }
+
+    private void closeReplyRing(String clientId, MappedRingBuffer ring) {
+        replyRings.computeIfPresent(clientId, (id, replyRing) -> replyRing.ring == ring ? null : replyRing);
+    }
+
+    static Path getReplyRingFile(Path directory, String clientId) {
+        return directory.resolve("replies-" + clientId + ".ring");
+    }
+
+    /**
+     * An open reply ring and the time it was last used. Java 8 cannot unmap files explicitly, so closing a reply ring
+     * means forgetting it and letting the garbage collector release the mapping.
+     */
+    private static class ReplyRing {
+
+        private final MappedRingBuffer ring;
+        private volatile long lastUsed = System.nanoTime();
+
+        ReplyRing(MappedRingBuffer ring) {
+            this.ring = ring;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.shm;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import sun.misc.Unsafe;
+
+/**
+ * Gives access to {@link Unsafe}, which is needed for atomic and ordered operations on memory that is shared between
+ * processes. {@link java.nio.MappedByteBuffer} alone does not provide any memory ordering guarantees.
+ * <p>
+ * This class depends on JDK internals: besides {@code sun.misc.Unsafe} itself, the native address of a direct buffer
+ * is read from the private {@code java.nio.Buffer.address} field. Both exist in Java 8, which is what this module
+ * targets, but newer JDKs restrict access to them, so this class is the single place to change when porting. The
+ * build passes {@code -XDignore.symbol.file} to javac so that the use of {@code sun.misc.Unsafe} does not produce a
+ * warning on every build.
+ * </p>
+ */
+final class UnsafeAccess {
+
+    static final Unsafe UNSAFE;
+    static final long BYTE_ARRAY_OFFSET;
+    private static final long BUFFER_ADDRESS_OFFSET;
+
+    static {
+        try {
+            final Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+            BYTE_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(byte[].class);
+            BUFFER_ADDRESS_OFFSET = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private UnsafeAccess() {
+    }
+
+    /**
+     * Gets the native address of the first byte of the specified direct buffer.
+     */
+    static long addressOf(ByteBuffer directBuffer) {
+        if (!directBuffer.isDirect()) {
+            throw new IllegalArgumentException("The buffer must be direct");
+        }
+        return UNSAFE.getLong(directBuffer, BUFFER_ADDRESS_OFFSET);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.cluster;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.pkhsolutions.irongrim.api.*;
+import net.pkhsolutions.irongrim.remoting.MessageTransportException;
+import net.pkhsolutions.irongrim.remoting.shm.SharedMemoryMessageBroker;
+import net.pkhsolutions.irongrim.remoting.shm.SharedMemoryMessageServer;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for {@link ClusterMessageBroker}.
+ */
+public class ClusterMessageBrokerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<AutoCloseable> closeables = new ArrayList<>();
+    private ClusterMessageBroker clusterMessageBroker;
+
+    @Before
+    public void setUp() {
+        clusterMessageBroker = new ClusterMessageBroker();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (AutoCloseable closeable : closeables) {
+            closeable.close();
+        }
+        ContextHolder.resetContext();
+    }
+
+    @Test
+    public void send_sameRoutingKey_alwaysHandledBySameSharedMemoryEndpoint() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            final String nodeId = "node-" + i;
+            final Path directory = temporaryFolder.newFolder(nodeId).toPath();
+            final SharedMemoryMessageServer server = new SharedMemoryMessageServer(directory, new NodeBroker(nodeId))
+                .setRequestRingCapacity(1 << 16);
+            server.start();
+            closeables.add(server);
+            final SharedMemoryMessageBroker endpoint = new SharedMemoryMessageBroker(directory, 1 << 16);
+            closeables.add(0, endpoint);
+            clusterMessageBroker.addNode(nodeId, endpoint);
+        }
+
+        final Set<String> handlingNodes = new HashSet<>();
+        for (int i = 0; i < 50; ++i) {
+            final String key = "customer-" + i;
+            final String node = clusterMessageBroker.send(new WhoAmIQuery(key));
+            assertEquals(node, clusterMessageBroker.send(new WhoAmIQuery(key)));
+            assertEquals(clusterMessageBroker.getNode(key).get().getId(), node);
+            handlingNodes.add(node);
+        }
+        assertEquals(3, handlingNodes.size());
+    }
+
+    @Test
+    public void send_routingKeyInContext_contextKeyIsUsedWhenMessageHasNone() {
+        givenNodes(5);
+        ContextHolder.setContext(new Context().setAttribute(ClusterMessageBroker.ROUTING_KEY_ATTRIBUTE, "customer-7"));
+
+        assertEquals(clusterMessageBroker.getNode("customer-7").get().getId(),
+            clusterMessageBroker.send(new WhoAmIQuery(null)));
+    }
+
+    @Test
+    public void send_nodeIsDown_messageFailsOverAndNodeBecomesUnavailable() {
+        givenNodes(3);
+        clusterMessageBroker.setFailureThreshold(2);
+        clusterMessageBroker.setRetryInterval(Duration.ofMinutes(1));
+        final ClusterNode owner = clusterMessageBroker.getNode("customer-1").get();
+        final NodeBroker ownerBroker = (NodeBroker) owner.getBroker();
+        ownerBroker.down = true;
+
+        final String firstFailover = clusterMessageBroker.send(new WhoAmIQuery("customer-1"));
+        assertNotEquals(owner.getId(), firstFailover);
+        assertTrue(owner.isAvailable());
+        assertEquals(firstFailover, clusterMessageBroker.send(new WhoAmIQuery("customer-1")));
+        assertFalse(owner.isAvailable());
+
+        // Unavailable nodes are skipped without trying them
+        assertEquals(firstFailover, clusterMessageBroker.send(new WhoAmIQuery("customer-1")));
+        assertEquals(2, ownerBroker.attempts.get());
+    }
+
+    @Test
+    public void send_retryIntervalHasPassedAndProbeIsInProgress_otherMessagesAreNotSentToNode() throws Exception {
+        givenNodes(3);
+        clusterMessageBroker.setFailureThreshold(1);
+        clusterMessageBroker.setRetryInterval(Duration.ofMillis(500));
+        final ClusterNode owner = clusterMessageBroker.getNode("customer-1").get();
+        final NodeBroker ownerBroker = (NodeBroker) owner.getBroker();
+        ownerBroker.down = true;
+        final String failover = clusterMessageBroker.send(new WhoAmIQuery("customer-1"));
+        Thread.sleep(550);
+        ownerBroker.blocker = new CountDownLatch(1);
+
+        final ExecutorService prober = Executors.newSingleThreadExecutor();
+        try {
+            final Future<String> probe = prober.submit(() -> clusterMessageBroker.send(new WhoAmIQuery("customer-1")));
+            while (ownerBroker.attempts.get() < 2) {
+                Thread.sleep(1);
+            }
+            for (int i = 0; i < 10; ++i) {
+                assertEquals(failover, clusterMessageBroker.send(new WhoAmIQuery("customer-1")));
+            }
+            ownerBroker.blocker.countDown();
+            assertEquals(failover, probe.get(5, TimeUnit.SECONDS));
+        } finally {
+            ownerBroker.blocker.countDown();
+            prober.shutdownNow();
+        }
+        assertEquals(2, ownerBroker.attempts.get());
+    }
+
+    @Test
+    public void send_probeSucceeds_nodeIsAvailableAgain() throws Exception {
+        givenNodes(3);
+        clusterMessageBroker.setFailureThreshold(1);
+        clusterMessageBroker.setRetryInterval(Duration.ofMillis(50));
+        final ClusterNode owner = clusterMessageBroker.getNode("customer-1").get();
+        final NodeBroker ownerBroker = (NodeBroker) owner.getBroker();
+        ownerBroker.down = true;
+        clusterMessageBroker.send(new WhoAmIQuery("customer-1"));
+        Thread.sleep(100);
+        ownerBroker.down = false;
+
+        assertEquals(owner.getId(), clusterMessageBroker.send(new WhoAmIQuery("customer-1")));
+        assertEquals(owner.getId(), clusterMessageBroker.send(new WhoAmIQuery("customer-1")));
+        assertTrue(owner.isAvailable());
+    }
+
+    @Test
+    public void send_handlerThrowsException_exceptionIsRethrownWithoutFailover() {
+        final List<NodeBroker> nodes = givenNodes(3);
+        try {
+            clusterMessageBroker.send(new WhoAmIQuery("fail"));
+            fail("No exception thrown");
+        } catch (IllegalArgumentException expected) {
+            // OK
+        }
+        assertEquals(1, nodes.stream().mapToInt(node -> node.attempts.get()).sum());
+        assertEquals(0, clusterMessageBroker.getNode("fail").get().getConsecutiveFailures());
+    }
+
+    @Test
+    public void send_allNodesAreDown_transportExceptionThrownAfterMaxFailovers() {
+        final List<NodeBroker> nodes = givenNodes(5);
+        nodes.forEach(node -> node.down = true);
+        clusterMessageBroker.setMaxFailovers(2);
+
+        try {
+            clusterMessageBroker.send(new WhoAmIQuery("customer-1"));
+            fail("No exception thrown");
+        } catch (MessageTransportException ex) {
+            assertTrue(ex.getCause() instanceof MessageTransportException);
+        }
+        assertEquals(3, nodes.stream().mapToInt(node -> node.attempts.get()).sum());
+    }
+
+    @Test
+    public void setNodes_nodeKeepsIdAndBroker_healthIsKept() {
+        final List<NodeBroker> nodes = givenNodes(2);
+        nodes.get(0).down = true;
+        clusterMessageBroker.setMaxFailovers(0);
+        clusterMessageBroker.setFailureThreshold(1);
+        try {
+            clusterMessageBroker.send(new WhoAmIQuery(findKeyOwnedBy("node-0")));
+            fail("No exception thrown");
+        } catch (MessageTransportException expected) {
+            // OK
+        }
+
+        final Map<String, MessageBroker> brokers = new LinkedHashMap<>();
+        brokers.put("node-0", nodes.get(0));
+        brokers.put("node-1", nodes.get(1));
+        brokers.put("node-2", new NodeBroker("node-2"));
+        clusterMessageBroker.setNodes(brokers);
+
+        assertEquals(3, clusterMessageBroker.getNodes().size());
+        assertFalse(clusterMessageBroker.getNodes().get(0).isAvailable());
+        assertTrue(clusterMessageBroker.getNodes().get(2).isAvailable());
+    }
+
+    private List<NodeBroker> givenNodes(int count) {
+        final List<NodeBroker> nodes = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            final NodeBroker node = new NodeBroker("node-" + i);
+            clusterMessageBroker.addNode(node.nodeId, node);
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    private String findKeyOwnedBy(String nodeId) {
+        for (int i = 0;; ++i) {
+            final String key = "customer-" + i;
+            if (clusterMessageBroker.getNode(key).get().getId().equals(nodeId)) {
+                return key;
+            }
+        }
+    }
+
+    static class WhoAmIQuery implements Query<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        final String routingKey;
+
+        WhoAmIQuery(String routingKey) {
+            this.routingKey = routingKey;
+        }
+
+        @Override
+        public @NotNull Optional<String> getRoutingKey() {
+            return Optional.ofNullable(routingKey);
+        }
+    }
+
+    /**
+     * Broker that replies to {@link WhoAmIQuery}s with the ID of the node, or fails if the node is down.
+     */
+    static class NodeBroker implements MessageBroker {
+
+        final String nodeId;
+        final AtomicInteger attempts = new AtomicInteger();
+        volatile boolean down;
+        volatile CountDownLatch blocker;
+
+        NodeBroker(String nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <MESSAGE extends Message<REPLY>, REPLY> REPLY send(@NotNull MESSAGE message) {
+            attempts.incrementAndGet();
+            final CountDownLatch currentBlocker = blocker;
+            if (currentBlocker != null) {
+                try {
+                    currentBlocker.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (down) {
+                throw new MessageTransportException("Node " + nodeId + " is down");
+            }
+            if ("fail".equals(((WhoAmIQuery) message).routingKey)) {
+                throw new IllegalArgumentException("failure");
+            }
+            return (REPLY) nodeId;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.cluster;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import net.pkhsolutions.irongrim.api.Message;
+import net.pkhsolutions.irongrim.api.MessageBroker;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ConsistentHashRing}.
+ */
+public class ConsistentHashRingTest {
+
+    private static final int KEY_COUNT = 10_000;
+
+    @Test
+    public void walk_nodesGivenInDifferentOrder_keysHaveSameOwners() {
+        final List<ClusterNode> nodes = createNodes(5);
+        final List<ClusterNode> reversed = new ArrayList<>(nodes);
+        Collections.reverse(reversed);
+
+        assertEquals(getOwners(new ConsistentHashRing(nodes, 160)),
+            getOwners(new ConsistentHashRing(reversed, 160)));
+    }
+
+    @Test
+    public void walk_manyKeys_keysAreSpreadEvenlyOverNodes() {
+        final Map<String, String> owners = getOwners(new ConsistentHashRing(createNodes(5), 160));
+
+        final Map<String, Integer> keysPerNode = new HashMap<>();
+        owners.values().forEach(node -> keysPerNode.merge(node, 1, Integer::sum));
+        assertEquals(5, keysPerNode.size());
+        for (int count : keysPerNode.values()) {
+            assertTrue("Uneven spread: " + keysPerNode, count > KEY_COUNT / 5 * 0.7 && count < KEY_COUNT / 5 * 1.3);
+        }
+    }
+
+    @Test
+    public void walk_nodeAdded_onlyKeysTakenOverByNewNodeAreRemapped() {
+        final List<ClusterNode> nodes = createNodes(5);
+        final Map<String, String> before = getOwners(new ConsistentHashRing(nodes.subList(0, 4), 160));
+        final Map<String, String> after = getOwners(new ConsistentHashRing(nodes, 160));
+
+        int remapped = 0;
+        for (String key : before.keySet()) {
+            if (!before.get(key).equals(after.get(key))) {
+                assertEquals("node-4", after.get(key));
+                ++remapped;
+            }
+        }
+        assertTrue("Remapped " + remapped, remapped > KEY_COUNT / 5 * 0.7 && remapped < KEY_COUNT / 5 * 1.3);
+    }
+
+    @Test
+    public void walk_nodeRemoved_onlyKeysOfRemovedNodeAreRemapped() {
+        final List<ClusterNode> nodes = createNodes(5);
+        final List<ClusterNode> remaining = new ArrayList<>(nodes);
+        remaining.remove(2);
+        final Map<String, String> before = getOwners(new ConsistentHashRing(nodes, 160));
+        final Map<String, String> after = getOwners(new ConsistentHashRing(remaining, 160));
+
+        final Set<String> newOwners = new HashSet<>();
+        for (String key : before.keySet()) {
+            if (before.get(key).equals("node-2")) {
+                newOwners.add(after.get(key));
+            } else {
+                assertEquals(before.get(key), after.get(key));
+            }
+        }
+        // The virtual nodes make all remaining nodes share the keys of the removed node
+        assertEquals(4, newOwners.size());
+    }
+
+    @Test
+    public void walk_iteratedToEnd_everyNodeIsReturnedOnceStartingWithOwner() {
+        final ConsistentHashRing ring = new ConsistentHashRing(createNodes(5), 160);
+        final Iterator<ClusterNode> walk = ring.walk(ConsistentHashRing.hash("customer-42"));
+
+        final List<String> visited = new ArrayList<>();
+        walk.forEachRemaining(node -> visited.add(node.getId()));
+
+        assertEquals(5, new HashSet<>(visited).size());
+        assertEquals(5, visited.size());
+        assertEquals(ring.walk(ConsistentHashRing.hash("customer-42")).next().getId(), visited.get(0));
+    }
+
+    private static Map<String, String> getOwners(ConsistentHashRing ring) {
+        final Map<String, String> owners = new HashMap<>();
+        for (int i = 0; i < KEY_COUNT; ++i) {
+            final String key = "customer-" + i;
+            owners.put(key, ring.walk(ConsistentHashRing.hash(key)).next().getId());
+        }
+        return owners;
+    }
+
+    private static List<ClusterNode> createNodes(int count) {
+        final List<ClusterNode> nodes = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            nodes.add(new ClusterNode("node-" + i, new UnusedBroker()));
+        }
+        return nodes;
+    }
+
+    private static class UnusedBroker implements MessageBroker {
+
+        @Override
+        public <MESSAGE extends Message<REPLY>, REPLY> REPLY send(@NotNull MESSAGE message) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
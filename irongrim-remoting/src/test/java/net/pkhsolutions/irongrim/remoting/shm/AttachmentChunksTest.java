@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.shm;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for {@link AttachmentChunks}.
+ */
+public class AttachmentChunksTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void setUp() {
+        directory = temporaryFolder.getRoot().toPath();
+    }
+
+    @Test
+    public void discardStaleAttachments_partialAttachmentOlderThanMaxAge_attachmentIsDiscarded() {
+        final AttachmentChunks.Assembler assembler = new AttachmentChunks.Assembler(directory, Duration.ofMillis(50));
+        assembler.onChunk(chunk("sender", 1, 0, 16, 0, new byte[8]));
+        assertEquals(1, assembler.getIncomingCount());
+
+        assembler.discardStaleAttachments(System.nanoTime());
+        assertEquals(1, assembler.getIncomingCount());
+
+        assembler.discardStaleAttachments(System.nanoTime() + Duration.ofMillis(60).toNanos());
+        assertEquals(0, assembler.getIncomingCount());
+    }
+
+    private static ByteBuffer chunk(String senderId, long correlationId, int index, long size, long offset,
+        byte[] data) {
+        final byte[] header = AttachmentChunks.encodeHeader(senderId, correlationId, index, size, offset);
+        final ByteBuffer chunk = ByteBuffer.allocate(header.length + data.length);
+        chunk.put(header).put(data).flip();
+        return chunk;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.shm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for {@link MappedRingBuffer}.
+ */
+public class MappedRingBufferTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = temporaryFolder.getRoot().toPath().resolve("test.ring");
+    }
+
+    @Test
+    public void read_recordWrittenThroughAnotherMapping_recordIsRead() throws IOException {
+        final MappedRingBuffer consumer = MappedRingBuffer.create(file, 1024);
+        final MappedRingBuffer producer = MappedRingBuffer.open(file);
+        assertTrue(producer.write(7, bytes("hello"), 0, 5));
+
+        final List<String> records = new ArrayList<>();
+        assertEquals(1, consumer.read((type, payload) -> records.add(type + ":" + string(payload)), 10));
+
+        assertEquals("7:hello", records.get(0));
+        assertEquals(0, consumer.getSize());
+        assertEquals(0, consumer.read((type, payload) -> fail(), 10));
+    }
+
+    @Test
+    public void read_producerDiedBeforeCommitting_recordIsSkippedAfterClaimTimeout() throws Exception {
+        final MappedRingBuffer consumer = MappedRingBuffer.create(file, 1024);
+        consumer.setClaimTimeout(Duration.ofMillis(50));
+        final MappedRingBuffer producer = MappedRingBuffer.open(file);
+        final long deadRecord = producer.claim(1, 5);
+        assertTrue(producer.write(2, bytes("alive"), 0, 5));
+
+        final List<String> records = new ArrayList<>();
+        assertEquals(0, consumer.read((type, payload) -> records.add(type + ":" + string(payload)), 10));
+        Thread.sleep(60);
+        assertEquals(1, consumer.read((type, payload) -> records.add(type + ":" + string(payload)), 10));
+
+        assertEquals(Collections.singletonList("2:alive"), records);
+        assertEquals(0, consumer.getSize());
+        assertEquals(0, producer.startWriting(deadRecord, 5));
+    }
+
+    @Test
+    public void startWriting_producerStalledPastClaimTimeoutAndRingWrapped_lateProducerCannotWrite() throws Exception {
+        final MappedRingBuffer consumer = MappedRingBuffer.create(file, 1024);
+        consumer.setClaimTimeout(Duration.ofMillis(50));
+        final MappedRingBuffer producer = MappedRingBuffer.open(file);
+        final long stalledRecord = producer.claim(1, 5);
+        consumer.read((type, payload) -> fail(), 10);
+        Thread.sleep(60);
+        consumer.read((type, payload) -> fail(), 10);
+
+        // Records of the same length as the stalled one take up 32 bytes, so the 32nd record is claimed at its address
+        final List<String> records = new ArrayList<>();
+        for (int i = 0; i < 31; ++i) {
+            assertTrue(producer.write(2, bytes(String.format("%05d", i)), 0, 5));
+            while (records.size() <= i) {
+                consumer.read((type, payload) -> records.add(string(payload)), 10);
+            }
+        }
+        final long reclaimedRecord = producer.claim(2, 5);
+        assertEquals(stalledRecord + 1024, reclaimedRecord);
+
+        assertEquals(0, producer.startWriting(stalledRecord, 5));
+        assertNotEquals(0, producer.startWriting(reclaimedRecord, 5));
+        producer.commit(reclaimedRecord, 5);
+        consumer.read((type, payload) -> records.add(type + ":" + payload.remaining()), 10);
+        assertEquals("2:5", records.get(records.size() - 1));
+    }
+
+    @Test
+    public void write_ringIsFull_falseReturnedUntilRecordsAreRead() throws IOException {
+        final MappedRingBuffer ringBuffer = MappedRingBuffer.create(file, 1024);
+        final byte[] payload = new byte[ringBuffer.getMaxRecordLength()];
+        for (int i = 0; i < 8; ++i) {
+            assertTrue(ringBuffer.write(i, payload, 0, payload.length));
+        }
+        assertFalse(ringBuffer.write(8, payload, 0, payload.length));
+
+        assertEquals(1, ringBuffer.read((type, buffer) -> assertEquals(0, type), 1));
+
+        assertTrue(ringBuffer.write(8, payload, 0, payload.length));
+    }
+
+    @Test
+    public void write_recordDoesNotFitBeforeEndOfRing_recordWrapsAroundAndIsReadIntact() throws IOException {
+        final MappedRingBuffer ringBuffer = MappedRingBuffer.create(file, 1024);
+        final List<String> records = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            final String payload = "record-" + i + "-" + new String(new char[i % 37]).replace('\0', 'x');
+            assertTrue(ringBuffer.write(1, bytes(payload), 0, payload.length()));
+            // Reading stops at the end of the ring, so a wrapped record is only read by the second read
+            while (records.size() <= i) {
+                ringBuffer.read((type, buffer) -> records.add(string(buffer)), 10);
+            }
+            assertEquals(payload, records.get(i));
+        }
+    }
+
+    @Test
+    public void write_headerAndDirectBuffer_recordContainsBothAndBufferPositionIsUnchanged() throws IOException {
+        final MappedRingBuffer ringBuffer = MappedRingBuffer.create(file, 1024);
+        final ByteBuffer source = ByteBuffer.allocateDirect(16);
+        source.put(bytes("xxworld")).flip().position(2);
+
+        assertTrue(ringBuffer.write(3, bytes("hello "), source));
+
+        final List<String> records = new ArrayList<>();
+        ringBuffer.read((type, payload) -> records.add(type + ":" + string(payload)), 10);
+        assertEquals("3:hello world", records.get(0));
+        assertEquals(2, source.position());
+    }
+
+    @Test
+    public void write_severalConcurrentProducers_allRecordsAreReadOnceInProducerOrder() throws Exception {
+        final MappedRingBuffer consumer = MappedRingBuffer.create(file, 1 << 16);
+        final int producers = 4;
+        final int recordsPerProducer = 20_000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; ++p) {
+            final MappedRingBuffer producer = MappedRingBuffer.open(file);
+            final int producerId = p;
+            final Thread thread = new Thread(() -> {
+                final ByteBuffer record = ByteBuffer.allocate(8);
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int i = 0; i < recordsPerProducer; ++i) {
+                    record.putInt(0, producerId).putInt(4, i);
+                    while (!producer.write(1, record.array(), 0, 8)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+
+        final Map<Integer, Integer> nextExpected = new HashMap<>();
+        int received = 0;
+        while (received < producers * recordsPerProducer) {
+            received += consumer.read((type, payload) -> {
+                final int producerId = payload.getInt();
+                final int sequence = payload.getInt();
+                assertEquals(nextExpected.getOrDefault(producerId, 0).intValue(), sequence);
+                nextExpected.put(producerId, sequence + 1);
+            }, 100);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, consumer.getSize());
+    }
+
+    @Test(expected = IOException.class)
+    public void open_fileIsNotARingBuffer_exceptionThrown() throws IOException {
+        MappedRingBuffer.open(temporaryFolder.newFile().toPath());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.shm;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import net.pkhsolutions.irongrim.api.*;
+import net.pkhsolutions.irongrim.remoting.MessageTransportException;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for {@link SharedMemoryMessageBroker} and {@link SharedMemoryMessageServer}. The client and the server
+ * run in the same process, but communicate only through the memory-mapped files.
+ */
+public class SharedMemoryMessageBrokerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path directory;
+    private SharedMemoryMessageServer server;
+    private SharedMemoryMessageBroker broker;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = temporaryFolder.getRoot().toPath();
+        server = new SharedMemoryMessageServer(directory, new EchoMessageBroker()).setRequestRingCapacity(1 << 16);
+        server.start();
+        broker = new SharedMemoryMessageBroker(directory, 1 << 16);
+    }
+
+    @After
+    public void tearDown() {
+        broker.close();
+        server.close();
+        ContextHolder.resetContext();
+    }
+
+    @Test
+    public void send_messageWithContext_replyAndContextAreTransported() {
+        ContextHolder.setContext(new Context().setAttribute("user", "joe"));
+        assertEquals("hello joe", broker.send(new EchoQuery("hello")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void send_handlerThrowsException_exceptionIsRethrownByClient() {
+        broker.send(new EchoQuery("fail"));
+    }
+
+    @Test(expected = AssertionError.class)
+    public void send_handlerThrowsError_errorIsRethrownByClient() {
+        broker.send(new EchoQuery("error"));
+    }
+
+    @Test
+    public void send_manyMessages_allRepliesMatchTheirMessages() throws Exception {
+        ContextHolder.setContext(new Context().setAttribute("user", "joe"));
+        for (int i = 0; i < 1_000; ++i) {
+            assertEquals(i + " joe", broker.sendFuture(new EchoQuery(Integer.toString(i))).get());
+        }
+    }
+
+    @Test(expected = DeadlineExceededException.class)
+    public void send_replyArrivesAfterDeadline_deadlineExceededExceptionThrown() {
+        ContextHolder.setContext(new Context().setDeadline(Instant.now().plusMillis(50)));
+        broker.send(new EchoQuery("sleep"));
+    }
+
+    @Test
+    public void sendFuture_noDeadlineAndServerDoesNotReply_futureFailsAfterTimeout() throws Exception {
+        broker.setTimeout(Duration.ofMillis(50));
+        try {
+            broker.sendFuture(new EchoQuery("sleep")).join();
+            fail("No exception thrown");
+        } catch (Exception ex) {
+            assertTrue(ex.getCause() instanceof MessageTransportException);
+        }
+    }
+
+    @Test
+    public void send_bufferAttachmentLargerThanRings_attachmentIsStreamedBothWays() throws Exception {
+        final ByteBuffer content = ByteBuffer.allocateDirect(1 << 20);
+        for (int i = 0; i < content.capacity(); ++i) {
+            content.put(i, (byte) (i * 31));
+        }
+
+        final Attachment reply = broker.send(new AttachmentQuery(Attachment.of(content)));
+
+        assertEquals(content.capacity(), reply.getSize());
+        assertFalse(reply.getFile().isPresent());
+        assertEquals(content, reply.getContent());
+        try (Stream<Path> files = Files.list(directory)) {
+            // Only the rings are left, the temporary attachment files are deleted as soon as they have been mapped
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void send_fileAttachment_onlyFileReferenceIsTransported() throws Exception {
+        final Path file = temporaryFolder.newFile().toPath();
+        Files.write(file, new byte[] { 1, 2, 3, 4, 5 });
+
+        final Attachment reply = broker.send(new AttachmentQuery(Attachment.ofFileRegion(file, 1, 3)));
+
+        assertEquals(file.toAbsolutePath(), reply.getFile().get());
+        assertEquals(ByteBuffer.wrap(new byte[] { 2, 3, 4 }), reply.getContent());
+    }
+
+    @Test
+    public void close_replyRingIsDeleted() {
+        final Path replyRing = SharedMemoryMessageServer.getReplyRingFile(directory, broker.getClientId());
+        assertTrue(Files.exists(replyRing));
+        broker.close();
+        assertFalse(Files.exists(replyRing));
+    }
+
+    @Test
+    public void close_clientClosed_serverClosesReplyRingOfClient() throws Exception {
+        assertEquals("hello ", broker.send(new EchoQuery("hello")));
+        assertEquals(1, server.getOpenReplyRingCount());
+
+        broker.close();
+
+        final long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (server.getOpenReplyRingCount() > 0 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, server.getOpenReplyRingCount());
+    }
+
+    static class EchoQuery implements Query<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        final String text;
+
+        EchoQuery(String text) {
+            this.text = text;
+        }
+    }
+
+    static class AttachmentQuery implements Query<Attachment> {
+
+        private static final long serialVersionUID = 1L;
+
+        final Attachment attachment;
+
+        AttachmentQuery(Attachment attachment) {
+            this.attachment = attachment;
+        }
+    }
+
+    /**
+     * Broker that replies to {@link AttachmentQuery}s with their attachments, and to {@link EchoQuery}s with the text
+     * of the query and the user in the current context.
+     */
+    static class EchoMessageBroker implements MessageBroker {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <MESSAGE extends Message<REPLY>, REPLY> REPLY send(@NotNull MESSAGE message) {
+            if (message instanceof AttachmentQuery) {
+                return (REPLY) ((AttachmentQuery) message).attachment;
+            }
+            final String text = ((EchoQuery) message).text;
+            if (text.equals("fail")) {
+                throw new IllegalArgumentException("failure");
+            } else if (text.equals("error")) {
+                throw new AssertionError("error");
+            } else if (text.equals("sleep")) {
+                LockSupport.parkNanos(Duration.ofMillis(200).toNanos());
+            }
+            return (REPLY) (text + " " + ContextHolder.getOptionalContext().map(c -> c.getAttribute("user"))
+                .orElse(""));
+        }
+    }
+}
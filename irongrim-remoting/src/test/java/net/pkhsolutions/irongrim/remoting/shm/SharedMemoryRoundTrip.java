@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Petter Holmström
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.pkhsolutions.irongrim.remoting.shm;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import net.pkhsolutions.irongrim.api.Context;
+import net.pkhsolutions.irongrim.api.ContextHolder;
+
+/**
+ * Measures round trips between two processes over the shared-memory transport. This is not a unit test and is not run
+ * by the build. Start the server and the client in separate JVMs on the same host, preferably using a directory on a
+ * RAM backed file system:
+ *
+ * <pre>
+ * java ... SharedMemoryRoundTrip server /dev/shm/irongrim
+ * java ... SharedMemoryRoundTrip client /dev/shm/irongrim 100000
+ * </pre>
+ */
+public class SharedMemoryRoundTrip {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: SharedMemoryRoundTrip server|client <directory> [iterations]");
+            System.exit(1);
+        }
+        final Path directory = Paths.get(args[1]);
+        if (args[0].equals("server")) {
+            directory.toFile().mkdirs();
+            final SharedMemoryMessageServer server = new SharedMemoryMessageServer(directory,
+                new SharedMemoryMessageBrokerTest.EchoMessageBroker());
+            server.start();
+            System.out.println("Server started, press Ctrl+C to stop");
+            Thread.currentThread().join();
+        } else {
+            final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+            try (SharedMemoryMessageBroker broker = new SharedMemoryMessageBroker(directory)) {
+                ContextHolder.setContext(new Context().setAttribute("user", "joe"));
+                final SharedMemoryMessageBrokerTest.EchoQuery query = new SharedMemoryMessageBrokerTest.EchoQuery("hi");
+                for (int i = 0; i < iterations; ++i) {
+                    broker.send(query);
+                }
+                final long[] roundTrips = new long[iterations];
+                for (int i = 0; i < iterations; ++i) {
+                    final long start = System.nanoTime();
+                    broker.send(query);
+                    roundTrips[i] = System.nanoTime() - start;
+                }
+                Arrays.sort(roundTrips);
+                System.out.printf("Round trips (us): p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                    roundTrips[iterations / 2] / 1000.0, roundTrips[(int) (iterations * 0.9)] / 1000.0,
+                    roundTrips[(int) (iterations * 0.99)] / 1000.0, roundTrips[(int) (iterations * 0.999)] / 1000.0,
+                    roundTrips[iterations - 1] / 1000.0);
+            }
+        }
+    }
+}